@@ -0,0 +1,95 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Feeds a sink from a dedicated thread through a bounded queue.
+ */
+class BufferedCaptureEventSink implements CaptureEventSink {
+    private static final CaptureEvent END = new MutableCaptureEvent();
+    private final CaptureEventSink sink;
+    private final BlockingQueue<CaptureEvent> queue;
+    private final Thread thread;
+    private volatile Throwable error;
+
+    BufferedCaptureEventSink(CaptureEventSink sink, int capacity) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, "warcquet-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                CaptureEvent event = queue.take();
+                if (event == END) break;
+                if (error == null) {
+                    sink.accept(event);
+                }
+            }
+        } catch (Throwable t) {
+            error = t;
+            // keep draining so the producer doesn't block forever
+            queue.clear();
+            while (true) {
+                try {
+                    if (queue.take() == END) break;
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        Throwable t = error;
+        if (t == null) return;
+        if (t instanceof IOException) throw (IOException) t;
+        if (t instanceof UncheckedIOException) throw ((UncheckedIOException) t).getCause();
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        throw new IOException(t);
+    }
+
+    @Override
+    public void accept(CaptureEvent event) throws IOException {
+        checkError();
+        put(event);
+    }
+
+    private void put(CaptureEvent event) throws IOException {
+        try {
+            queue.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        put(END);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            checkError();
+        } finally {
+            sink.close();
+        }
+    }
+}
@@ -5,26 +5,94 @@
 
 package org.netpreserve.warcquet;
 
-import java.net.URI;
 import java.time.Instant;
+import java.util.Map;
 import java.util.UUID;
 
+/**
+ * A single capture: a response, resource or revisit record joined with its request and metadata records.
+ * <p>
+ * The nullable numeric fields are available both as objects and as primitives. The primitive accessors
+ * ({@code hasX()} and {@code getXAsLong()} etc) avoid boxing and are what the parquet writer uses. Their default
+ * implementations delegate to the object getters; {@link MutableCaptureEvent} stores the primitives directly and
+ * builds the objects on demand. The primitive getters return zero when the field is absent.
+ */
 public interface CaptureEvent {
     String getUrl();
     Instant getDate();
 
     String getFilename();
     long getResponsePosition();
+    long getResponseLength();
     String getResponsePayloadType();
     Long getResponsePayloadLength();
     byte[] getResponsePayloadSha1();
 
+    // the extra digests are null unless the implementation computes them
+
+    default byte[] getResponsePayloadSha256() {
+        return null;
+    }
+
+    default byte[] getResponsePayloadMurmur3() {
+        return null;
+    }
+
+    default byte[] getResponseBlockSha1() {
+        return null;
+    }
+
+    default byte[] getResponseBlockSha256() {
+        return null;
+    }
+
+    default byte[] getResponseBlockMurmur3() {
+        return null;
+    }
+
+    // the verification results are null unless the capture was verified
+
+    default String getResponsePayloadDigestStatus() {
+        return null;
+    }
+
+    default String getResponsePayloadDigestActual() {
+        return null;
+    }
+
+    default String getResponseBlockDigestStatus() {
+        return null;
+    }
+
+    default String getResponseBlockDigestActual() {
+        return null;
+    }
+
+    default Boolean getResponseTruncated() {
+        return null;
+    }
+
+    /**
+     * The allowlisted HTTP response headers, keyed by lowercase name. Repeated headers are joined with ", " (or
+     * newlines for Set-Cookie). Empty if the response had none of them, null if headers weren't captured.
+     */
+    default Map<String, String> getResponseHeaders() {
+        return null;
+    }
+
     Long getRequestPosition();
     Long getRequestLength();
     String getRequestPayloadType();
     Long getRequestPayloadLength();
     byte[] getRequestPayloadSha1();
 
+    /**
+     * The allowlisted HTTP request headers, as for {@link #getResponseHeaders()}.
+     */
+    default Map<String, String> getRequestHeaders() {
+        return null;
+    }
+
     Integer getHttpStatus();
 
     String getHttpMethod();
@@ -64,4 +132,118 @@ public interface CaptureEvent {
     String getServer();
 
     String getServerVersion();
+
+    default boolean hasDate() {
+        return getDate() != null;
+    }
+
+    /**
+     * The date in milliseconds since the epoch.
+     */
+    default long getDateAsLong() {
+        return hasDate() ? getDate().toEpochMilli() : 0;
+    }
+
+    default boolean hasResponsePayloadLength() {
+        return getResponsePayloadLength() != null;
+    }
+
+    default long getResponsePayloadLengthAsLong() {
+        return hasResponsePayloadLength() ? getResponsePayloadLength() : 0;
+    }
+
+    default boolean hasRequestPosition() {
+        return getRequestPosition() != null;
+    }
+
+    default long getRequestPositionAsLong() {
+        return hasRequestPosition() ? getRequestPosition() : 0;
+    }
+
+    default boolean hasRequestLength() {
+        return getRequestLength() != null;
+    }
+
+    default long getRequestLengthAsLong() {
+        return hasRequestLength() ? getRequestLength() : 0;
+    }
+
+    default boolean hasRequestPayloadLength() {
+        return getRequestPayloadLength() != null;
+    }
+
+    default long getRequestPayloadLengthAsLong() {
+        return hasRequestPayloadLength() ? getRequestPayloadLength() : 0;
+    }
+
+    default boolean hasResponseTruncated() {
+        return getResponseTruncated() != null;
+    }
+
+    default boolean getResponseTruncatedAsBoolean() {
+        return hasResponseTruncated() && getResponseTruncated();
+    }
+
+    default boolean hasRefersToDate() {
+        return getRefersToDate() != null;
+    }
+
+    /**
+     * The refers-to date in milliseconds since the epoch.
+     */
+    default long getRefersToDateAsLong() {
+        return hasRefersToDate() ? getRefersToDate().toEpochMilli() : 0;
+    }
+
+    default boolean hasHttpStatus() {
+        return getHttpStatus() != null;
+    }
+
+    default int getHttpStatusAsInt() {
+        return hasHttpStatus() ? getHttpStatus() : 0;
+    }
+
+    default boolean hasIpv4() {
+        return getIpv4() != null;
+    }
+
+    default int getIpv4AsInt() {
+        return hasIpv4() ? getIpv4() : 0;
+    }
+
+    default boolean hasResponseUUID() {
+        return getResponseUUID() != null;
+    }
+
+    default long getResponseUUIDMostSignificantBits() {
+        return hasResponseUUID() ? getResponseUUID().getMostSignificantBits() : 0;
+    }
+
+    default long getResponseUUIDLeastSignificantBits() {
+        return hasResponseUUID() ? getResponseUUID().getLeastSignificantBits() : 0;
+    }
+
+    default boolean hasRequestUUID() {
+        return getRequestUUID() != null;
+    }
+
+    default long getRequestUUIDMostSignificantBits() {
+        return hasRequestUUID() ? getRequestUUID().getMostSignificantBits() : 0;
+    }
+
+    default long getRequestUUIDLeastSignificantBits() {
+        return hasRequestUUID() ? getRequestUUID().getLeastSignificantBits() : 0;
+    }
+
+    default boolean hasRefersToUUID() {
+        return getRefersToUUID() != null;
+    }
+
+    default long getRefersToUUIDMostSignificantBits() {
+        return hasRefersToUUID() ? getRefersToUUID().getMostSignificantBits() : 0;
+    }
+
+    default long getRefersToUUIDLeastSignificantBits() {
+        return hasRefersToUUID() ? getRefersToUUID().getLeastSignificantBits() : 0;
+    }
 }
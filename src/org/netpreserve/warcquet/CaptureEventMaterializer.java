@@ -1,47 +1,45 @@
 package org.netpreserve.warcquet;
 
-import com.google.common.net.InetAddresses;
 import org.apache.parquet.io.api.*;
 
-import java.net.Inet6Address;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.time.Instant;
-import java.util.UUID;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
 
 public class CaptureEventMaterializer extends RecordMaterializer<CaptureEvent> {
     private MutableCaptureEvent event = new MutableCaptureEvent();
     private Converter[] converters = new Converter[]{
             binaryConverter(value -> event.setUrl(value.toStringUsingUTF8())),
-            longConverter(value -> event.setDate(Instant.ofEpochMilli(value))),
+            longConverter(value -> event.setDate(value)),
 
             binaryConverter(value -> event.setFilename(value.toStringUsingUTF8())),
             longConverter(value -> event.setResponsePosition(value)),
             longConverter(value -> event.setResponseLength(value)),
             binaryConverter(value -> event.setResponseRecordType(value.toStringUsingUTF8())),
-            binaryConverter(value -> event.setResponseUUID(binaryToUUID(value))),
+            binaryConverter(value -> setUUID(value, MutableCaptureEvent::setResponseUUID)),
             binaryConverter(value -> event.setResponsePayloadType(value.toStringUsingUTF8())),
             longConverter(value -> event.setResponsePayloadLength(value)),
             binaryConverter(value -> event.setResponsePayloadSha1(value.getBytes())),
 
             longConverter(value -> event.setRequestPosition(value)),
             longConverter(value -> event.setRequestLength(value)),
-            binaryConverter(value -> event.setRequestUUID(binaryToUUID(value))),
+            binaryConverter(value -> setUUID(value, MutableCaptureEvent::setRequestUUID)),
             binaryConverter(value -> event.setRequestPayloadType(value.toStringUsingUTF8())),
             longConverter(value -> event.setRequestPayloadLength(value)),
             binaryConverter(value -> event.setRequestPayloadSha1(value.getBytes())),
 
             binaryConverter(value -> event.setRefersToUrl(value.toStringUsingUTF8())),
-            longConverter(value -> event.setRefersToDate(Instant.ofEpochMilli(value))),
-            binaryConverter(value -> event.setRefersToUUID(binaryToUUID(value))),
+            longConverter(value -> event.setRefersToDate(value)),
+            binaryConverter(value -> setUUID(value, MutableCaptureEvent::setRefersToUUID)),
 
             intConverter(value -> event.setHttpStatus(value)),
             binaryConverter(value -> event.setHttpMethod(value.toStringUsingUTF8())),
             binaryConverter(value -> event.setHopsFromSeed(value.toStringUsingUTF8())),
             binaryConverter(value -> event.setVia(value.toStringUsingUTF8())),
-            intConverter(value -> event.setIpAddress(InetAddresses.fromInteger(value))),
-            binaryConverter(value -> event.setIpAddress(binaryToInet6Address(value))),
+            intConverter(value -> event.setIpv4(value)),
+            binaryConverter(value -> event.setIpv6(value.getBytes())),
             binaryConverter(value -> event.setRedirect(value.toStringUsingUTF8())),
             binaryConverter(value -> event.setSoftware(value.toStringUsingUTF8())),
             binaryConverter(value -> event.setSoftwareVersion(value.toStringUsingUTF8())),
@@ -51,6 +49,20 @@ public class CaptureEventMaterializer extends RecordMaterializer<CaptureEvent> {
             binaryConverter(value -> event.setSurtKey(value.toStringUsingUTF8())),
             binaryConverter(value -> event.setSurtDomain(value.toStringUsingUTF8())),
             binaryConverter(value -> event.setSurtRegistry(value.toStringUsingUTF8())),
+
+            binaryConverter(value -> event.setResponsePayloadSha256(value.getBytes())),
+            binaryConverter(value -> event.setResponsePayloadMurmur3(value.getBytes())),
+            binaryConverter(value -> event.setResponseBlockSha1(value.getBytes())),
+            binaryConverter(value -> event.setResponseBlockSha256(value.getBytes())),
+            binaryConverter(value -> event.setResponseBlockMurmur3(value.getBytes())),
+            binaryConverter(value -> event.setResponsePayloadDigestStatus(value.toStringUsingUTF8())),
+            binaryConverter(value -> event.setResponsePayloadDigestActual(value.toStringUsingUTF8())),
+            binaryConverter(value -> event.setResponseBlockDigestStatus(value.toStringUsingUTF8())),
+            binaryConverter(value -> event.setResponseBlockDigestActual(value.toStringUsingUTF8())),
+            booleanConverter(value -> event.setResponseTruncated(value)),
+
+            mapConverter(headers -> event.setResponseHeaders(headers)),
+            mapConverter(headers -> event.setRequestHeaders(headers)),
     };
 
     private static PrimitiveConverter binaryConverter(Consumer<Binary> consumer) {
@@ -62,7 +74,54 @@ public class CaptureEventMaterializer extends RecordMaterializer<CaptureEvent> {
         };
     }
 
-    private static PrimitiveConverter longConverter(Consumer<Long> consumer) {
+    /**
+     * Converts a map of strings to strings, preserving the order of the entries.
+     */
+    private static GroupConverter mapConverter(Consumer<Map<String, String>> consumer) {
+        return new GroupConverter() {
+            private Map<String, String> map;
+            private String key;
+            private String value;
+            private final Converter[] fields = {
+                    binaryConverter(binary -> key = binary.toStringUsingUTF8()),
+                    binaryConverter(binary -> value = binary.toStringUsingUTF8()),
+            };
+            private final GroupConverter keyValue = new GroupConverter() {
+                @Override
+                public Converter getConverter(int fieldIndex) {
+                    return fields[fieldIndex];
+                }
+
+                @Override
+                public void start() {
+                    key = null;
+                    value = null;
+                }
+
+                @Override
+                public void end() {
+                    map.put(key, value);
+                }
+            };
+
+            @Override
+            public Converter getConverter(int fieldIndex) {
+                return keyValue;
+            }
+
+            @Override
+            public void start() {
+                map = new LinkedHashMap<>();
+            }
+
+            @Override
+            public void end() {
+                consumer.accept(map);
+            }
+        };
+    }
+
+    private static PrimitiveConverter longConverter(LongConsumer consumer) {
         return new PrimitiveConverter() {
             @Override
             public void addLong(long value) {
@@ -71,7 +130,20 @@ public class CaptureEventMaterializer extends RecordMaterializer<CaptureEvent> {
         };
     }
 
-    private static PrimitiveConverter intConverter(Consumer<Integer> consumer) {
+    private static PrimitiveConverter booleanConverter(BooleanConsumer consumer) {
+        return new PrimitiveConverter() {
+            @Override
+            public void addBoolean(boolean value) {
+                consumer.accept(value);
+            }
+        };
+    }
+
+    private interface BooleanConsumer {
+        void accept(boolean value);
+    }
+
+    private static PrimitiveConverter intConverter(IntConsumer consumer) {
         return new PrimitiveConverter() {
             @Override
             public void addInt(int value) {
@@ -80,17 +152,13 @@ public class CaptureEventMaterializer extends RecordMaterializer<CaptureEvent> {
         };
     }
 
-    private static UUID binaryToUUID(Binary value) {
-        var buffer = value.toByteBuffer();
-        return new UUID(buffer.getLong(), buffer.getLong());
+    private interface UUIDSetter {
+        void set(MutableCaptureEvent event, long mostSignificantBits, long leastSignificantBits);
     }
 
-    private static InetAddress binaryToInet6Address(Binary value) {
-        try {
-            return Inet6Address.getByAddress(value.getBytesUnsafe());
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
-        }
+    private void setUUID(Binary value, UUIDSetter setter) {
+        var buffer = value.toByteBuffer();
+        setter.set(event, buffer.getLong(buffer.position()), buffer.getLong(buffer.position() + 8));
     }
 
     @Override
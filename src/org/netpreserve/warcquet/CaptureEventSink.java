@@ -0,0 +1,104 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.hadoop.ParquetWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * A destination for the capture events produced by {@link Warc2Warcquet}. Several sinks can be fed from a single pass
+ * over the WARC files, e.g. a warcquet file, a CDXJ index and some rollups.
+ * <p>
+ * Events are passed to {@link #accept(CaptureEvent)} in WARC order and are not modified afterwards, so a sink may
+ * hold on to them. Closing the sink flushes any output.
+ */
+public interface CaptureEventSink extends Closeable {
+    void accept(CaptureEvent event) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Writes events to a warcquet file.
+     */
+    static CaptureEventSink of(ParquetWriter<CaptureEvent> writer) {
+        return new CaptureEventSink() {
+            @Override
+            public void accept(CaptureEvent event) throws IOException {
+                writer.write(event);
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Passes events to a user supplied consumer.
+     */
+    static CaptureEventSink of(Consumer<CaptureEvent> consumer) {
+        return consumer::accept;
+    }
+
+    /**
+     * Aggregates events into a rollup which is written to the given path when the sink is closed.
+     */
+    static CaptureEventSink of(Rollup rollup, Path path) {
+        return new CaptureEventSink() {
+            @Override
+            public void accept(CaptureEvent event) throws IOException {
+                rollup.add(event);
+            }
+
+            @Override
+            public void close() throws IOException {
+                rollup.write(path);
+            }
+        };
+    }
+
+    /**
+     * Writes unsorted CDXJ lines to an output stream. The stream is closed when the sink is closed.
+     */
+    static CaptureEventSink cdxj(OutputStream out) {
+        var formatter = new CdxjFormatter();
+        return new CaptureEventSink() {
+            @Override
+            public void accept(CaptureEvent event) throws IOException {
+                formatter.appendLine(event);
+                if (formatter.size() >= 65536) {
+                    formatter.writeTo(out);
+                    formatter.reset();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try (out) {
+                    formatter.writeTo(out);
+                    formatter.reset();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps a sink so that events are handed to it on its own thread through a queue of the given capacity. A slow
+     * sink then only blocks the caller once its queue is full. Errors thrown by the sink are rethrown from the next
+     * call to accept() or close().
+     */
+    static CaptureEventSink buffered(CaptureEventSink sink, int capacity) {
+        return new BufferedCaptureEventSink(sink, capacity);
+    }
+}
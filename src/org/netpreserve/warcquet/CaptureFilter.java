@@ -0,0 +1,165 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Selects which captures {@link Warc2Warcquet} converts. The checks are split by what they need so the converter can
+ * apply each one as early as possible: record type, URL, SURT, date and the sample are decided from the WARC headers,
+ * the status from the HTTP headers and the payload type before the payload is read or hashed. A capture that fails
+ * any check is skipped without consuming the rest of its records.
+ * <p>
+ * Sampling hashes the surt_key, so the same URLs are selected regardless of which file or run they appear in.
+ */
+public class CaptureFilter {
+    private static final HashFunction SAMPLE_HASH = Hashing.murmur3_128(0x77617263);
+
+    private Set<String> recordTypes;
+    private boolean[] statuses;
+    private Set<String> payloadTypes;
+    private final List<String> urlPrefixes = new ArrayList<>();
+    private final List<String> surtPrefixes = new ArrayList<>();
+    private Instant from;
+    private Instant to;
+    private double sampleRate = 1.0;
+
+    /**
+     * Only accept captures whose response record has one of the given types (response, resource, revisit).
+     */
+    public CaptureFilter recordTypes(Collection<String> recordTypes) {
+        this.recordTypes = new HashSet<>(recordTypes);
+        return this;
+    }
+
+    /**
+     * Only accept captures with one of the given HTTP statuses. Each status may be a code like "200" or a class like
+     * "3xx".
+     */
+    public CaptureFilter statuses(Collection<String> statuses) {
+        this.statuses = new boolean[1000];
+        for (String status : statuses) {
+            if (status.length() == 3 && status.endsWith("xx") && Character.isDigit(status.charAt(0))) {
+                int base = (status.charAt(0) - '0') * 100;
+                Arrays.fill(this.statuses, base, base + 100, true);
+            } else {
+                int code = Integer.parseInt(status);
+                if (code < 0 || code >= 1000) throw new IllegalArgumentException("Invalid HTTP status: " + status);
+                this.statuses[code] = true;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Only accept captures whose response payload has one of the given base media types, e.g. text/html.
+     */
+    public CaptureFilter payloadTypes(Collection<String> payloadTypes) {
+        this.payloadTypes = new HashSet<>();
+        for (String type : payloadTypes) {
+            this.payloadTypes.add(type.toLowerCase(Locale.ROOT));
+        }
+        return this;
+    }
+
+    /**
+     * Accept captures whose URL starts with the given prefix. May be called more than once.
+     */
+    public CaptureFilter urlPrefix(String prefix) {
+        urlPrefixes.add(prefix);
+        return this;
+    }
+
+    /**
+     * Accept captures whose surt_key starts with the given prefix. May be called more than once.
+     */
+    public CaptureFilter surtPrefix(String prefix) {
+        surtPrefixes.add(prefix);
+        return this;
+    }
+
+    /**
+     * Only accept captures in the range [from, to). Either bound may be null.
+     */
+    public CaptureFilter dateRange(Instant from, Instant to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Only accept the given fraction (0 to 1) of surt_keys.
+     */
+    public CaptureFilter sampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Parses a 1 to 14 digit timestamp (yyyyMMddHHmmss) or an ISO-8601 instant.
+     */
+    public static Instant parseDate(String value) {
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Cdx2Warcquet.parseTimestamp(value).toInstant(ZoneOffset.UTC);
+        }
+        return Instant.parse(value);
+    }
+
+    /**
+     * Checks the fields known from the WARC headers of the response, resource or revisit record.
+     */
+    public boolean acceptsRecord(String recordType, String url, String surtKey, Instant date) {
+        if (recordTypes != null && !recordTypes.contains(recordType)) return false;
+        if (!urlPrefixes.isEmpty() && (url == null || !startsWithAny(url, urlPrefixes))) return false;
+        if (!surtPrefixes.isEmpty() && (surtKey == null || !startsWithAny(surtKey, surtPrefixes))) return false;
+        if (date != null) {
+            if (from != null && date.isBefore(from)) return false;
+            if (to != null && !date.isBefore(to)) return false;
+        }
+        return sampleRate >= 1.0 || isSampled(surtKey);
+    }
+
+    public boolean acceptsStatus(Integer status) {
+        if (statuses == null) return true;
+        return status != null && status >= 0 && status < statuses.length && statuses[status];
+    }
+
+    public boolean acceptsPayloadType(String payloadType) {
+        if (payloadTypes == null) return true;
+        return payloadType != null && payloadTypes.contains(payloadType.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks a complete capture event against all the conditions.
+     */
+    public boolean accepts(CaptureEvent event) {
+        return acceptsRecord(event.getResponseRecordType(), event.getUrl(), event.getSurtKey(), event.getDate()) &&
+                acceptsStatus(event.getHttpStatus()) &&
+                (payloadTypes == null || "revisit".equals(event.getResponseRecordType()) ||
+                        acceptsPayloadType(event.getResponsePayloadType()));
+    }
+
+    boolean isSampled(String surtKey) {
+        if (sampleRate <= 0) return false;
+        if (surtKey == null) return false;
+        long hash = SAMPLE_HASH.hashString(surtKey, StandardCharsets.UTF_8).asLong();
+        return (hash >>> 11) * 0x1.0p-53 < sampleRate;
+    }
+
+    private static boolean startsWithAny(String value, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (value.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.netpreserve.warcquet.util.PathOutputFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds warcquet files from existing CDX-11, CDX-9 or CDXJ indexes instead of re-reading the WARC files.
+ * <p>
+ * Lines are read sequentially in batches which are parsed (including SURT computation) on a pool of worker threads
+ * and written in their original order. Fields which a CDX index doesn't record, such as the request record, payload
+ * length, IP address and software are left null. The response record type is inferred: "revisit" for warc/revisit
+ * lines, "resource" for dns: and whois: URLs, otherwise "response". Lines without an offset are skipped as unparseable,
+ * since the response position can't be left unknown.
+ */
+public class Cdx2Warcquet {
+    private static final int BATCH_LINES = 10_000;
+    private static final String CDX11_FORMAT = "NbamskrMSVg";
+    private static final String CDX9_FORMAT = "NbamskrVg";
+
+    private final ParquetWriter<CaptureEvent> writer;
+    private final ExecutorService executor;
+    private final int maxPendingBatches;
+    private final boolean verbose;
+    private final LongAdder unparseableLines = new LongAdder();
+
+    public Cdx2Warcquet(ParquetWriter<CaptureEvent> writer, ExecutorService executor, int threads, boolean verbose) {
+        this.writer = writer;
+        this.executor = executor;
+        this.maxPendingBatches = threads * 2;
+        this.verbose = verbose;
+    }
+
+    /**
+     * Converts all lines of a CDX or CDXJ file. Lines beginning with " CDX" are treated as a field format header.
+     */
+    public void convert(BufferedReader reader) throws IOException {
+        var pending = new ArrayDeque<Future<List<MutableCaptureEvent>>>();
+        String format = null;
+        var batch = new ArrayList<String>(BATCH_LINES);
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(" CDX ")) {
+                    format = line.substring(5).replace(" ", "");
+                    continue;
+                }
+                batch.add(line);
+                if (batch.size() >= BATCH_LINES) {
+                    submit(pending, batch, format);
+                    batch = new ArrayList<>(BATCH_LINES);
+                }
+            }
+            if (!batch.isEmpty()) submit(pending, batch, format);
+            while (!pending.isEmpty()) {
+                writeBatch(pending.poll());
+            }
+        } finally {
+            for (var future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void submit(Deque<Future<List<MutableCaptureEvent>>> pending, List<String> lines, String format)
+            throws IOException {
+        while (pending.size() >= maxPendingBatches) {
+            writeBatch(pending.poll());
+        }
+        pending.add(executor.submit(() -> parseLines(lines, format)));
+    }
+
+    private void writeBatch(Future<List<MutableCaptureEvent>> future) throws IOException {
+        List<MutableCaptureEvent> events;
+        try {
+            events = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        for (MutableCaptureEvent event : events) {
+            writer.write(event);
+        }
+    }
+
+    private List<MutableCaptureEvent> parseLines(List<String> lines, String format) {
+        var events = new ArrayList<MutableCaptureEvent>(lines.size());
+        for (String line : lines) {
+            try {
+                MutableCaptureEvent event = parseLine(line, format);
+                if (event != null) events.add(event);
+            } catch (RuntimeException e) {
+                unparseableLines.increment();
+                if (verbose) System.err.println("Skipping unparseable CDX line: " + line + " (" + e + ")");
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Number of lines skipped so far because they couldn't be parsed.
+     */
+    public long getUnparseableLines() {
+        return unparseableLines.sum();
+    }
+
+    /**
+     * Parses a single CDX or CDXJ line. Returns null for blank lines or lines missing a URL, date or filename, and
+     * throws IllegalArgumentException for lines without an offset.
+     *
+     * @param format the CDX field letters from the header or null to guess from the number of fields
+     */
+    static MutableCaptureEvent parseLine(String line, String format) {
+        if (line.isBlank()) return null;
+        int firstSpace = line.indexOf(' ');
+        int secondSpace = firstSpace < 0 ? -1 : line.indexOf(' ', firstSpace + 1);
+        if (secondSpace > 0 && secondSpace + 1 < line.length() && line.charAt(secondSpace + 1) == '{') {
+            return parseCdxjLine(line.substring(firstSpace + 1, secondSpace), line.substring(secondSpace + 1));
+        }
+        String[] values = line.split(" ");
+        if (format == null) {
+            format = values.length == CDX9_FORMAT.length() ? CDX9_FORMAT : CDX11_FORMAT;
+        }
+        var fields = new HashMap<Character, String>();
+        for (int i = 0; i < format.length() && i < values.length; i++) {
+            if (!values[i].equals("-")) fields.put(format.charAt(i), values[i]);
+        }
+        String length = fields.get('S');
+        if (length == null) length = fields.get('n');
+        String offset = fields.get('V');
+        if (offset == null) offset = fields.get('v');
+        return buildEvent(fields.get('a'), fields.get('b'), fields.get('m'), fields.get('s'), fields.get('k'),
+                length, offset, fields.get('g'), fields.get('r'));
+    }
+
+    private static MutableCaptureEvent parseCdxjLine(String timestamp, String json) {
+        Map<String, String> fields = parseJsonObject(json);
+        return buildEvent(fields.get("url"), timestamp, fields.get("mime"), fields.get("status"),
+                fields.get("digest"), fields.get("length"), fields.get("offset"), fields.get("filename"),
+                fields.get("redirect"));
+    }
+
+    private static MutableCaptureEvent buildEvent(String url, String timestamp, String mime, String status,
+                                                  String digest, String length, String offset, String filename,
+                                                  String redirect) {
+        if (url == null || timestamp == null || filename == null) return null;
+        if (offset == null) throw new IllegalArgumentException("no offset");
+        var event = new MutableCaptureEvent();
+        event.setUrlFields(url);
+        event.setDate(parseTimestamp(timestamp).toInstant(ZoneOffset.UTC));
+        event.setFilename(filename);
+        event.setResponsePosition(Long.parseLong(offset));
+        if (length != null) event.setResponseLength(Long.parseLong(length));
+
+        if ("warc/revisit".equals(mime)) {
+            event.setResponseRecordType("revisit");
+        } else {
+            if (url.startsWith("dns:") || url.startsWith("whois:")) {
+                event.setResponseRecordType("resource");
+            } else {
+                event.setResponseRecordType("response");
+            }
+            if (mime != null && !mime.equals("unk")) event.setResponsePayloadType(mime);
+        }
+
+        if (status != null && !status.isEmpty() && Character.isDigit(status.charAt(0))) {
+            try {
+                event.setHttpStatus(Integer.parseInt(status));
+            } catch (NumberFormatException e) {
+                // ignore bad status
+            }
+        }
+        if (digest != null) event.setResponsePayloadSha1(decodeSha1(digest));
+        if (redirect != null) event.setRedirect(redirect);
+        return event;
+    }
+
+    /**
+     * Decodes a base32 sha1 digest, optionally prefixed with "sha1:". Returns null for other algorithms.
+     */
+    static byte[] decodeSha1(String digest) {
+        int colon = digest.indexOf(':');
+        if (colon >= 0) {
+            if (!digest.substring(0, colon).equalsIgnoreCase("sha1")) return null;
+            digest = digest.substring(colon + 1);
+        }
+        if (digest.length() != 32) return null;
+        try {
+            return BaseEncoding.base32().decode(digest.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a 14 digit CDX timestamp. Shorter timestamps are padded with the earliest value for each field.
+     */
+    static LocalDateTime parseTimestamp(String timestamp) {
+        String padded = timestamp + "00000101000000".substring(Math.min(timestamp.length(), 14));
+        return LocalDateTime.of(
+                Integer.parseInt(padded.substring(0, 4)),
+                Integer.parseInt(padded.substring(4, 6)),
+                Integer.parseInt(padded.substring(6, 8)),
+                Integer.parseInt(padded.substring(8, 10)),
+                Integer.parseInt(padded.substring(10, 12)),
+                Integer.parseInt(padded.substring(12, 14)));
+    }
+
+    /**
+     * Parses a flat JSON object whose values are strings, numbers, booleans or null. Non-string values are returned
+     * as their literal text (null values are omitted).
+     */
+    static Map<String, String> parseJsonObject(String json) {
+        var fields = new HashMap<String, String>();
+        int[] pos = {skipWhitespace(json, 0)};
+        expect(json, pos, '{');
+        pos[0] = skipWhitespace(json, pos[0]);
+        if (pos[0] < json.length() && json.charAt(pos[0]) == '}') return fields;
+        while (true) {
+            pos[0] = skipWhitespace(json, pos[0]);
+            String key = parseJsonString(json, pos);
+            pos[0] = skipWhitespace(json, pos[0]);
+            expect(json, pos, ':');
+            pos[0] = skipWhitespace(json, pos[0]);
+            String value;
+            if (pos[0] < json.length() && json.charAt(pos[0]) == '"') {
+                value = parseJsonString(json, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < json.length() && ",} \t".indexOf(json.charAt(pos[0])) < 0) pos[0]++;
+                value = json.substring(start, pos[0]);
+                if (value.equals("null")) value = null;
+            }
+            if (value != null) fields.put(key, value);
+            pos[0] = skipWhitespace(json, pos[0]);
+            if (pos[0] < json.length() && json.charAt(pos[0]) == ',') {
+                pos[0]++;
+            } else {
+                expect(json, pos, '}');
+                return fields;
+            }
+        }
+    }
+
+    private static int skipWhitespace(String s, int pos) {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static void expect(String s, int[] pos, char c) {
+        if (pos[0] >= s.length() || s.charAt(pos[0]) != c) {
+            throw new IllegalArgumentException("expected '" + c + "' at position " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static String parseJsonString(String s, int[] pos) {
+        expect(s, pos, '"');
+        var sb = new StringBuilder();
+        while (true) {
+            if (pos[0] >= s.length()) throw new IllegalArgumentException("unterminated string");
+            char c = s.charAt(pos[0]++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char escape = s.charAt(pos[0]++);
+            switch (escape) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default: sb.append(escape);
+            }
+        }
+    }
+
+    private static BufferedReader openCdx(String path) throws IOException {
+        InputStream stream = Files.newInputStream(Paths.get(path));
+        if (path.endsWith(".gz")) {
+            stream = new GZIPInputStream(stream, 65536);
+        }
+        return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), 65536);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path outFile = null;
+        var cdxFiles = new ArrayList<String>();
+        CompressionCodecName compression = CompressionCodecName.UNCOMPRESSED;
+        ParquetProperties.WriterVersion parquetVersion = ParquetProperties.WriterVersion.PARQUET_1_0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean verbose = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output-file":
+                        outFile = Paths.get(args[++i]);
+                        break;
+                    case "-c":
+                    case "--compression":
+                        compression = CompressionCodecName.fromConf(args[++i]);
+                        break;
+                    case "--parquet-version":
+                        parquetVersion = ParquetProperties.WriterVersion.fromString(args[++i]);
+                        break;
+                    case "-t":
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--verbose":
+                    case "-v":
+                        verbose = true;
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: Cdx2Warcquet [OPTIONS] -o outfile.parquet cdx-files...\n" +
+                                "\n" +
+                                "Accepts CDX-11, CDX-9 and CDXJ files, optionally gzipped.\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "  -c, --compression CODEC     Output compression codec " + Arrays.asList(CompressionCodecName.values()) + "\n" +
+                                "  -o, --output-file FILE      Output parquet file (mandatory)\n" +
+                                "      --parquet-version VERS  Output parquet version (v1, v2)\n" +
+                                "  -t, --threads N             Number of parsing threads\n" +
+                                "  -v, --verbose               Increase logging detail\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("Cdx2Warcquet: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                cdxFiles.add(args[i]);
+            }
+        }
+
+        if (outFile == null) {
+            System.err.println("Cdx2Warcquet: an output file (-o) must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        if (cdxFiles.isEmpty()) {
+            System.err.println("Cdx2Warcquet: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (var writer = new WarcquetWriterBuilder(new PathOutputFile(outFile))
+                .withCompressionCodec(compression)
+                .withWriterVersion(parquetVersion)
+                .build()) {
+            var converter = new Cdx2Warcquet(writer, executor, threads, verbose);
+            for (String cdxFile : cdxFiles) {
+                try (var reader = openCdx(cdxFile)) {
+                    converter.convert(reader);
+                } catch (Exception e) {
+                    System.err.println("Failed on " + cdxFile);
+                    e.printStackTrace();
+                }
+            }
+            if (converter.getUnparseableLines() > 0) {
+                System.err.println("Cdx2Warcquet: skipped " + converter.getUnparseableLines() + " unparseable lines");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.io.api.Binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Formats CDXJ lines into a growable byte buffer which is reused between lines, so formatting a row doesn't allocate
+ * any Strings. Lines are in the pywb layout:
+ * <pre>
+ * surt_key timestamp {"url": "...", "mime": "...", "status": "200", "digest": "sha1:...", "length": "...", "offset": "...", "filename": "..."}
+ * </pre>
+ */
+class CdxjFormatter {
+    private static final byte[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".getBytes();
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private byte[] buffer = new byte[8192];
+    private int size;
+
+    /**
+     * Appends a CDXJ line including the trailing newline. Any of the Binary arguments may be null.
+     *
+     * @param httpStatus the status or -1 if unknown
+     */
+    void appendLine(Binary surtKey, long date, Binary url, Binary mime, int httpStatus, Binary sha1, long length,
+                    long offset, Binary filename, Binary redirect) {
+        if (surtKey != null) {
+            appendRaw(surtKey);
+        } else {
+            appendByte('-');
+        }
+        appendByte(' ');
+        appendTimestamp(date);
+        appendAscii(" {\"url\": ");
+        appendJsonString(url);
+        if (mime != null) {
+            appendAscii(", \"mime\": ");
+            appendJsonString(mime);
+        }
+        if (httpStatus >= 0) {
+            appendAscii(", \"status\": \"");
+            appendLong(httpStatus);
+            appendByte('"');
+        }
+        if (sha1 != null) {
+            appendAscii(", \"digest\": \"sha1:");
+            appendBase32(sha1);
+            appendByte('"');
+        }
+        appendAscii(", \"length\": \"");
+        appendLong(length);
+        appendAscii("\", \"offset\": \"");
+        appendLong(offset);
+        appendAscii("\", \"filename\": ");
+        appendJsonString(filename);
+        if (redirect != null) {
+            appendAscii(", \"redirect\": ");
+            appendJsonString(redirect);
+        }
+        appendAscii("}\n");
+    }
+
+    void appendLine(CaptureEvent event) {
+        appendLine(binary(event.getSurtKey()), event.getDateAsLong(), binary(event.getUrl()),
+                binary(event.getResponsePayloadType()),
+                event.hasHttpStatus() ? event.getHttpStatusAsInt() : -1,
+                event.getResponsePayloadSha1() == null ? null : Binary.fromConstantByteArray(event.getResponsePayloadSha1()),
+                event.getResponseLength(), event.getResponsePosition(), binary(event.getFilename()),
+                binary(event.getRedirect()));
+    }
+
+    private static Binary binary(String value) {
+        return value == null ? null : Binary.fromString(value);
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    private void appendByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void appendAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void appendRaw(Binary value) {
+        ByteBuffer bytes = value.toByteBuffer();
+        int length = bytes.remaining();
+        ensureCapacity(length);
+        bytes.get(buffer, size, length);
+        size += length;
+    }
+
+    private void appendJsonString(Binary value) {
+        if (value == null) {
+            appendAscii("null");
+            return;
+        }
+        ByteBuffer bytes = value.toByteBuffer();
+        ensureCapacity(bytes.remaining() + 2);
+        buffer[size++] = '"';
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (b == '"' || b == '\\') {
+                ensureCapacity(2 + bytes.remaining() + 1);
+                buffer[size++] = '\\';
+                buffer[size++] = b;
+            } else if (b >= 0 && b < 0x20) {
+                ensureCapacity(6 + bytes.remaining() + 1);
+                buffer[size++] = '\\';
+                buffer[size++] = 'u';
+                buffer[size++] = '0';
+                buffer[size++] = '0';
+                buffer[size++] = HEX[b >> 4];
+                buffer[size++] = HEX[b & 0xf];
+            } else {
+                buffer[size++] = b;
+            }
+        }
+        ensureCapacity(1);
+        buffer[size++] = '"';
+    }
+
+    private void appendLong(long value) {
+        if (value < 0) {
+            appendByte('-');
+            value = -value;
+        }
+        ensureCapacity(19);
+        int start = size;
+        do {
+            buffer[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    private void appendDigits(int value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            buffer[size + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += width;
+    }
+
+    /**
+     * Appends a 14 digit yyyyMMddHHmmss timestamp in UTC.
+     */
+    private void appendTimestamp(long epochMillis) {
+        long days = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        int secondOfDay = (int) (Math.floorMod(epochMillis, MILLIS_PER_DAY) / 1000);
+
+        // civil date from days since epoch (Howard Hinnant's algorithm)
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        ensureCapacity(14);
+        appendDigits(year, 4);
+        appendDigits(month, 2);
+        appendDigits(day, 2);
+        appendDigits(secondOfDay / 3600, 2);
+        appendDigits(secondOfDay / 60 % 60, 2);
+        appendDigits(secondOfDay % 60, 2);
+    }
+
+    private void appendBase32(Binary value) {
+        ByteBuffer bytes = value.toByteBuffer();
+        ensureCapacity((bytes.remaining() * 8 + 4) / 5);
+        int bits = 0;
+        int bitCount = 0;
+        while (bytes.hasRemaining()) {
+            bits = (bits << 8) | (bytes.get() & 0xff);
+            bitCount += 8;
+            while (bitCount >= 5) {
+                buffer[size++] = BASE32[(bits >> (bitCount - 5)) & 31];
+                bitCount -= 5;
+            }
+        }
+        if (bitCount > 0) {
+            buffer[size++] = BASE32[(bits << (5 - bitCount)) & 31];
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Records which inputs of a part file conversion have been sealed into finished part files. The checkpoint is a text
+ * file with one tab separated line per input:
+ * <pre>
+ * part-number  part-file  end  input
+ * </pre>
+ * where end is "eof" once the whole input has been converted or, when following a growing input, the offset the next
+ * part starts reading from followed by a comma separated list of the ids of records after the offset that belong to
+ * captures already written. Lines without an end field, written by older versions, mean "eof". An end of "failed"
+ * records an input that couldn't be read; it is skipped on resume and its part number is reused.
+ * <p>
+ * Lines are added only after the part file and its companions have been closed, so a part is complete if and only if
+ * it appears in the checkpoint. Parts missing from the checkpoint were interrupted and are rewritten on resume. Each
+ * commit writes the whole checkpoint to a temporary file, forces it to disk and renames it over the old one, so a crash
+ * leaves either the old or the new checkpoint and never a torn line.
+ */
+class Checkpoint {
+    private final Path path;
+    private final StringBuilder contents = new StringBuilder();
+    private final Set<String> completedInputs = new HashSet<>();
+    private final Set<String> failedInputs = new HashSet<>();
+    private final Map<String, Long> resumeOffsets = new HashMap<>();
+    private final Map<String, Set<UUID>> resumeSkippedRecords = new HashMap<>();
+    private final List<String> parts = new ArrayList<>();
+    private int nextPart = 1;
+
+    private Checkpoint(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the checkpoint path for an output, e.g. crawl.parquet -> crawl.parquet.checkpoint
+     */
+    static Path pathFor(Path output) {
+        return output.resolveSibling(output.getFileName() + ".checkpoint");
+    }
+
+    /**
+     * Opens the checkpoint. Unless resuming, it is an error for the checkpoint to already exist.
+     */
+    static Checkpoint open(Path path, boolean resume) throws IOException {
+        var checkpoint = new Checkpoint(path);
+        if (Files.exists(path)) {
+            if (!resume) {
+                throw new IOException("Checkpoint " + path + " already exists, use --resume to continue it");
+            }
+            checkpoint.load();
+        }
+        return checkpoint;
+    }
+
+    private void load() throws IOException {
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t", 4);
+            if (fields.length == 3) fields = new String[]{fields[0], fields[1], "eof", fields[2]};
+            if (fields.length != 4) throw new IOException("Corrupt checkpoint line in " + path + ": " + line);
+            contents.append(line).append('\n');
+            if (fields[2].equals("failed")) {
+                failedInputs.add(fields[3]);
+                continue;
+            }
+            int part = Integer.parseInt(fields[0]);
+            if (!parts.contains(fields[1])) parts.add(fields[1]);
+            if (fields[2].equals("eof")) {
+                completedInputs.add(fields[3]);
+            } else {
+                String[] end = fields[2].split(",");
+                long offset = Long.parseLong(end[0]);
+                if (offset >= resumeOffset(fields[3])) {
+                    var skipped = new HashSet<UUID>();
+                    for (int i = 1; i < end.length; i++) {
+                        skipped.add(UUID.fromString(end[i]));
+                    }
+                    resumeOffsets.put(fields[3], offset);
+                    resumeSkippedRecords.put(fields[3], skipped);
+                }
+            }
+            nextPart = Math.max(nextPart, part + 1);
+        }
+    }
+
+    boolean isCompleted(String input) {
+        return completedInputs.contains(input);
+    }
+
+    boolean isFailed(String input) {
+        return failedInputs.contains(input);
+    }
+
+    /**
+     * The offset to continue reading a partly converted input from, or 0 if none of it has been converted.
+     */
+    long resumeOffset(String input) {
+        return resumeOffsets.getOrDefault(input, 0L);
+    }
+
+    /**
+     * The ids of the records after the resume offset that belong to captures already written.
+     */
+    Set<UUID> resumeSkippedRecords(String input) {
+        return resumeSkippedRecords.getOrDefault(input, Set.of());
+    }
+
+    /**
+     * The number to use for the next part file.
+     */
+    int nextPart() {
+        return nextPart;
+    }
+
+    /**
+     * The file names of the completed parts, in order.
+     */
+    List<String> parts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * Records that a part file holding the given inputs has been sealed.
+     */
+    void commit(int part, Path partFile, List<String> inputs) throws IOException {
+        var sb = new StringBuilder();
+        for (String input : inputs) {
+            appendLine(sb, part, partFile, "eof", input);
+        }
+        append(sb);
+        parts.add(partFile.getFileName().toString());
+        completedInputs.addAll(inputs);
+        nextPart = Math.max(nextPart, part + 1);
+    }
+
+    /**
+     * Records that a part file holding an input up to the given offset, apart from the records with the given ids,
+     * has been sealed.
+     */
+    void commit(int part, Path partFile, String input, long offset, Set<UUID> skippedRecords) throws IOException {
+        var end = new StringBuilder().append(offset);
+        for (UUID id : skippedRecords) {
+            end.append(',').append(id);
+        }
+        var sb = new StringBuilder();
+        appendLine(sb, part, partFile, end.toString(), input);
+        append(sb);
+        parts.add(partFile.getFileName().toString());
+        resumeOffsets.put(input, offset);
+        resumeSkippedRecords.put(input, skippedRecords);
+        nextPart = Math.max(nextPart, part + 1);
+    }
+
+    /**
+     * Records that an input couldn't be read and was left out of the given part.
+     */
+    void fail(int part, Path partFile, String input) throws IOException {
+        var sb = new StringBuilder();
+        appendLine(sb, part, partFile, "failed", input);
+        append(sb);
+        failedInputs.add(input);
+    }
+
+    private static void appendLine(StringBuilder sb, int part, Path partFile, String end, String input) {
+        if (input.indexOf('\n') >= 0) throw new IllegalArgumentException("Input name contains newline: " + input);
+        sb.append(part).append('\t').append(partFile.getFileName()).append('\t').append(end).append('\t')
+                .append(input).append('\n');
+    }
+
+    private void append(CharSequence lines) throws IOException {
+        var buffer = ByteBuffer.wrap((contents + lines.toString()).getBytes(StandardCharsets.UTF_8));
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        contents.append(lines);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.column.ColumnReader;
+import org.apache.parquet.column.impl.ColumnReadStoreImpl;
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.Converter;
+import org.apache.parquet.io.api.GroupConverter;
+import org.apache.parquet.io.api.PrimitiveConverter;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.Type;
+import org.netpreserve.warcquet.util.PathInputFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Reads a projection of the top-level warcquet columns from a single row group, row by row, without assembling
+ * records. Columns that are missing from the file are treated as always null.
+ * <p>
+ * Values can be read directly with the typed getters or pushed to a per-column converter with
+ * {@link #writeValue(int)}. Converters which report dictionary support receive dictionary ids for dictionary encoded
+ * pages instead of decoded values.
+ */
+class ColumnScanner {
+    private static final PrimitiveConverter NO_OP_CONVERTER = new PrimitiveConverter() {
+    };
+
+    private final ColumnReader[] readers;
+    private final int[] maxDefinitionLevels;
+    private final long rowCount;
+    private long row;
+
+    /**
+     * Opens a file with only the given columns requested. Reading row groups from the returned reader will then only
+     * fetch those column chunks.
+     */
+    static ParquetFileReader open(Path path, String... columns) throws IOException {
+        var reader = ParquetFileReader.open(new PathInputFile(path));
+        try {
+            reader.setRequestedSchema(projection(reader.getFileMetaData().getSchema(), columns));
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    static MessageType projection(MessageType fileSchema, String... columns) {
+        var fields = new ArrayList<Type>();
+        for (String column : columns) {
+            if (fileSchema.containsField(column)) {
+                fields.add(fileSchema.getType(column));
+            }
+        }
+        return new MessageType(fileSchema.getName(), fields);
+    }
+
+    /**
+     * @param converters per-column converters used by {@link #writeValue(int)}, may be null or contain nulls
+     */
+    ColumnScanner(ParquetFileReader reader, PageReadStore rowGroup, String[] columns, PrimitiveConverter[] converters) {
+        MessageType schema = projection(reader.getFileMetaData().getSchema(), columns);
+        Converter[] fieldConverters = new Converter[schema.getFieldCount()];
+        for (int i = 0; i < fieldConverters.length; i++) {
+            fieldConverters[i] = NO_OP_CONVERTER;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (converters != null && converters[i] != null && schema.containsField(columns[i])) {
+                fieldConverters[schema.getFieldIndex(columns[i])] = converters[i];
+            }
+        }
+        var store = new ColumnReadStoreImpl(rowGroup, new GroupConverter() {
+            @Override
+            public Converter getConverter(int fieldIndex) {
+                return fieldConverters[fieldIndex];
+            }
+
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public void end() {
+            }
+        }, schema, reader.getFileMetaData().getCreatedBy());
+
+        this.readers = new ColumnReader[columns.length];
+        this.maxDefinitionLevels = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (!schema.containsField(columns[i])) continue;
+            var descriptor = schema.getColumnDescription(new String[]{columns[i]});
+            readers[i] = store.getColumnReader(descriptor);
+            maxDefinitionLevels[i] = descriptor.getMaxDefinitionLevel();
+        }
+        this.rowCount = rowGroup.getRowCount();
+    }
+
+    long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Advances to the next row. Must be called before reading the first row.
+     */
+    boolean nextRow() {
+        if (row >= rowCount) return false;
+        if (row > 0) {
+            for (int i = 0; i < readers.length; i++) {
+                ColumnReader reader = readers[i];
+                if (reader == null) continue;
+                // values that weren't read must be skipped or the column falls out of step with the others
+                if (reader.getCurrentDefinitionLevel() == maxDefinitionLevels[i]) reader.skip();
+                reader.consume();
+            }
+        }
+        row++;
+        return true;
+    }
+
+    boolean isNull(int column) {
+        ColumnReader reader = readers[column];
+        return reader == null || reader.getCurrentDefinitionLevel() < maxDefinitionLevels[column];
+    }
+
+    int getInteger(int column) {
+        return readers[column].getInteger();
+    }
+
+    long getLong(int column) {
+        return readers[column].getLong();
+    }
+
+    Binary getBinary(int column) {
+        return readers[column].getBinary();
+    }
+
+    /**
+     * Pushes the current value of a non-null column to its converter.
+     */
+    void writeValue(int column) {
+        readers[column].writeCurrentValueToConverter();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import jdk.jfr.FlightRecorder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and stage timings for a conversion. Updates are LongAdder increments and the stage timings cost two
+ * System.nanoTime() calls per record or buffer, so the metrics are always collected.
+ * <p>
+ * They can be read directly, as a periodic {@code key=value} log line (see {@link #startLogging(PrintStream, long)})
+ * and, once {@link #register(String)} has been called, through JMX and as the periodic JFR event
+ * {@code org.netpreserve.warcquet.ConversionMetrics}.
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder captures = new LongAdder();
+    private final LongAdder decompressionNanos = new LongAdder();
+    private final LongAdder headerParsingNanos = new LongAdder();
+    private final LongAdder hashingNanos = new LongAdder();
+    private final LongAdder surtNanos = new LongAdder();
+    private final LongAdder encodingNanos = new LongAdder();
+    private final Map<String, LongAdder> parseErrors = new ConcurrentHashMap<>();
+    private volatile long writerBufferedBytes;
+    private final Runnable jfrHook = this::emitJfrEvent;
+    private String name;
+    private ObjectName objectName;
+
+    void addRecord(long length) {
+        records.increment();
+        bytes.add(length);
+    }
+
+    void addCapture() {
+        captures.increment();
+    }
+
+    void addDecompressionTime(long nanos) {
+        decompressionNanos.add(nanos);
+    }
+
+    void addHeaderParsingTime(long nanos) {
+        headerParsingNanos.add(nanos);
+    }
+
+    void addHashingTime(long nanos) {
+        hashingNanos.add(nanos);
+    }
+
+    void addSurtTime(long nanos) {
+        surtNanos.add(nanos);
+    }
+
+    void addEncodingTime(long nanos) {
+        encodingNanos.add(nanos);
+    }
+
+    void setWriterBufferedBytes(long writerBufferedBytes) {
+        this.writerBufferedBytes = writerBufferedBytes;
+    }
+
+    /**
+     * Counts a parse error. The type names what was being parsed, e.g. "http_response" or "payload_type".
+     */
+    void addParseError(String type) {
+        parseErrors.computeIfAbsent(type, k -> new LongAdder()).increment();
+        var event = new ParseErrorEvent();
+        if (event.shouldCommit()) {
+            event.type = type;
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds the counts and timings of another conversion, such as a finished job, to these metrics.
+     */
+    void add(ConversionMetrics other) {
+        records.add(other.records.sum());
+        bytes.add(other.bytes.sum());
+        captures.add(other.captures.sum());
+        decompressionNanos.add(other.decompressionNanos.sum());
+        headerParsingNanos.add(other.headerParsingNanos.sum());
+        hashingNanos.add(other.hashingNanos.sum());
+        surtNanos.add(other.surtNanos.sum());
+        encodingNanos.add(other.encodingNanos.sum());
+        other.parseErrors.forEach((type, count) ->
+                parseErrors.computeIfAbsent(type, k -> new LongAdder()).add(count.sum()));
+    }
+
+    @Override
+    public long getRecords() {
+        return records.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getCaptures() {
+        return captures.sum();
+    }
+
+    @Override
+    public double getRecordsPerSecond() {
+        return getRecords() / elapsedSeconds();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return getBytes() / elapsedSeconds();
+    }
+
+    @Override
+    public double getCapturesPerSecond() {
+        return getCaptures() / elapsedSeconds();
+    }
+
+    @Override
+    public long getDecompressionMillis() {
+        return decompressionNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getHeaderParsingMillis() {
+        return headerParsingNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getHashingMillis() {
+        return hashingNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getSurtMillis() {
+        return surtNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getEncodingMillis() {
+        return encodingNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getWriterBufferedBytes() {
+        return writerBufferedBytes;
+    }
+
+    @Override
+    public Map<String, Long> getParseErrors() {
+        var map = new TreeMap<String, Long>();
+        parseErrors.forEach((type, count) -> map.put(type, count.sum()));
+        return map;
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(1, System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * Registers the platform MBean org.netpreserve.warcquet:type=ConversionMetrics,name=NAME and starts emitting the
+     * periodic JFR event. Call {@link #close()} to undo.
+     */
+    public void register(String name) {
+        try {
+            objectName = new ObjectName("org.netpreserve.warcquet:type=ConversionMetrics,name=" +
+                    ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to register metrics MBean", e);
+        }
+        this.name = name;
+        FlightRecorder.addPeriodicEvent(ConversionMetricsEvent.class, jfrHook);
+    }
+
+    /**
+     * Prints a line of metrics every interval on a daemon thread. Returns the executor so it can be shut down.
+     */
+    public ScheduledExecutorService startLogging(PrintStream out, long intervalSeconds) {
+        var executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "warcquet-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> out.println(toLogLine()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+        return executor;
+    }
+
+    /**
+     * Formats the metrics as a single line of space separated key=value pairs.
+     */
+    public String toLogLine() {
+        var sb = new StringBuilder("warcquet-metrics");
+        sb.append(" records=").append(getRecords());
+        sb.append(" bytes=").append(getBytes());
+        sb.append(" captures=").append(getCaptures());
+        sb.append(String.format(" records_per_sec=%.1f bytes_per_sec=%.1f captures_per_sec=%.1f",
+                getRecordsPerSecond(), getBytesPerSecond(), getCapturesPerSecond()));
+        sb.append(" decompression_ms=").append(getDecompressionMillis());
+        sb.append(" header_parsing_ms=").append(getHeaderParsingMillis());
+        sb.append(" hashing_ms=").append(getHashingMillis());
+        sb.append(" surt_ms=").append(getSurtMillis());
+        sb.append(" encoding_ms=").append(getEncodingMillis());
+        sb.append(" writer_buffered_bytes=").append(getWriterBufferedBytes());
+        getParseErrors().forEach((type, count) -> sb.append(" parse_errors.").append(type).append('=').append(count));
+        return sb.toString();
+    }
+
+    private void emitJfrEvent() {
+        var event = new ConversionMetricsEvent();
+        event.name = name;
+        event.records = getRecords();
+        event.bytes = getBytes();
+        event.captures = getCaptures();
+        event.recordsPerSecond = getRecordsPerSecond();
+        event.bytesPerSecond = getBytesPerSecond();
+        event.decompressionMillis = getDecompressionMillis();
+        event.headerParsingMillis = getHeaderParsingMillis();
+        event.hashingMillis = getHashingMillis();
+        event.surtMillis = getSurtMillis();
+        event.encodingMillis = getEncodingMillis();
+        event.writerBufferedBytes = getWriterBufferedBytes();
+        long errors = 0;
+        for (LongAdder count : parseErrors.values()) errors += count.sum();
+        event.parseErrors = errors;
+        event.commit();
+    }
+
+    /**
+     * Unregisters the MBean and the periodic JFR event.
+     */
+    public void close() {
+        if (objectName == null) return;
+        FlightRecorder.removePeriodicEvent(jfrHook);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // already gone
+        }
+        objectName = null;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import jdk.jfr.*;
+
+@Name("org.netpreserve.warcquet.ConversionMetrics")
+@Label("Warcquet Conversion Metrics")
+@Category("Warcquet")
+@Period("10 s")
+@StackTrace(false)
+class ConversionMetricsEvent extends Event {
+    @Label("Name")
+    String name;
+
+    @Label("Records")
+    long records;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Captures")
+    long captures;
+
+    @Label("Records per Second")
+    double recordsPerSecond;
+
+    @Label("Bytes per Second")
+    @DataAmount
+    double bytesPerSecond;
+
+    @Label("Decompression Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long decompressionMillis;
+
+    @Label("Header Parsing Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long headerParsingMillis;
+
+    @Label("Hashing Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long hashingMillis;
+
+    @Label("SURT Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long surtMillis;
+
+    @Label("Parquet Encoding Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long encodingMillis;
+
+    @Label("Writer Buffered Bytes")
+    @DataAmount
+    long writerBufferedBytes;
+
+    @Label("Parse Errors")
+    long parseErrors;
+}
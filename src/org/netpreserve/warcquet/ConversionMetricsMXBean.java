@@ -0,0 +1,39 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ConversionMetrics}. Times are cumulative across all threads.
+ */
+public interface ConversionMetricsMXBean {
+    long getRecords();
+
+    long getBytes();
+
+    long getCaptures();
+
+    double getRecordsPerSecond();
+
+    double getBytesPerSecond();
+
+    double getCapturesPerSecond();
+
+    long getDecompressionMillis();
+
+    long getHeaderParsingMillis();
+
+    long getHashingMillis();
+
+    long getSurtMillis();
+
+    long getEncodingMillis();
+
+    long getWriterBufferedBytes();
+
+    Map<String, Long> getParseErrors();
+}
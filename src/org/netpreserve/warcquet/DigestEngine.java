@@ -0,0 +1,587 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import org.netpreserve.jwarc.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Computes a configured set of payload and block digests in a single pass over a record.
+ * <p>
+ * When block digests are wanted the record block is read exactly once, through a channel that feeds every byte to
+ * the block digests. The HTTP or Gemini header is parsed again from that same channel so the payload digests see the
+ * decoded payload (dechunked, as jwarc's own payload body is) as it streams past. Reads go into large buffers pooled
+ * across all engines in the JVM, so converters created per job don't each allocate their own. They are heap buffers
+ * because jwarc's gunzip channel inflates large reads straight into the destination's backing array.
+ * <p>
+ * Digests declared in the record's WARC-Payload-Digest and WARC-Block-Digest headers are trusted: when every requested
+ * digest is declared the body is skipped without hashing. In verify mode nothing is trusted: the declared digests are
+ * recomputed, in whatever algorithm they use, in the same pass as the requested ones and compared. An engine is not
+ * thread safe.
+ */
+class DigestEngine {
+    static final int BUFFER_SIZE = 1024 * 1024;
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final Digester[] NO_DIGESTERS = new Digester[0];
+
+    enum Algorithm {
+        SHA1("sha1", 20),
+        SHA256("sha256", 32),
+        /** 128-bit murmur3, a fast non-cryptographic hash for spotting duplicates. */
+        MURMUR3("murmur3", 16);
+
+        final String name;
+        final int length;
+
+        Algorithm(String name, int length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        /**
+         * Parses a comma separated list of algorithm names. "none" or an empty string gives an empty set.
+         */
+        static EnumSet<Algorithm> parseList(String list) {
+            var set = EnumSet.noneOf(Algorithm.class);
+            if (list.isEmpty() || list.equals("none")) return set;
+            outer:
+            for (String name : list.split(",")) {
+                for (Algorithm algorithm : values()) {
+                    if (algorithm.name.equalsIgnoreCase(name.trim())) {
+                        set.add(algorithm);
+                        continue outer;
+                    }
+                }
+                throw new IllegalArgumentException("unknown digest algorithm: " + name);
+            }
+            return set;
+        }
+
+        private Digester newDigester() {
+            if (this == MURMUR3) return new HasherDigester();
+            try {
+                return new MessageDigester(MessageDigest.getInstance(this == SHA1 ? "SHA-1" : "SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * The outcome of checking a declared digest.
+     */
+    enum Verification {
+        OK, MISMATCH, TRUNCATED, MISSING, UNSUPPORTED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Algorithm[] payloadAlgorithms;
+    private final Algorithm[] blockAlgorithms;
+    private final Digester[] payloadDigesters;
+    private final Digester[] blockDigesters;
+    private final byte[][] payloadDigests = new byte[Algorithm.values().length][];
+    private final byte[][] blockDigests = new byte[Algorithm.values().length][];
+    private long payloadLength;
+    private boolean bodyRead;
+    private boolean truncated;
+    private ConversionMetrics metrics;
+    private Consumer<ByteBuffer> payloadTee;
+    private boolean verify;
+    private final Map<String, Digester> checkDigesters = new HashMap<>();
+    private final Check payloadCheck = new Check();
+    private final Check blockCheck = new Check();
+
+    DigestEngine(Set<Algorithm> payloadAlgorithms, Set<Algorithm> blockAlgorithms) {
+        this.payloadAlgorithms = payloadAlgorithms.toArray(new Algorithm[0]);
+        this.blockAlgorithms = blockAlgorithms.toArray(new Algorithm[0]);
+        this.payloadDigesters = Arrays.stream(this.payloadAlgorithms).map(Algorithm::newDigester)
+                .toArray(Digester[]::new);
+        this.blockDigesters = Arrays.stream(this.blockAlgorithms).map(Algorithm::newDigester)
+                .toArray(Digester[]::new);
+    }
+
+    /**
+     * Returns a new engine with the same settings, for use on another thread.
+     */
+    DigestEngine copy() {
+        var copy = new DigestEngine(Set.of(payloadAlgorithms), Set.of(blockAlgorithms));
+        copy.verify = verify;
+        return copy;
+    }
+
+    /**
+     * Recompute and check declared digests instead of trusting them.
+     */
+    void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Reads a record's block, computing its digests. The payload, if the record has one, must not have been read yet
+     * and block digests are only computed if includeBlock is true. If payloadTee is not null it is also passed each
+     * buffer of the payload as it is read, even when the digests are declared.
+     */
+    void digest(WarcRecord record, WarcPayload payload, boolean includeBlock, ConversionMetrics metrics,
+                Consumer<ByteBuffer> payloadTee) throws IOException {
+        this.metrics = metrics;
+        this.payloadTee = payload == null ? null : payloadTee;
+        Arrays.fill(payloadDigests, null);
+        Arrays.fill(blockDigests, null);
+        payloadLength = 0;
+        bodyRead = false;
+        truncated = false;
+        for (Digester digester : this.payloadDigesters) digester.reset();
+        for (Digester digester : this.blockDigesters) digester.reset();
+        payloadCheck.reset(verify && payload != null, payload == null ? null : payload.digest().orElse(null));
+        blockCheck.reset(verify && includeBlock, record.blockDigest().orElse(null));
+        Digester[] payloadDigesters = payloadCheck.with(this.payloadDigesters, payloadAlgorithms);
+        Digester[] blockDigesters = blockCheck.with(this.blockDigesters, blockAlgorithms);
+        boolean block = includeBlock && blockDigesters.length > 0;
+
+        if (!verify && allDeclared(record, payload, block)) {
+            if (payload == null) return;
+            bodyRead = true;
+            if (this.payloadTee != null) {
+                ByteBuffer buffer = acquireBuffer();
+                try {
+                    readPayload(payload.body(), NO_DIGESTERS, buffer, true);
+                } finally {
+                    releaseBuffer(buffer);
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                payload.body().consume();
+            } catch (EOFException e) {
+                truncated = true;
+            } finally {
+                metrics.addDecompressionTime(System.nanoTime() - start);
+            }
+            payloadLength = payload.body().position();
+            return;
+        }
+
+        if (!block && payload == null) {
+            payloadCheck.finish(payloadDigests, false);
+            blockCheck.finish(blockDigests, false);
+            return;
+        }
+        bodyRead = true;
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            if (block) {
+                var blockChannel = new BlockChannel(record.body(), blockDigesters);
+                if (payload != null) {
+                    readPayload(payloadChannel(record, blockChannel), payloadDigesters, buffer, false);
+                }
+                while (!truncated) {
+                    buffer.clear();
+                    if (read(blockChannel, buffer, false) < 0) break;
+                }
+                finish(blockAlgorithms, blockDigesters, blockDigests);
+            } else {
+                readPayload(payload.body(), payloadDigesters, buffer, true);
+            }
+            if (payload != null) finish(payloadAlgorithms, payloadDigesters, payloadDigests);
+        } finally {
+            releaseBuffer(buffer);
+        }
+        payloadCheck.finish(payloadDigests, truncated);
+        blockCheck.finish(blockDigests, truncated);
+    }
+
+    /**
+     * Records the declared digests, returning true if they cover every digest requested.
+     */
+    private boolean allDeclared(WarcRecord record, WarcPayload payload, boolean block) {
+        boolean all = true;
+        if (payload != null) {
+            WarcDigest declared = payload.digest().orElse(null);
+            for (Algorithm algorithm : payloadAlgorithms) {
+                payloadDigests[algorithm.ordinal()] = declaredBytes(declared, algorithm);
+                if (payloadDigests[algorithm.ordinal()] == null) all = false;
+            }
+        }
+        if (block) {
+            WarcDigest declared = record.blockDigest().orElse(null);
+            for (Algorithm algorithm : blockAlgorithms) {
+                blockDigests[algorithm.ordinal()] = declaredBytes(declared, algorithm);
+                if (blockDigests[algorithm.ordinal()] == null) all = false;
+            }
+        }
+        return all;
+    }
+
+    private static byte[] declaredBytes(WarcDigest declared, Algorithm algorithm) {
+        if (declared == null || !declared.algorithm().equals(algorithm.name)) return null;
+        String raw = declared.raw();
+        return decodeDigest(raw.substring(raw.indexOf(':') + 1), algorithm.length);
+    }
+
+    /**
+     * Returns a channel over the payload that reads through the block channel.
+     */
+    private static ReadableByteChannel payloadChannel(WarcRecord record, BlockChannel blockChannel)
+            throws IOException {
+        MediaType type = record.contentType().base();
+        if (type.equals(MediaType.HTTP)) {
+            return record instanceof WarcRequest ? HttpRequest.parse(blockChannel).body() :
+                    HttpResponse.parse(blockChannel).body();
+        } else if (type.equals(MediaType.GEMINI)) {
+            return GeminiResponse.parse(blockChannel, ByteBuffer.allocate(8192).flip()).body();
+        }
+        return blockChannel;
+    }
+
+    private void readPayload(ReadableByteChannel channel, Digester[] digesters, ByteBuffer buffer, boolean timeReads)
+            throws IOException {
+        while (true) {
+            buffer.clear();
+            int n = read(channel, buffer, timeReads);
+            if (n < 0) break;
+            payloadLength += n;
+            buffer.flip();
+            if (payloadTee != null) payloadTee.accept(buffer.duplicate());
+            long start = System.nanoTime();
+            update(digesters, buffer);
+            metrics.addHashingTime(System.nanoTime() - start);
+        }
+    }
+
+    private int read(ReadableByteChannel channel, ByteBuffer buffer, boolean timed) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return channel.read(buffer);
+        } catch (EOFException e) {
+            truncated = true;
+            return -1;
+        } finally {
+            if (timed) metrics.addDecompressionTime(System.nanoTime() - start);
+        }
+    }
+
+    private static void update(Digester[] digesters, ByteBuffer buffer) {
+        int position = buffer.position();
+        for (Digester digester : digesters) {
+            buffer.position(position);
+            digester.update(buffer);
+        }
+    }
+
+    private static void finish(Algorithm[] algorithms, Digester[] digesters, byte[][] digests) {
+        for (int i = 0; i < algorithms.length; i++) {
+            digests[algorithms[i].ordinal()] = digesters[i].finish();
+        }
+    }
+
+    /**
+     * The payload digest from the last call to digest(), or null if it wasn't requested or the record has no payload.
+     */
+    byte[] payloadDigest(Algorithm algorithm) {
+        return payloadDigests[algorithm.ordinal()];
+    }
+
+    /**
+     * The block digest from the last call to digest(), or null if it wasn't requested.
+     */
+    byte[] blockDigest(Algorithm algorithm) {
+        return blockDigests[algorithm.ordinal()];
+    }
+
+    long payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Whether the last call to digest() read any of the record's body, so {@link #isTruncated()} is meaningful.
+     */
+    boolean bodyRead() {
+        return bodyRead;
+    }
+
+    /**
+     * Whether the record ended early. Digests of a truncated record cover only the bytes that were present.
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * In verify mode, the result of checking the declared payload digest, or null if there is no payload.
+     */
+    Verification payloadVerification() {
+        return payloadCheck.result;
+    }
+
+    /**
+     * In verify mode, the recomputed payload digest in the declared algorithm, e.g. "sha1:BASE32".
+     */
+    String actualPayloadDigest() {
+        return payloadCheck.actual;
+    }
+
+    /**
+     * In verify mode, the result of checking the declared block digest, or null if the block wasn't checked.
+     */
+    Verification blockVerification() {
+        return blockCheck.result;
+    }
+
+    /**
+     * In verify mode, the recomputed block digest in the declared algorithm.
+     */
+    String actualBlockDigest() {
+        return blockCheck.actual;
+    }
+
+    /**
+     * Decodes a declared digest value of the given length in bytes from base32, hex or base64. Returns null if it
+     * isn't valid in any of them. (jwarc's WarcDigest takes any value of hex length as hex, which misreads base32 md5s.)
+     */
+    static byte[] decodeDigest(String value, int length) {
+        String trimmed = value.trim();
+        String unpadded = trimmed.replace("=", "");
+        BaseEncoding[] encodings = {BaseEncoding.base32().omitPadding(), BaseEncoding.base16().omitPadding(),
+                BaseEncoding.base64().omitPadding()};
+        for (BaseEncoding encoding : encodings) {
+            String candidate = encoding == encodings[2] ? unpadded : unpadded.toUpperCase(Locale.ROOT);
+            if (!encoding.canDecode(candidate)) continue;
+            byte[] bytes = encoding.decode(candidate);
+            if (bytes.length == length) return bytes;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a digester for checking a declared digest's algorithm, or null if the JDK doesn't support it.
+     */
+    private Digester checkDigester(String algorithm) {
+        return checkDigesters.computeIfAbsent(algorithm, name -> {
+            try {
+                return new MessageDigester(WarcDigest.getDigester(name));
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        });
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = BUFFER_POOL.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        BUFFER_POOL.offer(buffer);
+    }
+
+    /**
+     * Checks one declared digest. A declared algorithm that is also being computed anyway is checked against that
+     * result, otherwise an extra digester is added for the record.
+     */
+    private class Check {
+        private boolean applicable;
+        private WarcDigest expected;
+        private Algorithm algorithm;
+        private Digester digester;
+        private Verification result;
+        private String actual;
+
+        void reset(boolean applicable, WarcDigest expected) {
+            this.applicable = applicable;
+            this.expected = applicable ? expected : null;
+            this.algorithm = null;
+            this.digester = null;
+            this.result = null;
+            this.actual = null;
+        }
+
+        /**
+         * Returns the digesters to run for this record: the configured ones plus any needed for the check.
+         */
+        Digester[] with(Digester[] digesters, Algorithm[] algorithms) {
+            if (expected == null) return digesters;
+            for (Algorithm algorithm : algorithms) {
+                if (algorithm.name.equals(expected.algorithm())) {
+                    this.algorithm = algorithm;
+                    return digesters;
+                }
+            }
+            digester = checkDigester(expected.algorithm());
+            if (digester == null) return digesters;
+            digester.reset();
+            Digester[] all = Arrays.copyOf(digesters, digesters.length + 1);
+            all[digesters.length] = digester;
+            return all;
+        }
+
+        void finish(byte[][] digests, boolean truncated) {
+            if (!applicable) return;
+            if (expected == null) {
+                result = Verification.MISSING;
+                return;
+            }
+            byte[] bytes;
+            if (algorithm != null) {
+                bytes = digests[algorithm.ordinal()];
+            } else if (digester != null) {
+                bytes = digester.finish();
+            } else {
+                result = Verification.UNSUPPORTED;
+                return;
+            }
+            if (bytes == null) {
+                // the body wasn't read, e.g. a payload digest declared on a record jwarc finds no payload in
+                result = Verification.UNSUPPORTED;
+                return;
+            }
+            actual = expected.algorithm() + ":" + BaseEncoding.base32().encode(bytes);
+            if (truncated) {
+                result = Verification.TRUNCATED;
+            } else {
+                String raw = expected.raw();
+                byte[] expectedBytes = decodeDigest(raw.substring(raw.indexOf(':') + 1), bytes.length);
+                result = Arrays.equals(expectedBytes, bytes) ? Verification.OK : Verification.MISMATCH;
+            }
+        }
+    }
+
+    /**
+     * The record block, feeding the block digests as it is read. It reports its position and size so jwarc sizes the
+     * payload of a parsed HTTP message by the rest of the block rather than by the Content-Length header.
+     */
+    private class BlockChannel implements LengthedBody.LengthedReadableByteChannel {
+        private final MessageBody body;
+        private final Digester[] digesters;
+        private final long size;
+        private long position;
+
+        BlockChannel(MessageBody body, Digester[] digesters) throws IOException {
+            this.body = body;
+            this.digesters = digesters;
+            this.position = body.position();
+            this.size = body.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            long readStart = System.nanoTime();
+            int n;
+            try {
+                n = body.read(dst);
+            } finally {
+                metrics.addDecompressionTime(System.nanoTime() - readStart);
+            }
+            if (n > 0) {
+                position += n;
+                long hashStart = System.nanoTime();
+                ByteBuffer view = dst.duplicate();
+                view.position(start).limit(start + n);
+                update(digesters, view);
+                metrics.addHashingTime(System.nanoTime() - hashStart);
+            }
+            return n;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return body.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    private interface Digester {
+        void update(ByteBuffer buffer);
+
+        void reset();
+
+        /**
+         * Returns the digest and resets for the next record.
+         */
+        byte[] finish();
+    }
+
+    private static class MessageDigester implements Digester {
+        private final MessageDigest digest;
+
+        MessageDigester(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            digest.update(buffer);
+        }
+
+        @Override
+        public void reset() {
+            digest.reset();
+        }
+
+        @Override
+        public byte[] finish() {
+            return digest.digest();
+        }
+    }
+
+    private static class HasherDigester implements Digester {
+        private Hasher hasher = Hashing.murmur3_128().newHasher();
+        private boolean dirty;
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            hasher.putBytes(buffer);
+            dirty = true;
+        }
+
+        @Override
+        public void reset() {
+            if (!dirty) return;
+            hasher = Hashing.murmur3_128().newHasher();
+            dirty = false;
+        }
+
+        @Override
+        public byte[] finish() {
+            byte[] bytes = hasher.hash().asBytes();
+            hasher = Hashing.murmur3_128().newHasher();
+            dirty = false;
+            return bytes;
+        }
+    }
+}
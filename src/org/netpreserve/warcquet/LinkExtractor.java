@@ -0,0 +1,253 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.netpreserve.jwarc.DecodedBody;
+import org.netpreserve.jwarc.URIs;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Extracts the outlinks of the HTML payloads seen during a conversion. The converter tees each HTML payload into a
+ * {@link Tee} as it reads it for the digests, so the WARC is only read once, and the tee is then scanned by a
+ * {@link LinkScanner} on a worker thread while conversion carries on. The links are collected when the capture is
+ * emitted, by which time the reorder window has usually given the scan time to finish.
+ * <p>
+ * Memory is bounded: each tee keeps at most maxBytes of the (possibly content-encoded) payload, and the converter
+ * blocks once 4 documents per worker are waiting to be scanned.
+ */
+class LinkExtractor implements Closeable {
+    static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    static final int DEFAULT_MAX_LINKS = 10_000;
+    private static final int INITIAL_TEE_SIZE = 64 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxBytes;
+    private final int maxLinks;
+
+    static class Link {
+        final String type;
+        final String url;
+        final String surt;
+
+        Link(String type, String url, String surt) {
+            this.type = type;
+            this.url = url;
+            this.surt = surt;
+        }
+    }
+
+    LinkExtractor(int threads, int maxBytes, int maxLinks) {
+        var threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "warcquet-links-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.permits = new Semaphore(threads * 4);
+        this.maxBytes = maxBytes;
+        this.maxLinks = maxLinks;
+    }
+
+    static boolean isHtml(String payloadType) {
+        return "text/html".equals(payloadType) || "application/xhtml+xml".equals(payloadType);
+    }
+
+    /**
+     * Returns a tee to pass the payload of the given capture through.
+     *
+     * @param contentEncoding the HTTP Content-Encoding of the payload, or null
+     */
+    Tee tee(String url, String contentEncoding) {
+        return new Tee(url, contentEncoding);
+    }
+
+    /**
+     * Starts scanning a filled tee for links, waiting if too many documents are already waiting.
+     */
+    Future<List<Link>> submit(Tee tee) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            return executor.submit(() -> {
+                try {
+                    return scan(tee);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private List<Link> scan(Tee tee) {
+        URI base;
+        try {
+            base = baseUri(URIs.parseLeniently(tee.url));
+        } catch (IllegalArgumentException e) {
+            return List.of();
+        }
+        var collector = new Collector(base);
+        var scanner = new LinkScanner(collector, maxLinks);
+        try (ReadableByteChannel channel = decode(tee)) {
+            if (channel == null) return collector.links;
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            while (!scanner.isDone() && channel.read(buffer) >= 0) {
+                scanner.feed(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            // a truncated or corrupt body: keep the links found so far
+        }
+        return collector.links;
+    }
+
+    /**
+     * Returns a channel over the decoded payload, or null if the content encoding isn't supported.
+     */
+    private static ReadableByteChannel decode(Tee tee) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(tee.bytes, 0, tee.length));
+        if (tee.contentEncoding == null) return channel;
+        switch (tee.contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "":
+            case "identity":
+                return channel;
+            case "gzip":
+            case "x-gzip":
+                return DecodedBody.create(channel, DecodedBody.Encoding.GZIP);
+            case "deflate":
+                return DecodedBody.create(channel, DecodedBody.Encoding.DEFLATE);
+            case "br":
+                return DecodedBody.create(channel, DecodedBody.Encoding.BROTLI);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Resolves a link against the base, dropping any fragment. Returns null for links that aren't to another
+     * document, like fragments or javascript: URIs, and for anything unparseable.
+     */
+    private static URI resolve(URI base, String value) {
+        if (value.isEmpty() || value.startsWith("#")) return null;
+        int colon = value.indexOf(':');
+        if (colon > 0) {
+            String scheme = value.substring(0, colon).toLowerCase(Locale.ROOT);
+            if (scheme.equals("javascript") || scheme.equals("mailto") || scheme.equals("data") ||
+                    scheme.equals("tel") || scheme.equals("about")) {
+                return null;
+            }
+        }
+        try {
+            // parseLeniently() rejects relative references containing spaces
+            URI target = base.resolve(URIs.parseLeniently(value.replace(" ", "%20")));
+            if (!target.isAbsolute()) return null;
+            if (target.getRawFragment() != null) {
+                String string = target.toString();
+                target = URI.create(string.substring(0, string.indexOf('#')));
+            }
+            return target;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * URI.resolve() drops the slash between the host and a relative path when the base has an empty path.
+     */
+    private static URI baseUri(URI uri) {
+        if (uri.getRawAuthority() != null && uri.getRawPath() != null && uri.getRawPath().isEmpty()) {
+            return uri.resolve("/");
+        }
+        return uri;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Resolves the scanned links, following any base element.
+     */
+    private static class Collector implements LinkScanner.LinkHandler {
+        private final List<Link> links = new ArrayList<>();
+        private URI base;
+
+        Collector(URI base) {
+            this.base = base;
+        }
+
+        @Override
+        public void link(String type, String value) {
+            URI target = resolve(base, value);
+            if (target == null) return;
+            if (type.equals("base")) {
+                base = baseUri(target);
+                return;
+            }
+            String url = target.toString();
+            String surt = null;
+            if (URIs.hasHttpOrHttpsScheme(url)) {
+                try {
+                    surt = URIs.toNormalizedSurt(url);
+                } catch (RuntimeException e) {
+                    // leave the SURT null
+                }
+            }
+            links.add(new Link(type, url, surt));
+        }
+    }
+
+    /**
+     * Collects up to maxBytes of a payload as it streams past. Not thread safe, but once submitted it is only read by
+     * the worker.
+     */
+    class Tee implements Consumer<ByteBuffer> {
+        private final String url;
+        private final String contentEncoding;
+        private byte[] bytes = new byte[INITIAL_TEE_SIZE];
+        private int length;
+
+        private Tee(String url, String contentEncoding) {
+            this.url = url;
+            this.contentEncoding = contentEncoding;
+        }
+
+        @Override
+        public void accept(ByteBuffer buffer) {
+            int n = Math.min(buffer.remaining(), maxBytes - length);
+            if (n <= 0) return;
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.min(maxBytes, Math.max(length + n, bytes.length * 2)));
+            }
+            buffer.get(bytes, length, n);
+            length += n;
+        }
+    }
+}
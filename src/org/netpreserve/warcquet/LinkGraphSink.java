@@ -0,0 +1,103 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Types;
+import org.netpreserve.warcquet.util.PathOutputFile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the links {@link LinkExtractor} found in each capture to an edge table, one row per link. Rows join to the
+ * capture table on response_uuid and are in capture order.
+ */
+class LinkGraphSink implements CaptureEventSink {
+    static final MessageType SCHEMA = Types.buildMessage()
+            .optional(PrimitiveType.PrimitiveTypeName.BINARY).named("response_uuid")
+            .optional(PrimitiveType.PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType())
+            .named("source_surt_key")
+            .optional(PrimitiveType.PrimitiveTypeName.INT64)
+            .as(LogicalTypeAnnotation.timestampType(true, LogicalTypeAnnotation.TimeUnit.MILLIS)).named("date")
+            .required(PrimitiveType.PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType())
+            .named("target_url")
+            .optional(PrimitiveType.PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType())
+            .named("target_surt_key")
+            .required(PrimitiveType.PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType())
+            .named("link_type")
+            .named("WarcquetLinks");
+
+    private final ParquetWriter<Group> writer;
+    private final SimpleGroupFactory factory = new SimpleGroupFactory(SCHEMA);
+
+    LinkGraphSink(Path path, CompressionCodecName compression) throws IOException {
+        this.writer = ExampleParquetWriter.builder(new PathOutputFile(path))
+                .withType(SCHEMA)
+                .withCompressionCodec(compression)
+                .build();
+    }
+
+    /**
+     * Returns the path of the edge table for a warcquet file, e.g. crawl.parquet -> crawl.links.parquet
+     */
+    static Path companionPath(Path output) {
+        String filename = output.getFileName().toString();
+        if (filename.endsWith(".parquet")) filename = filename.substring(0, filename.length() - ".parquet".length());
+        return output.resolveSibling(filename + ".links.parquet");
+    }
+
+    @Override
+    public void accept(CaptureEvent event) throws IOException {
+        if (!(event instanceof MutableCaptureEvent)) return;
+        Future<List<LinkExtractor.Link>> future = ((MutableCaptureEvent) event).getLinks();
+        if (future == null) return;
+        List<LinkExtractor.Link> links;
+        try {
+            links = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("link extraction failed for " + event.getUrl(), e.getCause());
+        }
+        if (links.isEmpty()) return;
+        Binary uuid = null;
+        if (event.hasResponseUUID()) {
+            uuid = Binary.fromConstantByteArray(ByteBuffer.allocate(16)
+                    .putLong(event.getResponseUUIDMostSignificantBits())
+                    .putLong(event.getResponseUUIDLeastSignificantBits())
+                    .array());
+        }
+        for (LinkExtractor.Link link : links) {
+            Group group = factory.newGroup();
+            if (uuid != null) group.append("response_uuid", uuid);
+            if (event.getSurtKey() != null) group.append("source_surt_key", event.getSurtKey());
+            if (event.hasDate()) group.append("date", event.getDateAsLong());
+            group.append("target_url", link.url);
+            if (link.surt != null) group.append("target_surt_key", link.surt);
+            writer.write(group.append("link_type", link.type));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
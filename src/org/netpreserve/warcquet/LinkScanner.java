@@ -0,0 +1,431 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A streaming scanner for the links in an HTML document. It tokenizes just enough of the markup to find start tags
+ * and their link attributes, fed a buffer at a time, so the document is never held in memory or parsed into a tree.
+ * Comments and the contents of script and style elements are skipped.
+ * <p>
+ * Memory use is fixed: attribute values longer than {@link #MAX_VALUE_LENGTH} bytes are dropped and scanning stops
+ * after the given number of links. Values are decoded as UTF-8 with the common character references unescaped.
+ */
+class LinkScanner {
+    static final int MAX_VALUE_LENGTH = 4096;
+    private static final int MAX_NAME_LENGTH = 16;
+
+    /**
+     * The attribute holding the link for each element of interest. The element name is reported as the link type.
+     * The meta element is handled separately for refresh links.
+     */
+    private static final Map<String, String> LINK_ATTRIBUTES = Map.ofEntries(
+            Map.entry("a", "href"),
+            Map.entry("area", "href"),
+            Map.entry("audio", "src"),
+            Map.entry("base", "href"),
+            Map.entry("embed", "src"),
+            Map.entry("form", "action"),
+            Map.entry("frame", "src"),
+            Map.entry("iframe", "src"),
+            Map.entry("img", "src"),
+            Map.entry("link", "href"),
+            Map.entry("object", "data"),
+            Map.entry("script", "src"),
+            Map.entry("source", "src"),
+            Map.entry("track", "src"),
+            Map.entry("video", "src"));
+    private static final byte[] END_SCRIPT = "</script".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_STYLE = "</style".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int TAG_NAME = 2;
+    private static final int BEFORE_ATTRIBUTE_NAME = 3;
+    private static final int ATTRIBUTE_NAME = 4;
+    private static final int AFTER_ATTRIBUTE_NAME = 5;
+    private static final int BEFORE_VALUE = 6;
+    private static final int DOUBLE_QUOTED_VALUE = 7;
+    private static final int SINGLE_QUOTED_VALUE = 8;
+    private static final int UNQUOTED_VALUE = 9;
+    private static final int MARKUP_DECLARATION = 10;
+    private static final int COMMENT = 11;
+    private static final int BOGUS = 12;
+    private static final int RAW_TEXT = 13;
+
+    private static final int IGNORE = 0;
+    private static final int LINK = 1;
+    private static final int HTTP_EQUIV = 2;
+    private static final int CONTENT = 3;
+
+    interface LinkHandler {
+        /**
+         * Called with the element name and the unresolved value of each link found.
+         */
+        void link(String type, String value);
+    }
+
+    private final LinkHandler handler;
+    private final int maxLinks;
+    private int links;
+    private int state = TEXT;
+    private final byte[] name = new byte[MAX_NAME_LENGTH];
+    private int nameLength;
+    private final byte[] value = new byte[MAX_VALUE_LENGTH];
+    private int valueLength;
+    private int valueTarget;
+    private String tagName;
+    private String tag;
+    private String linkAttribute;
+    private String linkValue;
+    private String httpEquiv;
+    private String content;
+    private int dashes;
+    private byte[] rawTextEnd;
+    private int rawTextMatched;
+
+    LinkScanner(LinkHandler handler, int maxLinks) {
+        this.handler = handler;
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * Whether the link limit has been reached, after which input is ignored.
+     */
+    boolean isDone() {
+        return links >= maxLinks;
+    }
+
+    void feed(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end && !isDone(); i++) {
+            byte b = buffer[i];
+            switch (state) {
+                case TEXT:
+                    if (b == '<') state = TAG_OPEN;
+                    break;
+                case TAG_OPEN:
+                    if (isLetter(b)) {
+                        nameLength = 0;
+                        appendName(b);
+                        state = TAG_NAME;
+                    } else if (b == '!') {
+                        dashes = 0;
+                        state = MARKUP_DECLARATION;
+                    } else if (b == '/' || b == '?') {
+                        state = BOGUS;
+                    } else if (b != '<') {
+                        state = TEXT;
+                    }
+                    break;
+                case TAG_NAME:
+                    if (isSpace(b) || b == '/') {
+                        startTag();
+                        state = BEFORE_ATTRIBUTE_NAME;
+                    } else if (b == '>') {
+                        startTag();
+                        endTag();
+                    } else {
+                        appendName(b);
+                    }
+                    break;
+                case BEFORE_ATTRIBUTE_NAME:
+                    if (b == '>') {
+                        endTag();
+                    } else if (!isSpace(b) && b != '/') {
+                        nameLength = 0;
+                        appendName(b);
+                        state = ATTRIBUTE_NAME;
+                    }
+                    break;
+                case ATTRIBUTE_NAME:
+                    if (isSpace(b)) {
+                        state = AFTER_ATTRIBUTE_NAME;
+                    } else if (b == '=') {
+                        state = BEFORE_VALUE;
+                    } else if (b == '>') {
+                        endTag();
+                    } else if (b == '/') {
+                        state = BEFORE_ATTRIBUTE_NAME;
+                    } else {
+                        appendName(b);
+                    }
+                    break;
+                case AFTER_ATTRIBUTE_NAME:
+                    if (b == '=') {
+                        state = BEFORE_VALUE;
+                    } else if (b == '>') {
+                        endTag();
+                    } else if (b == '/') {
+                        state = BEFORE_ATTRIBUTE_NAME;
+                    } else if (!isSpace(b)) {
+                        nameLength = 0;
+                        appendName(b);
+                        state = ATTRIBUTE_NAME;
+                    }
+                    break;
+                case BEFORE_VALUE:
+                    if (b == '"') {
+                        startValue();
+                        state = DOUBLE_QUOTED_VALUE;
+                    } else if (b == '\'') {
+                        startValue();
+                        state = SINGLE_QUOTED_VALUE;
+                    } else if (b == '>') {
+                        endTag();
+                    } else if (!isSpace(b)) {
+                        startValue();
+                        appendValue(b);
+                        state = UNQUOTED_VALUE;
+                    }
+                    break;
+                case DOUBLE_QUOTED_VALUE:
+                    if (b == '"') {
+                        endValue();
+                        state = BEFORE_ATTRIBUTE_NAME;
+                    } else {
+                        appendValue(b);
+                    }
+                    break;
+                case SINGLE_QUOTED_VALUE:
+                    if (b == '\'') {
+                        endValue();
+                        state = BEFORE_ATTRIBUTE_NAME;
+                    } else {
+                        appendValue(b);
+                    }
+                    break;
+                case UNQUOTED_VALUE:
+                    if (isSpace(b)) {
+                        endValue();
+                        state = BEFORE_ATTRIBUTE_NAME;
+                    } else if (b == '>') {
+                        endValue();
+                        endTag();
+                    } else {
+                        appendValue(b);
+                    }
+                    break;
+                case MARKUP_DECLARATION:
+                    if (b == '-' && ++dashes == 2) {
+                        dashes = 0;
+                        state = COMMENT;
+                    } else if (b == '>') {
+                        state = TEXT;
+                    } else if (b != '-') {
+                        state = BOGUS;
+                    }
+                    break;
+                case COMMENT:
+                    if (b == '-') {
+                        dashes++;
+                    } else if (b == '>' && dashes >= 2) {
+                        state = TEXT;
+                    } else {
+                        dashes = 0;
+                    }
+                    break;
+                case BOGUS:
+                    if (b == '>') state = TEXT;
+                    break;
+                case RAW_TEXT:
+                    if (toLower(b) == rawTextEnd[rawTextMatched]) {
+                        if (++rawTextMatched == rawTextEnd.length) state = BOGUS;
+                    } else {
+                        rawTextMatched = b == '<' ? 1 : 0;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    private void startTag() {
+        tagName = null;
+        tag = null;
+        linkAttribute = null;
+        linkValue = null;
+        httpEquiv = null;
+        content = null;
+        if (nameLength > 6) return; // longer than any element of interest
+        tagName = new String(name, 0, nameLength, StandardCharsets.US_ASCII);
+        if (tagName.equals("meta")) {
+            tag = tagName;
+        } else {
+            linkAttribute = LINK_ATTRIBUTES.get(tagName);
+            if (linkAttribute != null) tag = tagName;
+        }
+    }
+
+    private void endTag() {
+        if (tag != null) {
+            if (linkValue != null) {
+                emit(tag, linkValue);
+            } else if (httpEquiv != null && content != null && httpEquiv.equalsIgnoreCase("refresh")) {
+                String url = refreshUrl(content);
+                if (url != null) emit("refresh", url);
+            }
+        }
+        if ("script".equals(tagName)) {
+            rawTextEnd = END_SCRIPT;
+            rawTextMatched = 0;
+            state = RAW_TEXT;
+        } else if ("style".equals(tagName)) {
+            rawTextEnd = END_STYLE;
+            rawTextMatched = 0;
+            state = RAW_TEXT;
+        } else {
+            state = TEXT;
+        }
+        tagName = null;
+        tag = null;
+    }
+
+    private void emit(String type, String value) {
+        links++;
+        handler.link(type, value);
+    }
+
+    private void startValue() {
+        valueLength = 0;
+        valueTarget = IGNORE;
+        if (tag == null) return;
+        if (tag.equals("meta")) {
+            if (nameMatches("http-equiv")) {
+                valueTarget = HTTP_EQUIV;
+            } else if (nameMatches("content")) {
+                valueTarget = CONTENT;
+            }
+        } else if (linkValue == null && nameMatches(linkAttribute)) {
+            valueTarget = LINK;
+        }
+    }
+
+    private void appendValue(byte b) {
+        if (valueTarget == IGNORE) return;
+        if (valueLength == MAX_VALUE_LENGTH) {
+            valueTarget = IGNORE;
+            return;
+        }
+        value[valueLength++] = b;
+    }
+
+    private void endValue() {
+        if (valueTarget == IGNORE) return;
+        String string = unescape(new String(value, 0, valueLength, StandardCharsets.UTF_8)).trim();
+        if (valueTarget == LINK) {
+            linkValue = string;
+        } else if (valueTarget == HTTP_EQUIV) {
+            httpEquiv = string;
+        } else {
+            content = string;
+        }
+        valueTarget = IGNORE;
+    }
+
+    private void appendName(byte b) {
+        if (nameLength < MAX_NAME_LENGTH) {
+            name[nameLength] = toLower(b);
+        }
+        nameLength++;
+    }
+
+    private boolean nameMatches(String expected) {
+        if (nameLength != expected.length()) return false;
+        for (int i = 0; i < nameLength; i++) {
+            if (name[i] != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the URL from a meta refresh content value such as "5; url='/next'", or null if there isn't one.
+     */
+    static String refreshUrl(String content) {
+        int semicolon = content.indexOf(';');
+        if (semicolon < 0) semicolon = content.indexOf(',');
+        if (semicolon < 0) return null;
+        String rest = content.substring(semicolon + 1).trim();
+        if (rest.regionMatches(true, 0, "url", 0, 3)) {
+            String afterUrl = rest.substring(3).trim();
+            if (afterUrl.startsWith("=")) rest = afterUrl.substring(1).trim();
+        }
+        if (rest.length() >= 2 && (rest.charAt(0) == '\'' || rest.charAt(0) == '"')) {
+            int close = rest.indexOf(rest.charAt(0), 1);
+            rest = rest.substring(1, close < 0 ? rest.length() : close);
+        }
+        return rest.isEmpty() ? null : rest;
+    }
+
+    /**
+     * Unescapes numeric character references and the named ones likely to appear in URLs.
+     */
+    static String unescape(String s) {
+        int amp = s.indexOf('&');
+        if (amp < 0) return s;
+        var out = new StringBuilder(s.length());
+        out.append(s, 0, amp);
+        for (int i = amp; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int semicolon;
+            if (c != '&' || (semicolon = s.indexOf(';', i)) < 0 || semicolon - i > 10) {
+                out.append(c);
+                continue;
+            }
+            String entity = s.substring(i + 1, semicolon).toLowerCase(Locale.ROOT);
+            int codePoint = -1;
+            switch (entity) {
+                case "amp":
+                    codePoint = '&';
+                    break;
+                case "quot":
+                    codePoint = '"';
+                    break;
+                case "apos":
+                    codePoint = '\'';
+                    break;
+                case "lt":
+                    codePoint = '<';
+                    break;
+                case "gt":
+                    codePoint = '>';
+                    break;
+                default:
+                    if (entity.startsWith("#")) {
+                        try {
+                            codePoint = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16) :
+                                    Integer.parseInt(entity.substring(1));
+                        } catch (NumberFormatException e) {
+                            codePoint = -1;
+                        }
+                    }
+            }
+            if (codePoint < 0 || !Character.isValidCodePoint(codePoint)) {
+                out.append(c);
+            } else {
+                out.appendCodePoint(codePoint);
+                i = semicolon;
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
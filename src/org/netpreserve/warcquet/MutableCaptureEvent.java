@@ -5,6 +5,8 @@
 
 package org.netpreserve.warcquet;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.net.InternetDomainName;
 import org.netpreserve.jwarc.URIs;
 
@@ -12,33 +14,70 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.URI;
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
+/**
+ * A capture event whose numeric, date and UUID fields are stored as primitives. Which of the nullable ones are set
+ * is tracked in a bitmask, so building and writing an event doesn't box or allocate for them. The object getters
+ * and setters are kept as views over the primitive fields.
+ */
 public class MutableCaptureEvent implements CaptureEvent {
+    private static final int DATE = 1;
+    private static final int RESPONSE_UUID = 1 << 1;
+    private static final int RESPONSE_PAYLOAD_LENGTH = 1 << 2;
+    private static final int REQUEST_POSITION = 1 << 3;
+    private static final int REQUEST_LENGTH = 1 << 4;
+    private static final int REQUEST_UUID = 1 << 5;
+    private static final int REQUEST_PAYLOAD_LENGTH = 1 << 6;
+    private static final int REFERS_TO_DATE = 1 << 7;
+    private static final int REFERS_TO_UUID = 1 << 8;
+    private static final int HTTP_STATUS = 1 << 9;
+    private static final int IPV4 = 1 << 10;
+    private static final int RESPONSE_TRUNCATED = 1 << 11;
+
+    private int present;
     private String url;
-    private Instant date;
+    private long date;
     private String filename;
     private long responsePosition;
     private long responseLength;
     private String responseRecordType;
-    private UUID responseUUID;
+    private long responseUUIDMsb;
+    private long responseUUIDLsb;
     private String responsePayloadType;
-    private Long responsePayloadLength;
+    private long responsePayloadLength;
     private byte[] responsePayloadSha1;
-    private Long requestPosition;
-    private Long requestLength;
-    private UUID requestUUID;
+    private byte[] responsePayloadSha256;
+    private byte[] responsePayloadMurmur3;
+    private byte[] responseBlockSha1;
+    private byte[] responseBlockSha256;
+    private byte[] responseBlockMurmur3;
+    private String responsePayloadDigestStatus;
+    private String responsePayloadDigestActual;
+    private String responseBlockDigestStatus;
+    private String responseBlockDigestActual;
+    private boolean responseTruncated;
+    private Map<String, String> responseHeaders;
+    private long requestPosition;
+    private long requestLength;
+    private long requestUUIDMsb;
+    private long requestUUIDLsb;
     private String requestPayloadType;
-    private Long requestPayloadLength;
+    private long requestPayloadLength;
     private byte[] requestPayloadSha1;
+    private Map<String, String> requestHeaders;
 
     private String refersToUrl;
-    private Instant refersToDate;
-    private UUID refersToUUID;
-    private Integer httpStatus;
+    private long refersToDate;
+    private long refersToUUIDMsb;
+    private long refersToUUIDLsb;
+    private int httpStatus;
     private String httpMethod;
     private String via;
-    private Integer ipv4;
+    private int ipv4;
     private byte[] ipv6;
     private String redirect;
 
@@ -51,11 +90,34 @@ public class MutableCaptureEvent implements CaptureEvent {
     private String surtDomain;
     private String surtRegistry;
     private String hopsFromSeed;
+    private Future<List<LinkExtractor.Link>> links;
+
+    /**
+     * Public suffix lookups are slow relative to the rest of the conversion while hosts repeat heavily, so the results
+     * are shared by all converters in the JVM.
+     */
+    private static final Cache<String, String[]> HOST_SURTS = CacheBuilder.newBuilder()
+            .maximumSize(65536)
+            .build();
+    private static final String[] INVALID_HOST = new String[0];
 
     private static String surt(InternetDomainName name) {
         if (name == null) return null;
         return String.join(",", name.parts().reverse());
     }
+
+    private boolean has(int field) {
+        return (present & field) != 0;
+    }
+
+    private void set(int field, boolean value) {
+        if (value) {
+            present |= field;
+        } else {
+            present &= ~field;
+        }
+    }
+
     public void setUrl(String url) {
         this.url = url;
     }
@@ -66,21 +128,46 @@ public class MutableCaptureEvent implements CaptureEvent {
         URI uri = URIs.parseLeniently(url);
         String host = uri.getHost();
         if (host == null) return;
+        String[] hostSurts = HOST_SURTS.getIfPresent(host);
+        if (hostSurts == null) {
+            hostSurts = hostSurts(host);
+            HOST_SURTS.put(host, hostSurts);
+        }
+        if (hostSurts == INVALID_HOST) return;
+        if (hostSurts[0] != null) setSurtDomain(hostSurts[0]);
+        setSurtRegistry(hostSurts[1]);
+    }
+
+    /**
+     * Returns {surtDomain, surtRegistry} for a host, or INVALID_HOST.
+     */
+    private static String[] hostSurts(String host) {
         try {
             InternetDomainName domainName = InternetDomainName.from(host);
+            String domain = null;
             if (domainName.isUnderPublicSuffix()) {
-                setSurtDomain(surt(domainName.topPrivateDomain()));
+                domain = surt(domainName.topPrivateDomain());
             } else if (domainName.isUnderRegistrySuffix()) {
-                setSurtDomain(surt(domainName.topDomainUnderRegistrySuffix()));
+                domain = surt(domainName.topDomainUnderRegistrySuffix());
             }
-            setSurtRegistry(surt(domainName.registrySuffix()));
+            return new String[]{domain, surt(domainName.registrySuffix())};
         } catch (IllegalArgumentException e) {
             // just ignore invalid domains
+            return INVALID_HOST;
         }
     }
 
     public void setDate(Instant date) {
-        this.date = date;
+        set(DATE, date != null);
+        this.date = date == null ? 0 : date.toEpochMilli();
+    }
+
+    /**
+     * Sets the date in milliseconds since the epoch.
+     */
+    public void setDate(long epochMillis) {
+        set(DATE, true);
+        this.date = epochMillis;
     }
 
     public void setFilename(String filename) {
@@ -92,10 +179,22 @@ public class MutableCaptureEvent implements CaptureEvent {
     }
 
     public void setRequestPosition(Long requestPosition) {
+        set(REQUEST_POSITION, requestPosition != null);
+        this.requestPosition = requestPosition == null ? 0 : requestPosition;
+    }
+
+    public void setRequestPosition(long requestPosition) {
+        set(REQUEST_POSITION, true);
         this.requestPosition = requestPosition;
     }
 
     public void setRequestLength(Long requestLength) {
+        set(REQUEST_LENGTH, requestLength != null);
+        this.requestLength = requestLength == null ? 0 : requestLength;
+    }
+
+    public void setRequestLength(long requestLength) {
+        set(REQUEST_LENGTH, true);
         this.requestLength = requestLength;
     }
 
@@ -106,6 +205,16 @@ public class MutableCaptureEvent implements CaptureEvent {
 
     @Override
     public Instant getDate() {
+        return has(DATE) ? Instant.ofEpochMilli(date) : null;
+    }
+
+    @Override
+    public boolean hasDate() {
+        return has(DATE);
+    }
+
+    @Override
+    public long getDateAsLong() {
         return date;
     }
 
@@ -121,14 +230,35 @@ public class MutableCaptureEvent implements CaptureEvent {
 
     @Override
     public Long getRequestPosition() {
+        return has(REQUEST_POSITION) ? requestPosition : null;
+    }
+
+    @Override
+    public boolean hasRequestPosition() {
+        return has(REQUEST_POSITION);
+    }
+
+    @Override
+    public long getRequestPositionAsLong() {
         return requestPosition;
     }
 
     @Override
     public Long getRequestLength() {
+        return has(REQUEST_LENGTH) ? requestLength : null;
+    }
+
+    @Override
+    public boolean hasRequestLength() {
+        return has(REQUEST_LENGTH);
+    }
+
+    @Override
+    public long getRequestLengthAsLong() {
         return requestLength;
     }
 
+    @Override
     public long getResponseLength() {
         return responseLength;
     }
@@ -138,10 +268,26 @@ public class MutableCaptureEvent implements CaptureEvent {
     }
 
     public Integer getHttpStatus() {
+        return has(HTTP_STATUS) ? httpStatus : null;
+    }
+
+    @Override
+    public boolean hasHttpStatus() {
+        return has(HTTP_STATUS);
+    }
+
+    @Override
+    public int getHttpStatusAsInt() {
         return httpStatus;
     }
 
     public void setHttpStatus(Integer httpStatus) {
+        set(HTTP_STATUS, httpStatus != null);
+        this.httpStatus = httpStatus == null ? 0 : httpStatus;
+    }
+
+    public void setHttpStatus(int httpStatus) {
+        set(HTTP_STATUS, true);
         this.httpStatus = httpStatus;
     }
 
@@ -164,17 +310,36 @@ public class MutableCaptureEvent implements CaptureEvent {
     public void setIpAddress(InetAddress inetAddress) {
         if (inetAddress instanceof Inet4Address) {
             byte[] addr = inetAddress.getAddress();
-            ipv4 = (addr[0] & 0xFF) << 24 +
-                    (addr[1] & 0xFF) << 16 +
-                    (addr[2] & 0xFF) << 8 +
-                    (addr[3] & 0xFF);
+            setIpv4((addr[0] & 0xFF) << 24 |
+                    (addr[1] & 0xFF) << 16 |
+                    (addr[2] & 0xFF) << 8 |
+                    (addr[3] & 0xFF));
         } else {
             ipv6 = inetAddress.getAddress();
         }
     }
 
+    public void setIpv4(int ipv4) {
+        set(IPV4, true);
+        this.ipv4 = ipv4;
+    }
+
+    public void setIpv6(byte[] ipv6) {
+        this.ipv6 = ipv6;
+    }
+
     @Override
     public Integer getIpv4() {
+        return has(IPV4) ? ipv4 : null;
+    }
+
+    @Override
+    public boolean hasIpv4() {
+        return has(IPV4);
+    }
+
+    @Override
+    public int getIpv4AsInt() {
         return ipv4;
     }
 
@@ -194,10 +359,26 @@ public class MutableCaptureEvent implements CaptureEvent {
 
     @Override
     public Long getResponsePayloadLength() {
+        return has(RESPONSE_PAYLOAD_LENGTH) ? responsePayloadLength : null;
+    }
+
+    @Override
+    public boolean hasResponsePayloadLength() {
+        return has(RESPONSE_PAYLOAD_LENGTH);
+    }
+
+    @Override
+    public long getResponsePayloadLengthAsLong() {
         return responsePayloadLength;
     }
 
     public void setResponsePayloadLength(Long payloadLength) {
+        set(RESPONSE_PAYLOAD_LENGTH, payloadLength != null);
+        this.responsePayloadLength = payloadLength == null ? 0 : payloadLength;
+    }
+
+    public void setResponsePayloadLength(long payloadLength) {
+        set(RESPONSE_PAYLOAD_LENGTH, true);
         this.responsePayloadLength = payloadLength;
     }
 
@@ -209,20 +390,189 @@ public class MutableCaptureEvent implements CaptureEvent {
         this.responsePayloadSha1 = payloadSha1;
     }
 
+    @Override
+    public byte[] getResponsePayloadSha256() {
+        return responsePayloadSha256;
+    }
+
+    public void setResponsePayloadSha256(byte[] responsePayloadSha256) {
+        this.responsePayloadSha256 = responsePayloadSha256;
+    }
+
+    @Override
+    public byte[] getResponsePayloadMurmur3() {
+        return responsePayloadMurmur3;
+    }
+
+    public void setResponsePayloadMurmur3(byte[] responsePayloadMurmur3) {
+        this.responsePayloadMurmur3 = responsePayloadMurmur3;
+    }
+
+    @Override
+    public byte[] getResponseBlockSha1() {
+        return responseBlockSha1;
+    }
+
+    public void setResponseBlockSha1(byte[] responseBlockSha1) {
+        this.responseBlockSha1 = responseBlockSha1;
+    }
+
+    @Override
+    public byte[] getResponseBlockSha256() {
+        return responseBlockSha256;
+    }
+
+    public void setResponseBlockSha256(byte[] responseBlockSha256) {
+        this.responseBlockSha256 = responseBlockSha256;
+    }
+
+    @Override
+    public byte[] getResponseBlockMurmur3() {
+        return responseBlockMurmur3;
+    }
+
+    public void setResponseBlockMurmur3(byte[] responseBlockMurmur3) {
+        this.responseBlockMurmur3 = responseBlockMurmur3;
+    }
+
+    @Override
+    public String getResponsePayloadDigestStatus() {
+        return responsePayloadDigestStatus;
+    }
+
+    public void setResponsePayloadDigestStatus(String responsePayloadDigestStatus) {
+        this.responsePayloadDigestStatus = responsePayloadDigestStatus;
+    }
+
+    @Override
+    public String getResponsePayloadDigestActual() {
+        return responsePayloadDigestActual;
+    }
+
+    public void setResponsePayloadDigestActual(String responsePayloadDigestActual) {
+        this.responsePayloadDigestActual = responsePayloadDigestActual;
+    }
+
+    @Override
+    public String getResponseBlockDigestStatus() {
+        return responseBlockDigestStatus;
+    }
+
+    public void setResponseBlockDigestStatus(String responseBlockDigestStatus) {
+        this.responseBlockDigestStatus = responseBlockDigestStatus;
+    }
+
+    @Override
+    public String getResponseBlockDigestActual() {
+        return responseBlockDigestActual;
+    }
+
+    public void setResponseBlockDigestActual(String responseBlockDigestActual) {
+        this.responseBlockDigestActual = responseBlockDigestActual;
+    }
+
+    @Override
+    public Boolean getResponseTruncated() {
+        return has(RESPONSE_TRUNCATED) ? responseTruncated : null;
+    }
+
+    @Override
+    public boolean hasResponseTruncated() {
+        return has(RESPONSE_TRUNCATED);
+    }
+
+    @Override
+    public boolean getResponseTruncatedAsBoolean() {
+        return responseTruncated;
+    }
+
+    public void setResponseTruncated(boolean responseTruncated) {
+        set(RESPONSE_TRUNCATED, true);
+        this.responseTruncated = responseTruncated;
+    }
+
+    @Override
+    public Map<String, String> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public void setResponseHeaders(Map<String, String> responseHeaders) {
+        this.responseHeaders = responseHeaders;
+    }
+
+    @Override
+    public Map<String, String> getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    public void setRequestHeaders(Map<String, String> requestHeaders) {
+        this.requestHeaders = requestHeaders;
+    }
+
     public void setResponseUUID(UUID responseUUID) {
-        this.responseUUID = responseUUID;
+        if (responseUUID == null) {
+            set(RESPONSE_UUID, false);
+        } else {
+            setResponseUUID(responseUUID.getMostSignificantBits(), responseUUID.getLeastSignificantBits());
+        }
+    }
+
+    public void setResponseUUID(long mostSignificantBits, long leastSignificantBits) {
+        set(RESPONSE_UUID, true);
+        responseUUIDMsb = mostSignificantBits;
+        responseUUIDLsb = leastSignificantBits;
     }
 
     public UUID getResponseUUID() {
-        return responseUUID;
+        return has(RESPONSE_UUID) ? new UUID(responseUUIDMsb, responseUUIDLsb) : null;
+    }
+
+    @Override
+    public boolean hasResponseUUID() {
+        return has(RESPONSE_UUID);
+    }
+
+    @Override
+    public long getResponseUUIDMostSignificantBits() {
+        return responseUUIDMsb;
+    }
+
+    @Override
+    public long getResponseUUIDLeastSignificantBits() {
+        return responseUUIDLsb;
     }
 
     public void setRequestUUID(UUID requestUUID) {
-        this.requestUUID = requestUUID;
+        if (requestUUID == null) {
+            set(REQUEST_UUID, false);
+        } else {
+            setRequestUUID(requestUUID.getMostSignificantBits(), requestUUID.getLeastSignificantBits());
+        }
+    }
+
+    public void setRequestUUID(long mostSignificantBits, long leastSignificantBits) {
+        set(REQUEST_UUID, true);
+        requestUUIDMsb = mostSignificantBits;
+        requestUUIDLsb = leastSignificantBits;
     }
 
     public UUID getRequestUUID() {
-        return requestUUID;
+        return has(REQUEST_UUID) ? new UUID(requestUUIDMsb, requestUUIDLsb) : null;
+    }
+
+    @Override
+    public boolean hasRequestUUID() {
+        return has(REQUEST_UUID);
+    }
+
+    @Override
+    public long getRequestUUIDMostSignificantBits() {
+        return requestUUIDMsb;
+    }
+
+    @Override
+    public long getRequestUUIDLeastSignificantBits() {
+        return requestUUIDLsb;
     }
 
     public String getRedirect() {
@@ -268,10 +618,26 @@ public class MutableCaptureEvent implements CaptureEvent {
 
     @Override
     public Long getRequestPayloadLength() {
+        return has(REQUEST_PAYLOAD_LENGTH) ? requestPayloadLength : null;
+    }
+
+    @Override
+    public boolean hasRequestPayloadLength() {
+        return has(REQUEST_PAYLOAD_LENGTH);
+    }
+
+    @Override
+    public long getRequestPayloadLengthAsLong() {
         return requestPayloadLength;
     }
 
     public void setRequestPayloadLength(Long requestPayloadLength) {
+        set(REQUEST_PAYLOAD_LENGTH, requestPayloadLength != null);
+        this.requestPayloadLength = requestPayloadLength == null ? 0 : requestPayloadLength;
+    }
+
+    public void setRequestPayloadLength(long requestPayloadLength) {
+        set(REQUEST_PAYLOAD_LENGTH, true);
         this.requestPayloadLength = requestPayloadLength;
     }
 
@@ -301,19 +667,63 @@ public class MutableCaptureEvent implements CaptureEvent {
     }
 
     public Instant getRefersToDate() {
+        return has(REFERS_TO_DATE) ? Instant.ofEpochMilli(refersToDate) : null;
+    }
+
+    @Override
+    public boolean hasRefersToDate() {
+        return has(REFERS_TO_DATE);
+    }
+
+    @Override
+    public long getRefersToDateAsLong() {
         return refersToDate;
     }
 
     public void setRefersToDate(Instant refersToDate) {
-        this.refersToDate = refersToDate;
+        set(REFERS_TO_DATE, refersToDate != null);
+        this.refersToDate = refersToDate == null ? 0 : refersToDate.toEpochMilli();
+    }
+
+    /**
+     * Sets the refers-to date in milliseconds since the epoch.
+     */
+    public void setRefersToDate(long epochMillis) {
+        set(REFERS_TO_DATE, true);
+        this.refersToDate = epochMillis;
     }
 
     public UUID getRefersToUUID() {
-        return refersToUUID;
+        return has(REFERS_TO_UUID) ? new UUID(refersToUUIDMsb, refersToUUIDLsb) : null;
+    }
+
+    @Override
+    public boolean hasRefersToUUID() {
+        return has(REFERS_TO_UUID);
+    }
+
+    @Override
+    public long getRefersToUUIDMostSignificantBits() {
+        return refersToUUIDMsb;
+    }
+
+    @Override
+    public long getRefersToUUIDLeastSignificantBits() {
+        return refersToUUIDLsb;
     }
 
     public void setRefersToUUID(UUID refersToUUID) {
-        this.refersToUUID = refersToUUID;
+        if (refersToUUID == null) {
+            set(REFERS_TO_UUID, false);
+        } else {
+            setRefersToUUID(refersToUUID.getMostSignificantBits(), refersToUUID.getLeastSignificantBits());
+        }
+    }
+
+    public void setRefersToUUID(long mostSignificantBits, long leastSignificantBits) {
+        set(REFERS_TO_UUID, true);
+        refersToUUIDMsb = mostSignificantBits;
+        refersToUUIDLsb = leastSignificantBits;
     }
 
     public String getResponseRecordType() {
@@ -355,4 +765,16 @@ public class MutableCaptureEvent implements CaptureEvent {
     public void setServerVersion(String serverVersion) {
         this.serverVersion = serverVersion;
     }
+
+    /**
+     * The outlinks being extracted from the response payload, if link extraction is on and it is HTML. Not part of
+     * the warcquet schema, they are written to a separate edge table by {@link LinkGraphSink}.
+     */
+    Future<List<LinkExtractor.Link>> getLinks() {
+        return links;
+    }
+
+    void setLinks(Future<List<LinkExtractor.Link>> links) {
+        this.links = links;
+    }
 }
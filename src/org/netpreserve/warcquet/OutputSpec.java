@@ -0,0 +1,129 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.netpreserve.warcquet.util.PathOutputFile;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outputs the converter CLIs write for each warcquet file: the file itself plus optionally a CDXJ index,
+ * companion rollups and a link graph edge table.
+ */
+class OutputSpec {
+    CompressionCodecName compression = CompressionCodecName.UNCOMPRESSED;
+    ParquetProperties.WriterVersion parquetVersion = ParquetProperties.WriterVersion.PARQUET_1_0;
+    boolean rollups;
+    boolean links;
+    int rollupMaxEntries = Rollup.DEFAULT_MAX_ENTRIES;
+    int sinkBuffer;
+
+    /**
+     * Opens the sinks for a warcquet file and, if cdxjFile is not null, a CDXJ index.
+     */
+    List<CaptureEventSink> open(Path output, Path cdxjFile, ConversionMetrics metrics) throws IOException {
+        var sinks = new ArrayList<CaptureEventSink>();
+        try {
+            var outputFile = new PathOutputFile(output);
+            sinks.add(meteredWriterSink(new WarcquetWriterBuilder(outputFile)
+                    .withCompressionCodec(compression)
+                    .withWriterVersion(parquetVersion)
+                    .build(), outputFile, metrics));
+            if (cdxjFile != null) {
+                sinks.add(CaptureEventSink.cdxj(new BufferedOutputStream(Files.newOutputStream(cdxjFile), 65536)));
+            }
+            if (rollups) {
+                for (Rollup rollup : Rollup.standard(rollupMaxEntries)) {
+                    sinks.add(CaptureEventSink.of(rollup, Rollup.companionPath(output, rollup.getName())));
+                }
+            }
+            if (links) {
+                sinks.add(new LinkGraphSink(LinkGraphSink.companionPath(output), compression));
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(sinks);
+            throw e;
+        }
+        if (sinkBuffer > 0) {
+            for (int i = 0; i < sinks.size(); i++) {
+                sinks.set(i, CaptureEventSink.buffered(sinks.get(i), sinkBuffer));
+            }
+        }
+        return sinks;
+    }
+
+    /**
+     * Returns the files open() writes for the given output, whether or not they exist.
+     */
+    List<Path> files(Path output, Path cdxjFile) {
+        var files = new ArrayList<Path>();
+        files.add(output);
+        if (cdxjFile != null) files.add(cdxjFile);
+        if (rollups) {
+            for (Rollup rollup : Rollup.standard(rollupMaxEntries)) {
+                files.add(Rollup.companionPath(output, rollup.getName()));
+            }
+        }
+        if (links) files.add(LinkGraphSink.companionPath(output));
+        return files;
+    }
+
+    /**
+     * Closes all the sinks, even if some fail, then rethrows the first error with any later ones suppressed.
+     */
+    static void closeAll(List<CaptureEventSink> sinks) throws IOException {
+        Exception error = null;
+        for (CaptureEventSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException | RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error instanceof IOException) throw (IOException) error;
+        if (error != null) throw (RuntimeException) error;
+    }
+
+    /**
+     * Wraps the parquet writer to time encoding and sample its buffered memory.
+     */
+    private static CaptureEventSink meteredWriterSink(ParquetWriter<CaptureEvent> writer, PathOutputFile outputFile,
+                                                      ConversionMetrics metrics) {
+        return new CaptureEventSink() {
+            private long count;
+
+            @Override
+            public void accept(CaptureEvent event) throws IOException {
+                long start = System.nanoTime();
+                writer.write(event);
+                metrics.addEncodingTime(System.nanoTime() - start);
+                if ((++count & 1023) == 0) {
+                    metrics.setWriterBufferedBytes(writer.getDataSize() - outputFile.getBytesWritten());
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                long start = System.nanoTime();
+                writer.close();
+                metrics.addEncodingTime(System.nanoTime() - start);
+                metrics.setWriterBufferedBytes(0);
+            }
+        };
+    }
+}
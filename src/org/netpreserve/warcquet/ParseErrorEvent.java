@@ -0,0 +1,17 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import jdk.jfr.*;
+
+@Name("org.netpreserve.warcquet.ParseError")
+@Label("Warcquet Parse Error")
+@Category("Warcquet")
+@StackTrace(false)
+class ParseErrorEvent extends Event {
+    @Label("Type")
+    String type;
+}
@@ -0,0 +1,102 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A small aggregate table of captures and payload bytes grouped by a single string column and optionally by day.
+ * Rollups are written as companion parquet files next to the main warcquet output so that dashboards can answer
+ * common questions without scanning the capture table.
+ */
+public class Rollup extends RollupTable {
+    public static final int DEFAULT_MAX_ENTRIES = 1_000_000;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private final Function<CaptureEvent, String> keyFunction;
+
+    public Rollup(String name, String keyColumn, boolean byDay, Function<CaptureEvent, String> keyFunction,
+                  int maxEntries) {
+        super(name, keyColumn, byDay, maxEntries);
+        this.keyFunction = keyFunction;
+    }
+
+    /**
+     * The standard rollups: captures per surt_domain per day and captures per response_payload_type.
+     */
+    public static List<Rollup> standard(int maxEntries) {
+        return List.of(new Rollup("domain-day", "surt_domain", true, CaptureEvent::getSurtDomain, maxEntries),
+                new Rollup("payload-type", "response_payload_type", false, CaptureEvent::getResponsePayloadType,
+                        maxEntries));
+    }
+
+    /**
+     * Returns the path of the companion file for the named rollup, e.g. crawl.parquet -> crawl.rollup-domain-day.parquet
+     */
+    public static Path companionPath(Path output, String name) {
+        String filename = output.getFileName().toString();
+        if (filename.endsWith(".parquet")) filename = filename.substring(0, filename.length() - ".parquet".length());
+        return output.resolveSibling(filename + ".rollup-" + name + ".parquet");
+    }
+
+    public void add(CaptureEvent event) throws IOException {
+        int day = isByDay() && event.hasDate() ? (int) Math.floorDiv(event.getDateAsLong(), MILLIS_PER_DAY) : 0;
+        add(keyFunction.apply(event), day, 1, event.getResponsePayloadLengthAsLong());
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path outFile = null;
+        var inputs = new ArrayList<Path>();
+        int maxEntries = DEFAULT_MAX_ENTRIES;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output-file":
+                        outFile = Paths.get(args[++i]);
+                        break;
+                    case "--max-entries":
+                        maxEntries = Integer.parseInt(args[++i]);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: Rollup [OPTIONS] -o outfile.parquet rollup-files...\n" +
+                                "\n" +
+                                "Combines rollup files of the same kind into one, summing rows with the same key.\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "      --max-entries N         Keys held in memory before spilling to disk\n" +
+                                "  -o, --output-file FILE      Output rollup file (mandatory)\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("Rollup: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                inputs.add(Paths.get(args[i]));
+            }
+        }
+
+        if (outFile == null) {
+            System.err.println("Rollup: an output file (-o) must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("Rollup: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        merge(inputs, outFile, maxEntries);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Types;
+import org.netpreserve.warcquet.util.PathInputFile;
+import org.netpreserve.warcquet.util.PathOutputFile;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * A table of captures and payload bytes summed by a string key and optionally by day, as stored in rollup files.
+ * Tables loaded from existing rollup files with {@link #forFile} can only be fed rows; {@link Rollup} adds the
+ * mapping from capture events.
+ * <p>
+ * Aggregates are kept in memory until they exceed a configurable number of keys, at which point they are sorted and
+ * spilled to a temporary run file. The runs are merged when the rollup is written. Output rows are sorted by key and
+ * then day.
+ */
+public class RollupTable {
+    private final String name;
+    private final String keyColumn;
+    private final boolean byDay;
+    private final int maxEntries;
+    private Map<Key, long[]> entries = new HashMap<>();
+    private final List<Path> runs = new ArrayList<>();
+
+    public RollupTable(String name, String keyColumn, boolean byDay, int maxEntries) {
+        this.name = name;
+        this.keyColumn = keyColumn;
+        this.byDay = byDay;
+        this.maxEntries = maxEntries;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    boolean isByDay() {
+        return byDay;
+    }
+
+    public void add(String key, int day, long captures, long bytes) throws IOException {
+        long[] values = entries.computeIfAbsent(new Key(key, byDay ? day : 0), k -> new long[2]);
+        values[0] += captures;
+        values[1] += bytes;
+        if (entries.size() > maxEntries) {
+            spill();
+        }
+    }
+
+    private List<Map.Entry<Key, long[]>> sortedEntries() {
+        var list = new ArrayList<>(entries.entrySet());
+        list.sort(Map.Entry.comparingByKey());
+        return list;
+    }
+
+    private void spill() throws IOException {
+        Path run = Files.createTempFile("warcquet-rollup-", ".run");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (var entry : sortedEntries()) {
+                entry.getKey().write(out);
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        }
+        runs.add(run);
+        entries = new HashMap<>();
+    }
+
+    private MessageType schema() {
+        var builder = Types.buildMessage()
+                .optional(PrimitiveType.PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named(keyColumn);
+        if (byDay) {
+            builder.required(PrimitiveType.PrimitiveTypeName.INT32).as(LogicalTypeAnnotation.dateType()).named("day");
+        }
+        return builder
+                .required(PrimitiveType.PrimitiveTypeName.INT64).named("captures")
+                .required(PrimitiveType.PrimitiveTypeName.INT64).named("bytes")
+                .named("WarcquetRollup");
+    }
+
+    /**
+     * Writes the aggregated rows to a parquet file, merging any spilled runs. The rollup is empty afterwards.
+     */
+    public void write(Path path) throws IOException {
+        MessageType schema = schema();
+        var factory = new SimpleGroupFactory(schema);
+        try (ParquetWriter<Group> writer = ExampleParquetWriter.builder(new PathOutputFile(path))
+                .withType(schema)
+                .build()) {
+            if (runs.isEmpty()) {
+                for (var entry : sortedEntries()) {
+                    writer.write(row(factory, entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+                }
+            } else {
+                spill();
+                mergeRuns(writer, factory);
+            }
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+            entries = new HashMap<>();
+        }
+    }
+
+    private Group row(SimpleGroupFactory factory, Key key, long captures, long bytes) {
+        Group group = factory.newGroup();
+        if (key.key != null) group.append(keyColumn, key.key);
+        if (byDay) group.append("day", key.day);
+        return group.append("captures", captures).append("bytes", bytes);
+    }
+
+    private void mergeRuns(ParquetWriter<Group> writer, SimpleGroupFactory factory) throws IOException {
+        var queue = new PriorityQueue<RunReader>(Comparator.comparing(r -> r.key));
+        try {
+            for (Path run : runs) {
+                var reader = new RunReader(run);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                Key key = queue.peek().key;
+                long captures = 0;
+                long bytes = 0;
+                while (!queue.isEmpty() && queue.peek().key.compareTo(key) == 0) {
+                    var reader = queue.poll();
+                    captures += reader.captures;
+                    bytes += reader.bytes;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                writer.write(row(factory, key, captures, bytes));
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the rows of a previously written rollup file.
+     */
+    public void addAll(Path rollupFile) throws IOException {
+        String[] columns = {keyColumn, "day", "captures", "bytes"};
+        try (var reader = ColumnScanner.open(rollupFile, columns)) {
+            for (int i = 0; i < reader.getRowGroups().size(); i++) {
+                var scanner = new ColumnScanner(reader, reader.readRowGroup(i), columns, null);
+                while (scanner.nextRow()) {
+                    String key = scanner.isNull(0) ? null : scanner.getBinary(0).toStringUsingUTF8();
+                    int day = scanner.isNull(1) ? 0 : scanner.getInteger(1);
+                    add(key, day, scanner.getLong(2), scanner.getLong(3));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an empty table with the same layout as an existing rollup file.
+     */
+    public static RollupTable forFile(Path rollupFile, int maxEntries) throws IOException {
+        try (var reader = ParquetFileReader.open(new PathInputFile(rollupFile))) {
+            MessageType schema = reader.getFileMetaData().getSchema();
+            String keyColumn = schema.getFieldName(0);
+            boolean byDay = schema.containsField("day");
+            String name = rollupFile.getFileName().toString().replaceFirst("^.*\\.rollup-", "")
+                    .replaceFirst("\\.parquet$", "");
+            return new RollupTable(name, keyColumn, byDay, maxEntries);
+        }
+    }
+
+    private static final class Key implements Comparable<Key> {
+        private static final Comparator<String> KEY_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+        final String key;
+        final int day;
+
+        Key(String key, int day) {
+            this.key = key;
+            this.day = day;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeBoolean(key != null);
+            if (key != null) out.writeUTF(key);
+            out.writeInt(day);
+        }
+
+        static Key read(DataInputStream in) throws IOException {
+            String key = in.readBoolean() ? in.readUTF() : null;
+            return new Key(key, in.readInt());
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int cmp = KEY_ORDER.compare(key, o.key);
+            return cmp != 0 ? cmp : Integer.compare(day, o.day);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return day == other.day && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) * 31 + day;
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        private final DataInputStream in;
+        Key key;
+        long captures;
+        long bytes;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+        }
+
+        boolean next() throws IOException {
+            try {
+                key = Key.read(in);
+            } catch (EOFException e) {
+                return false;
+            }
+            captures = in.readLong();
+            bytes = in.readLong();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Combines existing rollup files with the same layout into a single rollup file.
+     */
+    public static void merge(List<Path> inputs, Path output, int maxEntries) throws IOException {
+        RollupTable rollup = forFile(inputs.get(0), maxEntries);
+        for (Path input : inputs) {
+            rollup.addAll(input);
+        }
+        rollup.write(output);
+    }
+}
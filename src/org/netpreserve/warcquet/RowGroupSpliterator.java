@@ -0,0 +1,160 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.io.ColumnIOFactory;
+import org.apache.parquet.io.MessageColumnIO;
+import org.apache.parquet.io.RecordReader;
+import org.netpreserve.warcquet.util.PathInputFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits a list of row groups (possibly spanning several files) on row group boundaries. Each split opens its own
+ * ParquetFileReader so splits can be traversed concurrently. Sizes are exact as they come from the footer row counts.
+ */
+class RowGroupSpliterator implements Spliterator<CaptureEvent> {
+    private final Path[] files;
+    private final int[] blockIndexes;
+    private final long[] rowStarts;
+    private final Set<ParquetFileReader> openReaders;
+    private int index;
+    private final int fence;
+
+    private ParquetFileReader reader;
+    private Path readerFile;
+    private MessageColumnIO columnIO;
+    private CaptureEventMaterializer materializer;
+    private RecordReader<CaptureEvent> recordReader;
+    private long remaining;
+
+    private RowGroupSpliterator(Path[] files, int[] blockIndexes, long[] rowStarts, Set<ParquetFileReader> openReaders,
+                                int index, int fence) {
+        this.files = files;
+        this.blockIndexes = blockIndexes;
+        this.rowStarts = rowStarts;
+        this.openReaders = openReaders;
+        this.index = index;
+        this.fence = fence;
+    }
+
+    /**
+     * Creates a spliterator over every row group of the given files. Any readers opened by it or its splits are
+     * tracked in openReaders so they can be closed if traversal is abandoned early.
+     */
+    static RowGroupSpliterator open(List<Path> paths, Set<ParquetFileReader> openReaders) throws IOException {
+        var files = new ArrayList<Path>();
+        var blockIndexes = new ArrayList<Integer>();
+        var rowCounts = new ArrayList<Long>();
+        for (Path path : paths) {
+            try (var footerReader = ParquetFileReader.open(new PathInputFile(path))) {
+                List<BlockMetaData> blocks = footerReader.getRowGroups();
+                for (int i = 0; i < blocks.size(); i++) {
+                    files.add(path);
+                    blockIndexes.add(i);
+                    rowCounts.add(blocks.get(i).getRowCount());
+                }
+            }
+        }
+        return create(files, blockIndexes, rowCounts, openReaders);
+    }
+
+    static RowGroupSpliterator open(Path path, List<BlockMetaData> blocks, Set<ParquetFileReader> openReaders) {
+        var files = new ArrayList<Path>();
+        var blockIndexes = new ArrayList<Integer>();
+        var rowCounts = new ArrayList<Long>();
+        for (int i = 0; i < blocks.size(); i++) {
+            files.add(path);
+            blockIndexes.add(i);
+            rowCounts.add(blocks.get(i).getRowCount());
+        }
+        return create(files, blockIndexes, rowCounts, openReaders);
+    }
+
+    private static RowGroupSpliterator create(List<Path> files, List<Integer> blockIndexes, List<Long> rowCounts,
+                                              Set<ParquetFileReader> openReaders) {
+        int n = files.size();
+        int[] blockIndexArray = new int[n];
+        long[] rowStarts = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            blockIndexArray[i] = blockIndexes.get(i);
+            rowStarts[i + 1] = rowStarts[i] + rowCounts.get(i);
+        }
+        return new RowGroupSpliterator(files.toArray(new Path[0]), blockIndexArray, rowStarts, openReaders, 0, n);
+    }
+
+    private void openRowGroup(int i) throws IOException {
+        if (reader == null || !files[i].equals(readerFile)) {
+            closeReader();
+            reader = ParquetFileReader.open(new PathInputFile(files[i]));
+            openReaders.add(reader);
+            readerFile = files[i];
+            columnIO = new ColumnIOFactory().getColumnIO(reader.getFileMetaData().getSchema());
+            materializer = new CaptureEventMaterializer();
+        }
+        PageReadStore rowGroup = reader.readRowGroup(blockIndexes[i]);
+        remaining = rowGroup.getRowCount();
+        recordReader = columnIO.getRecordReader(rowGroup, materializer);
+    }
+
+    private void closeReader() throws IOException {
+        if (reader != null && openReaders.remove(reader)) {
+            reader.close();
+        }
+        reader = null;
+        readerFile = null;
+        recordReader = null;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super CaptureEvent> action) {
+        try {
+            while (remaining == 0) {
+                if (index >= fence) {
+                    closeReader();
+                    return false;
+                }
+                openRowGroup(index++);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        remaining--;
+        action.accept(recordReader.read());
+        return true;
+    }
+
+    @Override
+    public Spliterator<CaptureEvent> trySplit() {
+        // can't hand off a prefix while we're part way through a row group
+        if (remaining > 0) return null;
+        int mid = (index + fence) >>> 1;
+        if (mid <= index) return null;
+        var prefix = new RowGroupSpliterator(files, blockIndexes, rowStarts, openReaders, index, mid);
+        index = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return rowStarts[fence] - rowStarts[index] + remaining;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import com.google.common.io.BaseEncoding;
+import org.netpreserve.jwarc.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes synthetic WARC files for benchmarking. The output depends only on the settings and the seed, so the same
+ * corpus can be regenerated on another machine or for another version instead of being shipped around.
+ * <p>
+ * Records are drawn from a weighted mix of types. Requests and metadata records are concurrent to the latest
+ * response, revisits refer to one of the recent responses, and resources are DNS lookups. Response payloads are
+ * mostly HTML with links (so link extraction has work to do) plus some scripts and incompressible images, with sizes
+ * drawn from a configurable distribution. A fraction of records declare their payload and block digests, which lets
+ * the converter skip hashing them.
+ */
+public class SyntheticWarcGenerator {
+    public static final String DEFAULT_MIX = "response=50,request=30,metadata=10,revisit=7,resource=3";
+    public static final String DEFAULT_PAYLOAD_SIZE = "lognormal:16384,1.2";
+    private static final long MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+    private static final Instant START_DATE = Instant.parse("2020-09-13T12:26:40Z");
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final int RECENT_RESPONSES = 256;
+    private static final String[] WORDS = ("archive web crawl library national collection record capture page site " +
+            "document history government news report public access digital heritage preserve index search query " +
+            "harvest domain content media image text link resource australia data service online information").split(" ");
+    private static final String[] SERVERS = {"Apache/2.4.41", "nginx/1.18.0", "Microsoft-IIS/10.0", "cloudflare"};
+
+    private long seed = 1;
+    private long records = 100_000;
+    private int hosts = 1000;
+    private double digestFraction = 1.0;
+    private String[] types;
+    private int[] cumulativeWeights;
+    private SizeDistribution payloadSizes = SizeDistribution.parse(DEFAULT_PAYLOAD_SIZE);
+
+    public SyntheticWarcGenerator() {
+        mix(DEFAULT_MIX);
+    }
+
+    public SyntheticWarcGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Number of records to write, not counting the leading warcinfo record.
+     */
+    public SyntheticWarcGenerator records(long records) {
+        this.records = records;
+        return this;
+    }
+
+    /**
+     * Number of distinct hosts URLs are spread over.
+     */
+    public SyntheticWarcGenerator hosts(int hosts) {
+        if (hosts < 1) throw new IllegalArgumentException("hosts must be at least 1");
+        this.hosts = hosts;
+        return this;
+    }
+
+    /**
+     * Fraction (0-1) of responses and requests that declare their payload and block digests.
+     */
+    public SyntheticWarcGenerator digestFraction(double digestFraction) {
+        this.digestFraction = digestFraction;
+        return this;
+    }
+
+    /**
+     * Sets the record mix as comma separated type=weight pairs, e.g. "response=50,request=30,revisit=20". The types
+     * are response, request, revisit, metadata and resource.
+     */
+    public SyntheticWarcGenerator mix(String mix) {
+        var types = new ArrayList<String>();
+        var weights = new ArrayList<Integer>();
+        int total = 0;
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=", 2);
+            String type = parts[0];
+            if (!List.of("response", "request", "revisit", "metadata", "resource").contains(type)) {
+                throw new IllegalArgumentException("unknown record type: " + type);
+            }
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            if (weight < 0) throw new IllegalArgumentException("negative weight: " + entry);
+            total += weight;
+            types.add(type);
+            weights.add(total);
+        }
+        if (total <= 0) throw new IllegalArgumentException("the record mix is empty");
+        this.types = types.toArray(new String[0]);
+        this.cumulativeWeights = weights.stream().mapToInt(Integer::intValue).toArray();
+        return this;
+    }
+
+    /**
+     * Sets the payload size distribution: "fixed:N", "uniform:MIN,MAX" or "lognormal:MEDIAN,SIGMA" (sizes in bytes).
+     */
+    public SyntheticWarcGenerator payloadSizes(String distribution) {
+        this.payloadSizes = SizeDistribution.parse(distribution);
+        return this;
+    }
+
+    /**
+     * Writes a corpus to the given file, gzipped per record if its name ends with .gz. Returns the number of bytes
+     * written.
+     */
+    public long generate(Path output) throws IOException {
+        var compression = output.getFileName().toString().endsWith(".gz") ? WarcCompression.GZIP :
+                WarcCompression.NONE;
+        try (var channel = FileChannel.open(output, CREATE, WRITE, TRUNCATE_EXISTING);
+             var writer = new WarcWriter(channel, compression)) {
+            new Run(writer, output.getFileName().toString()).write();
+            return writer.position();
+        }
+    }
+
+    /**
+     * The state of generating one file.
+     */
+    private class Run {
+        private final WarcWriter writer;
+        private final String filename;
+        private final Random random = new Random(seed);
+        private final MessageDigest sha1;
+        private final Response[] recent = new Response[RECENT_RESPONSES];
+        private long responses;
+        private Response last;
+        private Instant date = START_DATE;
+
+        Run(WarcWriter writer, String filename) {
+            this.writer = writer;
+            this.filename = filename;
+            try {
+                this.sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void write() throws IOException {
+            var fields = new LinkedHashMap<String, List<String>>();
+            fields.put("software", List.of("warcquet SyntheticWarcGenerator"));
+            fields.put("description", List.of("seed " + seed));
+            writer.write(new Warcinfo.Builder()
+                    .recordId(nextId())
+                    .date(date)
+                    .filename(filename)
+                    .fields(fields)
+                    .build());
+            for (long i = 0; i < records; i++) {
+                date = date.plusMillis(1 + random.nextInt(2000));
+                switch (nextType()) {
+                    case "response":
+                        writeResponse();
+                        break;
+                    case "request":
+                        writeRequest();
+                        break;
+                    case "metadata":
+                        writeMetadata();
+                        break;
+                    case "revisit":
+                        writeRevisit();
+                        break;
+                    case "resource":
+                        writeResource();
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+        }
+
+        private String nextType() {
+            int n = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (n < cumulativeWeights[i]) return types[i];
+            }
+            throw new IllegalStateException();
+        }
+
+        private UUID nextId() {
+            return new UUID(random.nextLong(), random.nextLong());
+        }
+
+        private String host(int host) {
+            return "www.host" + host + (host % 3 == 0 ? ".gov.au" : host % 3 == 1 ? ".com" : ".org");
+        }
+
+        private void writeResponse() throws IOException {
+            int host = random.nextInt(hosts);
+            int kind = random.nextInt(20);
+            String type;
+            String path;
+            if (kind < 15) {
+                type = "text/html";
+                path = "/page" + random.nextInt(100_000) + ".html";
+            } else if (kind < 17) {
+                type = "application/javascript";
+                path = "/static/app" + random.nextInt(1000) + ".js";
+            } else {
+                type = "image/jpeg";
+                path = "/images/img" + random.nextInt(100_000) + ".jpg";
+            }
+            String url = "http://" + host(host) + path;
+            int status = random.nextInt(40);
+            byte[] payload;
+            var header = new StringBuilder();
+            if (status == 0) {
+                header.append("HTTP/1.1 404 Not Found\r\n");
+                type = "text/html";
+                payload = html(url, 512);
+            } else if (status == 1) {
+                header.append("HTTP/1.1 301 Moved Permanently\r\n");
+                header.append("Location: ").append(url).append("/\r\n");
+                type = "text/html";
+                payload = html(url, 256);
+            } else {
+                header.append("HTTP/1.1 200 OK\r\n");
+                int size = (int) Math.min(payloadSizes.next(random), MAX_PAYLOAD_SIZE);
+                payload = type.equals("image/jpeg") ? randomBytes(size) : type.equals("text/html") ?
+                        html(url, size) : text(size);
+            }
+            header.append("Date: ").append(HTTP_DATE.format(date)).append("\r\n");
+            header.append("Server: ").append(SERVERS[host % SERVERS.length]).append("\r\n");
+            header.append("Content-Type: ").append(type).append("\r\n");
+            header.append("Content-Length: ").append(payload.length).append("\r\n");
+            if (host % 4 == 0) header.append("Cache-Control: max-age=").append(host * 60).append("\r\n");
+            if (host % 5 == 0) header.append("X-Powered-By: PHP/7.4\r\n");
+            if (host % 7 == 0) header.append("Set-Cookie: session=").append(random.nextInt()).append("; Path=/\r\n");
+            header.append("\r\n");
+            byte[] block = concat(header.toString().getBytes(StandardCharsets.US_ASCII), payload);
+
+            var response = new Response(nextId(), url, date, sha1(payload));
+            var builder = new WarcResponse.Builder(URI.create(url))
+                    .recordId(response.id)
+                    .date(date)
+                    .body(MediaType.HTTP_RESPONSE, block)
+                    .ipAddress(java.net.InetAddress.getByAddress(new byte[]{10, 0, (byte) (host >> 8), (byte) host}));
+            if (random.nextDouble() < digestFraction) {
+                builder.payloadDigest("sha1", response.payloadSha1).blockDigest("sha1", sha1(block));
+            }
+            writer.write(builder.build());
+            last = response;
+            recent[(int) (responses++ % RECENT_RESPONSES)] = response;
+        }
+
+        private void writeRequest() throws IOException {
+            String url = last != null ? last.url : "http://" + host(random.nextInt(hosts)) + "/";
+            URI uri = URI.create(url);
+            String http = "GET " + uri.getRawPath() + " HTTP/1.1\r\n" +
+                    "Host: " + uri.getHost() + "\r\n" +
+                    "User-Agent: Mozilla/5.0 (compatible; synthetic/1.0)\r\n" +
+                    "Accept-Encoding: gzip\r\n" +
+                    "Referer: http://" + uri.getHost() + "/\r\n\r\n";
+            byte[] block = http.getBytes(StandardCharsets.US_ASCII);
+            var builder = new WarcRequest.Builder(uri)
+                    .recordId(nextId())
+                    .date(last != null ? last.date : date)
+                    .body(MediaType.HTTP_REQUEST, block);
+            if (last != null) builder.concurrentTo(toUri(last.id));
+            if (random.nextDouble() < digestFraction) {
+                builder.blockDigest("sha1", sha1(block));
+            }
+            writer.write(builder.build());
+        }
+
+        private void writeMetadata() throws IOException {
+            String url = last != null ? last.url : "http://" + host(random.nextInt(hosts)) + "/";
+            var fields = new LinkedHashMap<String, List<String>>();
+            fields.put("via", List.of("http://" + URI.create(url).getHost() + "/"));
+            fields.put("hopsFromSeed", List.of("L"));
+            fields.put("fetchTimeMs", List.of(String.valueOf(random.nextInt(5000))));
+            var builder = new WarcMetadata.Builder()
+                    .targetURI(url)
+                    .recordId(nextId())
+                    .date(last != null ? last.date : date)
+                    .fields(fields);
+            if (last != null) builder.concurrentTo(toUri(last.id));
+            writer.write(builder.build());
+        }
+
+        private void writeRevisit() throws IOException {
+            Response original = responses == 0 ? null :
+                    recent[random.nextInt((int) Math.min(responses, RECENT_RESPONSES))];
+            if (original == null) {
+                writeResponse();
+                return;
+            }
+            String http = "HTTP/1.1 304 Not Modified\r\n" +
+                    "Date: " + HTTP_DATE.format(date) + "\r\n" +
+                    "Last-Modified: " + HTTP_DATE.format(original.date) + "\r\n\r\n";
+            writer.write(new WarcRevisit.Builder(URI.create(original.url), WarcRevisit.IDENTICAL_PAYLOAD_DIGEST_1_1)
+                    .recordId(nextId())
+                    .date(date)
+                    .refersTo(toUri(original.id), original.url, original.date)
+                    .payloadDigest("sha1", original.payloadSha1)
+                    .body(MediaType.HTTP_RESPONSE, http.getBytes(StandardCharsets.US_ASCII))
+                    .build());
+        }
+
+        private void writeResource() throws IOException {
+            String host = host(random.nextInt(hosts));
+            int address = random.nextInt();
+            String body = date.toString().replaceAll("[^0-9]", "").substring(0, 14) + "\n" + host + ".\t300\tIN\tA\t" +
+                    (10 + (address >>> 24) % 200) + "." + ((address >> 16) & 255) + "." + ((address >> 8) & 255) +
+                    "." + (address & 255) + "\n";
+            writer.write(new WarcResource.Builder(URI.create("dns:" + host))
+                    .recordId(nextId())
+                    .date(date)
+                    .body(MediaType.parse("text/dns"), body.getBytes(StandardCharsets.US_ASCII))
+                    .build());
+        }
+
+        /**
+         * An HTML page of about the given size with a link every few dozen words, a fifth of them to other hosts.
+         */
+        private byte[] html(String url, int size) {
+            var html = new StringBuilder(size + 256);
+            html.append("<!DOCTYPE html>\n<html><head><title>").append(url).append("</title>")
+                    .append("<link rel=\"stylesheet\" href=\"/static/site.css\"></head><body>\n<p>");
+            while (html.length() < size) {
+                int n = random.nextInt(64);
+                if (n == 0) {
+                    html.append("</p>\n<p>");
+                } else if (n < 3) {
+                    String target = n == 1 && random.nextInt(5) == 0 ?
+                            "http://" + host(random.nextInt(hosts)) + "/" : "/page" + random.nextInt(100_000) + ".html";
+                    html.append("<a href=\"").append(target).append("\">").append(WORDS[random.nextInt(WORDS.length)])
+                            .append("</a> ");
+                } else {
+                    html.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+            }
+            html.append("</p></body></html>\n");
+            return html.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private byte[] text(int size) {
+            var text = new StringBuilder(size + 16);
+            while (text.length() < size) {
+                text.append("var ").append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000))
+                        .append(" = ").append(random.nextInt()).append(";\n");
+            }
+            return text.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private byte[] randomBytes(int size) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+
+        private String sha1(byte[] data) {
+            return BaseEncoding.base32().encode(sha1.digest(data));
+        }
+    }
+
+    private static URI toUri(UUID id) {
+        return URI.create("urn:uuid:" + id);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static class Response {
+        final UUID id;
+        final String url;
+        final Instant date;
+        final String payloadSha1;
+
+        Response(UUID id, String url, Instant date, String payloadSha1) {
+            this.id = id;
+            this.url = url;
+            this.date = date;
+            this.payloadSha1 = payloadSha1;
+        }
+    }
+
+    /**
+     * A distribution of payload sizes in bytes.
+     */
+    static class SizeDistribution {
+        private final String kind;
+        private final double a;
+        private final double b;
+
+        private SizeDistribution(String kind, double a, double b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            String[] args = parts.length > 1 ? parts[1].split(",") : new String[0];
+            try {
+                switch (parts[0]) {
+                    case "fixed":
+                        if (args.length == 1) return new SizeDistribution("fixed", Double.parseDouble(args[0]), 0);
+                        break;
+                    case "uniform":
+                        if (args.length == 2 && Double.parseDouble(args[0]) <= Double.parseDouble(args[1])) {
+                            return new SizeDistribution("uniform", Double.parseDouble(args[0]),
+                                    Double.parseDouble(args[1]));
+                        }
+                        break;
+                    case "lognormal":
+                        if (args.length == 2) {
+                            return new SizeDistribution("lognormal", Double.parseDouble(args[0]),
+                                    Double.parseDouble(args[1]));
+                        }
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            throw new IllegalArgumentException("invalid size distribution: " + spec);
+        }
+
+        long next(Random random) {
+            double size;
+            switch (kind) {
+                case "fixed":
+                    size = a;
+                    break;
+                case "uniform":
+                    size = a + random.nextDouble() * (b - a);
+                    break;
+                default:
+                    size = a * Math.exp(b * random.nextGaussian());
+            }
+            return Math.max(0, Math.round(size));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        var generator = new SyntheticWarcGenerator();
+        Path output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--digest-fraction":
+                    generator.digestFraction(Double.parseDouble(args[++i]));
+                    break;
+                case "--hosts":
+                    generator.hosts(Integer.parseInt(args[++i]));
+                    break;
+                case "--mix":
+                    generator.mix(args[++i]);
+                    break;
+                case "-o":
+                case "--output-file":
+                    output = Paths.get(args[++i]);
+                    break;
+                case "--payload-size":
+                    generator.payloadSizes(args[++i]);
+                    break;
+                case "-n":
+                case "--records":
+                    generator.records(Long.parseLong(args[++i]));
+                    break;
+                case "--seed":
+                    generator.seed(Long.parseLong(args[++i]));
+                    break;
+                case "-h":
+                case "--help":
+                    System.out.print("Usage: SyntheticWarcGenerator [OPTIONS] -o corpus.warc.gz\n" +
+                            "\n" +
+                            "Writes a deterministic synthetic WARC file, gzipped if the name ends with .gz.\n" +
+                            "\n" +
+                            "Options:\n" +
+                            "      --digest-fraction P    Fraction of records declaring their digests (default 1)\n" +
+                            "      --hosts N              Number of distinct hosts (default 1000)\n" +
+                            "      --mix MIX              Record type weights (default " + DEFAULT_MIX + ")\n" +
+                            "  -n, --records N            Number of records (default 100000)\n" +
+                            "  -o, --output-file FILE     Output WARC file (mandatory)\n" +
+                            "      --payload-size DIST    fixed:N, uniform:MIN,MAX or lognormal:MEDIAN,SIGMA\n" +
+                            "                             (default " + DEFAULT_PAYLOAD_SIZE + ")\n" +
+                            "      --seed N               Random seed (default 1)\n");
+                    System.exit(0);
+                    break;
+                default:
+                    System.err.println("SyntheticWarcGenerator: unrecognized option: '" + args[i] + "'");
+                    System.exit(1);
+            }
+        }
+
+        if (output == null) {
+            System.err.println("SyntheticWarcGenerator: an output file (-o) must be specified. See --help for usage information");
+            System.exit(1);
+        }
+        long bytes = generator.generate(output);
+        System.err.println("SyntheticWarcGenerator: wrote " + bytes + " bytes");
+    }
+}
@@ -5,28 +5,31 @@
 
 package org.netpreserve.warcquet;
 
-import org.apache.parquet.hadoop.ParquetFileReader;
-import org.apache.parquet.io.ColumnIOFactory;
-import org.apache.parquet.io.api.*;
-import org.netpreserve.warcquet.util.PathInputFile;
-
 import java.io.IOException;
-import java.net.Inet6Address;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.UUID;
-import java.util.function.Consumer;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Upgrades warcquet files to the detailed schema. Columns whose type is unchanged are copied as is and only the UUID,
+ * sha1 and IPv6 columns are re-encoded. When given several inputs their row groups are concatenated into the output.
+ */
 public class UpgradeSchema {
     public static void main(String[] args) throws IOException {
-        Path inFile = Paths.get(args[0]);
-        try (var reader = new WarcquetReader(inFile);
-             var writer = Warcquet.newWriter(Paths.get(args[1]))) {
-            for (CaptureEvent event: reader) {
-                writer.write(event);
-            }
+        if (args.length < 2) {
+            System.err.println("Usage: UpgradeSchema input.parquet... output.parquet");
+            System.exit(1);
+        }
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length - 1; i++) {
+            inputs.add(Paths.get(args[i]));
+        }
+        var rewriter = new WarcquetRewriter(Warcquet.detailedSchema());
+        rewriter.rewrite(inputs, Paths.get(args[args.length - 1]));
+        if (rewriter.getInvalidValues() > 0) {
+            System.err.println("UpgradeSchema: dropped " + rewriter.getInvalidValues() +
+                    " values of the wrong length for fixed length columns");
         }
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.netpreserve.warcquet.DigestEngine.Verification;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals of a --verify run. Several converters may add to one report at once.
+ */
+class VerificationReport {
+    private static final int MAX_PROBLEMS = 100;
+    private final LongAdder records = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder failedInputs = new LongAdder();
+    private final LongAdder[] payload = newCounters();
+    private final LongAdder[] block = newCounters();
+    private final LongAdder problemCount = new LongAdder();
+    private final List<String> problems = new ArrayList<>();
+
+    private static LongAdder[] newCounters() {
+        var counters = new LongAdder[Verification.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Adds the result of verifying one record. Either verification may be null if it didn't apply.
+     */
+    void add(String filename, long position, String url, Verification payloadResult, Verification blockResult,
+             boolean truncated) {
+        records.increment();
+        if (truncated) this.truncated.increment();
+        if (payloadResult != null) payload[payloadResult.ordinal()].increment();
+        if (blockResult != null) block[blockResult.ordinal()].increment();
+        if (truncated || payloadResult == Verification.MISMATCH || blockResult == Verification.MISMATCH) {
+            problemCount.increment();
+            synchronized (problems) {
+                if (problems.size() < MAX_PROBLEMS) {
+                    problems.add("payload=" + payloadResult + " block=" + blockResult + " " + filename + ":" +
+                            position + " " + url);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an input that couldn't be read to the end, so its remaining records weren't verified.
+     */
+    void addFailedInput(String filename, Exception error) {
+        failedInputs.increment();
+        problemCount.increment();
+        synchronized (problems) {
+            if (problems.size() < MAX_PROBLEMS) {
+                problems.add("failed input " + filename + ": " + error);
+            }
+        }
+    }
+
+    /**
+     * Whether any record had a digest mismatch or was truncated, or any input couldn't be read.
+     */
+    boolean hasFailures() {
+        return problemCount.sum() > 0;
+    }
+
+    void print(PrintStream out) {
+        out.println("Verified " + records.sum() + " records");
+        out.println("  payload digests: " + counts(payload));
+        out.println("  block digests:   " + counts(block));
+        out.println("  truncated:       " + truncated.sum());
+        out.println("  failed inputs:   " + failedInputs.sum());
+        long total = problemCount.sum();
+        if (total > 0) {
+            synchronized (problems) {
+                out.println("  failures" + (total > problems.size() ? " (first " + problems.size() + " of " + total +
+                        ")" : "") + ":");
+                for (String problem : problems) {
+                    out.println("    " + problem);
+                }
+            }
+        }
+    }
+
+    private static String counts(LongAdder[] counters) {
+        var sb = new StringBuilder();
+        for (Verification verification : Verification.values()) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(verification).append('=').append(counters[verification.ordinal()].sum());
+        }
+        return sb.toString();
+    }
+}
@@ -5,40 +5,175 @@
 
 package org.netpreserve.warcquet;
 
-import com.google.common.hash.Funnels;
-import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
 import org.apache.parquet.column.ParquetProperties;
-import org.apache.parquet.hadoop.ParquetWriter;
 import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 import org.netpreserve.jwarc.*;
-import org.netpreserve.warcquet.util.PathOutputFile;
+import org.netpreserve.warcquet.DigestEngine.Algorithm;
+import org.netpreserve.warcquet.util.FileRangeChannel;
+import org.netpreserve.warcquet.util.RangedHttpFetcher;
+import org.netpreserve.warcquet.util.UuidHashMap;
 
-import java.io.EOFException;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class Warc2Warcquet {
+    public static final int DEFAULT_WINDOW_RECORDS = 32;
+    public static final long DEFAULT_WINDOW_BYTES = 16 * 1024 * 1024;
+    public static final List<String> DEFAULT_HEADERS = List.of("cache-control", "content-encoding", "last-modified",
+            "referer", "set-cookie", "user-agent", "x-powered-by");
+    private static final long FOLLOW_POLL_MILLIS = 1000;
+    private static final HashFunction RECORD_ID_HASH = Hashing.murmur3_128();
+
     private String filename;
-    private final Set<URI> concurrentIdSet = new HashSet<>();
-    private final ParquetWriter<CaptureEvent> writer;
+    private List<CaptureEventSink> sinks;
+    private final ArrayDeque<OpenCapture> window = new ArrayDeque<>();
+    private final UuidHashMap<OpenCapture> openRecordIds = new UuidHashMap<>();
+    private int windowRecords = DEFAULT_WINDOW_RECORDS;
+    private long windowBytes = DEFAULT_WINDOW_BYTES;
+    private long recordIndex;
+    private OpenCapture capture;
     private MutableCaptureEvent event;
-    private String referrer;
+    // when following: the records of emitted captures that a rescan must skip, as {position, msb, lsb}
+    private boolean trackEmittedRecords;
+    private final List<long[]> emittedRecords = new ArrayList<>();
+    private final Set<UUID> skipRecordIds = new HashSet<>();
     private final boolean verbose;
     private String software;
     private String softwareVersion;
+    private CaptureFilter filter;
+    private ConversionMetrics metrics = new ConversionMetrics();
+    private RangedHttpFetcher fetcher;
+    private int prefetchFiles;
+    private DigestEngine digests = new DigestEngine(EnumSet.of(Algorithm.SHA1), EnumSet.noneOf(Algorithm.class));
+    private VerificationReport verification;
+    private LinkExtractor linkExtractor;
+    private List<String> headerAllowlist = DEFAULT_HEADERS;
 
-    private Warc2Warcquet(ParquetWriter<CaptureEvent> writer, boolean verbose) {
-        this.writer = writer;
+    /**
+     * Creates a converter that feeds each capture event to all the given sinks in order.
+     */
+    public Warc2Warcquet(List<CaptureEventSink> sinks, boolean verbose) {
+        this.sinks = sinks;
         this.verbose = verbose;
     }
 
-    private void startFile(String filename) {
+    /**
+     * Replaces the sinks. Should only be called between input files.
+     */
+    public void setSinks(List<CaptureEventSink> sinks) {
+        this.sinks = sinks;
+    }
+
+    /**
+     * Fetches HTTP(S) inputs with concurrent range requests, prefetching the given number of upcoming inputs.
+     */
+    public void setFetcher(RangedHttpFetcher fetcher, int prefetchFiles) {
+        this.fetcher = fetcher;
+        this.prefetchFiles = prefetchFiles;
+    }
+
+    /**
+     * Sets which digests to compute of response payloads and of whole response blocks. Request payloads get a sha1
+     * if payload sha1s are enabled. All are computed in a single pass over each record.
+     */
+    public void setDigests(Set<Algorithm> payloadAlgorithms, Set<Algorithm> blockAlgorithms) {
+        this.digests = new DigestEngine(payloadAlgorithms, blockAlgorithms);
+        digests.setVerify(verification != null);
+    }
+
+    /**
+     * Recomputes the digests declared in response records instead of trusting them, recording the results in the
+     * verification columns and adding them to the given report. Null turns verification off.
+     */
+    void setVerification(VerificationReport verification) {
+        this.verification = verification;
+        digests.setVerify(verification != null);
+    }
+
+    /**
+     * Sets which HTTP request and response headers to store in the header map columns. Names are case-insensitive
+     * and stored in lowercase, in allowlist order. An empty allowlist leaves the columns null.
+     */
+    public void setHeaderAllowlist(Collection<String> names) {
+        var allowlist = new ArrayList<String>();
+        for (String name : names) {
+            String lowercase = name.trim().toLowerCase(Locale.ROOT);
+            if (!lowercase.isEmpty() && !allowlist.contains(lowercase)) allowlist.add(lowercase);
+        }
+        this.headerAllowlist = allowlist;
+    }
+
+    /**
+     * Extracts the outlinks of HTML responses as their payloads are read, for {@link LinkGraphSink} to write. Null
+     * turns link extraction off.
+     */
+    void setLinkExtractor(LinkExtractor linkExtractor) {
+        this.linkExtractor = linkExtractor;
+    }
+
+    /**
+     * Returns a new converter with the same settings feeding the given sinks, e.g. to convert another input
+     * concurrently. The metrics, verification report, link extractor and fetcher are shared.
+     */
+    Warc2Warcquet copySettings(List<CaptureEventSink> sinks) {
+        var copy = new Warc2Warcquet(sinks, verbose);
+        copy.filter = filter;
+        copy.windowRecords = windowRecords;
+        copy.windowBytes = windowBytes;
+        copy.metrics = metrics;
+        copy.verification = verification;
+        copy.linkExtractor = linkExtractor;
+        copy.headerAllowlist = headerAllowlist;
+        copy.digests = digests.copy();
+        copy.fetcher = fetcher;
+        copy.prefetchFiles = prefetchFiles;
+        return copy;
+    }
+
+    /**
+     * Only convert captures accepted by the given filter.
+     */
+    public void setFilter(CaptureFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Sets how far apart the records of one capture may be. Records are grouped into a capture by their
+     * WARC-Record-ID and WARC-Concurrent-To headers as long as they start within the given number of records and
+     * bytes of the capture's first record. Captures are emitted in the order they started once they fall out of the
+     * window.
+     */
+    public void setWindow(int records, long bytes) {
+        if (records < 1) throw new IllegalArgumentException("window must be at least one record");
+        this.windowRecords = records;
+        this.windowBytes = bytes;
+    }
+
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    void startFile(String filename) {
         softwareVersion = null;
         software = null;
         this.filename = filename;
@@ -63,11 +198,15 @@ public class Warc2Warcquet {
 
     public void startResponse(WarcResponse response, long position) throws IOException {
         if (response.contentType().equals(MediaType.HTTP_RESPONSE)) {
+            long start = System.nanoTime();
             try {
                 handleHttpResponse(response.http());
             } catch (ParsingException e) {
+                metrics.addParseError("http_response");
                 if (verbose) System.err.println(e);
                 return;
+            } finally {
+                metrics.addHeaderParsingTime(System.nanoTime() - start);
             }
         }
         startResponseOrResource(response, position);
@@ -75,6 +214,7 @@ public class Warc2Warcquet {
 
     private void handleHttpResponse(HttpResponse httpResponse) throws IOException {
         event.setHttpStatus(httpResponse.status());
+        event.setResponseHeaders(selectHeaders(httpResponse.headers()));
         httpResponse.headers().first("Location").ifPresent(event::setRedirect);
         String serverField = httpResponse.headers().first("Server").orElse(null);
         if (serverField != null) {
@@ -89,85 +229,169 @@ public class Warc2Warcquet {
         }
     }
 
+    /**
+     * Returns the allowlisted headers, joining repeated ones, or null if the allowlist is empty.
+     */
+    private Map<String, String> selectHeaders(MessageHeaders headers) {
+        if (headerAllowlist.isEmpty()) return null;
+        var selected = new LinkedHashMap<String, String>();
+        for (String name : headerAllowlist) {
+            List<String> values = headers.all(name);
+            if (values.isEmpty()) continue;
+            // cookies may contain commas so aren't safe to join the usual way
+            selected.put(name, values.size() == 1 ? values.get(0) :
+                    String.join(name.equals("set-cookie") ? "\n" : ", ", values));
+        }
+        return selected;
+    }
+
     public void startResource(WarcResource resource, long position) throws IOException {
         startResponseOrResource(resource, position);
     }
 
     public UUID getRecordUUID(WarcRecord record) {
         String id = record.headers().first("WARC-Record-ID").orElse(null);
+        if (id == null) return null;
+        return parseUUID(id);
+    }
+
+    /**
+     * Parses a "<urn:uuid:...>" record id, with or without the angle brackets. Returns null if it isn't a UUID.
+     */
+    static UUID parseUUID(String id) {
+        int start = id.startsWith("<") ? 1 : 0;
+        int end = id.endsWith(">") ? id.length() - 1 : id.length();
         String uuidPrefix = "urn:uuid:";
-        if (id == null || !id.startsWith(uuidPrefix)) return null;
-        return UUID.fromString(id.substring(uuidPrefix.length()));
+        if (!id.startsWith(uuidPrefix, start)) return null;
+        try {
+            return UUID.fromString(id.substring(start + uuidPrefix.length(), end));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
-    private static UUID idToUUID(URI id) {
-        if (!id.getScheme().equals("urn")) return null;
-        var part = id.getSchemeSpecificPart();
-        if (!part.startsWith("uuid:")) return null;
-        return UUID.fromString(part.substring(5));
+    /**
+     * Returns the UUID of a record id, or a 128-bit hash of it for ids that aren't UUIDs.
+     */
+    private static UUID recordIdKey(String id) {
+        UUID uuid = parseUUID(id);
+        if (uuid != null) return uuid;
+        var hash = ByteBuffer.wrap(RECORD_ID_HASH.hashString(id, StandardCharsets.UTF_8).asBytes());
+        return new UUID(hash.getLong(), hash.getLong());
     }
 
     public void startResponseOrResource(WarcCaptureRecord record, long position) throws IOException {
         String url = record.target();
+        long start = System.nanoTime();
         event.setUrlFields(url);
+        metrics.addSurtTime(System.nanoTime() - start);
         event.setDate(record.date());
         event.setResponsePosition(position);
         event.setResponseRecordType(record.type());
         event.setResponseUUID(getRecordUUID(record));
+        if (filter != null && (!filter.acceptsRecord(record.type(), url, event.getSurtKey(), event.getDate()) ||
+                (record instanceof WarcResponse && !filter.acceptsStatus(event.getHttpStatus())))) {
+            capture.skipping = true;
+            return;
+        }
         record.ipAddress().ifPresent(event::setIpAddress);
         try {
-            var payload = record.payload().orElse(null);
+            var payload = payload(record);
             if (payload != null) {
                 try {
                     event.setResponsePayloadType(payload.type().base().toString());
                 } catch (IllegalArgumentException e) {
-                    // ignore bad media-type
+                    metrics.addParseError("payload_type");
                 }
-                byte[] sha1 = consumeAndSha1Payload(payload);
-                event.setResponsePayloadLength(payload.body().position());
-                if (event.getResponseLength() > 0) {
-                    event.setResponsePayloadSha1(sha1);
+                if (filter != null && !(record instanceof WarcRevisit) &&
+                        !filter.acceptsPayloadType(event.getResponsePayloadType())) {
+                    capture.skipping = true;
+                    return;
                 }
             }
+            LinkExtractor.Tee tee = null;
+            if (linkExtractor != null && payload != null && !(record instanceof WarcRevisit) &&
+                    LinkExtractor.isHtml(event.getResponsePayloadType())) {
+                tee = linkExtractor.tee(url, contentEncoding(record));
+            }
+            digest(record, payload, true, tee);
+            if (tee != null) event.setLinks(linkExtractor.submit(tee));
+            if (payload != null) {
+                event.setResponsePayloadLength(digests.payloadLength());
+                if (digests.payloadLength() > 0) {
+                    event.setResponsePayloadSha1(digests.payloadDigest(Algorithm.SHA1));
+                    event.setResponsePayloadSha256(digests.payloadDigest(Algorithm.SHA256));
+                    event.setResponsePayloadMurmur3(digests.payloadDigest(Algorithm.MURMUR3));
+                }
+            }
+            event.setResponseBlockSha1(digests.blockDigest(Algorithm.SHA1));
+            event.setResponseBlockSha256(digests.blockDigest(Algorithm.SHA256));
+            event.setResponseBlockMurmur3(digests.blockDigest(Algorithm.MURMUR3));
+            if (digests.bodyRead()) event.setResponseTruncated(digests.isTruncated());
+            if (verification != null) {
+                event.setResponsePayloadDigestStatus(Objects.toString(digests.payloadVerification(), null));
+                event.setResponsePayloadDigestActual(digests.actualPayloadDigest());
+                event.setResponseBlockDigestStatus(Objects.toString(digests.blockVerification(), null));
+                event.setResponseBlockDigestActual(digests.actualBlockDigest());
+                verification.add(filename, position, url, digests.payloadVerification(),
+                        digests.blockVerification(), digests.isTruncated());
+            }
         } catch (ParsingException e) {
+            metrics.addParseError("response_payload");
             if (verbose) System.err.println(e);
         }
     }
 
     private void startRevisit(WarcRevisit revisit, long position) throws IOException {
-        startResponseOrResource(revisit, position);
-        revisit.refersTo().map(Warc2Warcquet::idToUUID).ifPresent(event::setRefersToUUID);
-        revisit.refersToDate().ifPresent(event::setRefersToDate);
-        revisit.headers().first("WARC-Refers-To-Target-URI").ifPresent(event::setRefersToUrl);
+        // parse the HTTP header before startResponseOrResource reads the block for its digests
         if (revisit.contentType().equals(MediaType.HTTP_RESPONSE)) {
+            long start = System.nanoTime();
             try {
                 handleHttpResponse(revisit.http());
             } catch (ParsingException e) {
+                metrics.addParseError("revisit_http_response");
                 if (verbose) System.err.println(e);
+            } finally {
+                metrics.addHeaderParsingTime(System.nanoTime() - start);
             }
         }
+        startResponseOrResource(revisit, position);
+        if (capture.skipping) return;
+        revisit.headers().first("WARC-Refers-To").map(Warc2Warcquet::parseUUID).ifPresent(event::setRefersToUUID);
+        revisit.refersToDate().ifPresent(event::setRefersToDate);
+        revisit.headers().first("WARC-Refers-To-Target-URI").ifPresent(event::setRefersToUrl);
     }
 
-    public byte[] consumeAndSha1Payload(WarcPayload payload) throws IOException {
-        var digest = payload.digest().orElse(null);
-        if (digest != null && digest.algorithm().equals("sha1")) {
-            try {
-                payload.body().consume();
-            } catch (EOFException e) {
-                // truncated
-            }
-            return digest.bytes();
-        } else {
-            @SuppressWarnings({"deprecation", "UnstableApiUsage"}) Hasher hasher = Hashing.sha1().newHasher();
-            try {
-                ByteStreams.copy(payload.body().stream(), Funnels.asOutputStream(hasher));
-            } catch (EOFException e) {
-                // truncated
-            }
-            return hasher.hash().asBytes();
+    /**
+     * Returns the record's payload, timing the parsing of any HTTP headers.
+     */
+    private WarcPayload payload(WarcCaptureRecord record) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return record.payload().orElse(null);
+        } finally {
+            metrics.addHeaderParsingTime(System.nanoTime() - start);
         }
     }
 
+    /**
+     * Returns the Content-Encoding of an HTTP response record's payload, or null.
+     */
+    private static String contentEncoding(WarcCaptureRecord record) throws IOException {
+        if (!(record instanceof WarcResponse) || !record.contentType().equals(MediaType.HTTP_RESPONSE)) return null;
+        return ((WarcResponse) record).http().headers().first("Content-Encoding").orElse(null);
+    }
+
+    /**
+     * Reads the record's payload and block, computing the configured digests and passing the payload through the
+     * tee if it isn't null.
+     */
+    private void digest(WarcCaptureRecord record, WarcPayload payload, boolean includeBlock,
+                        Consumer<ByteBuffer> tee) throws IOException {
+        digests.digest(record, payload, includeBlock, metrics, tee);
+        if (digests.isTruncated()) metrics.addParseError("truncated_payload");
+    }
+
     private void endResponseOrResource(WarcCaptureRecord record, long position, long length) {
         event.setResponsePosition(position);
         event.setResponseLength(length);
@@ -177,24 +401,26 @@ public class Warc2Warcquet {
         request.ipAddress().ifPresent(event::setIpAddress);
         event.setRequestUUID(getRecordUUID(request));
         try {
-            var payload = request.payload().orElse(null);
+            var payload = payload(request);
             if (payload != null) {
                 try {
                     event.setRequestPayloadType(payload.type().base().toString());
                 } catch (IllegalArgumentException e) {
-                    // ignore bad media-type
+                    metrics.addParseError("payload_type");
                 }
-                byte[] sha1 = consumeAndSha1Payload(payload);
-                event.setRequestPayloadLength(payload.body().position());
+                digest(request, payload, false, null);
+                event.setRequestPayloadLength(digests.payloadLength());
                 if (event.getRequestPayloadLength() > 0) {
-                    event.setRequestPayloadSha1(sha1);
+                    event.setRequestPayloadSha1(digests.payloadDigest(Algorithm.SHA1));
                 }
             }
             if (request.contentType().equals(MediaType.HTTP_REQUEST)) {
                 event.setHttpMethod(request.http().method());
-                referrer = request.http().headers().first("Referer").orElse(null);
+                event.setRequestHeaders(selectHeaders(request.http().headers()));
+                capture.referrer = request.http().headers().first("Referer").orElse(null);
             }
         } catch (ParsingException e) {
+            metrics.addParseError("request");
             if (verbose) System.err.println(e);
         }
     }
@@ -211,66 +437,114 @@ public class Warc2Warcquet {
         }
     }
 
-    private void startCaptureEvent() {
+    private void startCaptureEvent(long position) {
         if (verbose) System.out.println("-- capture --");
-        event = new MutableCaptureEvent();
-        event.setFilename(filename);
-        event.setSoftware(software);
-        event.setSoftwareVersion(softwareVersion);
+        capture = new OpenCapture(recordIndex, position);
+        capture.event.setFilename(filename);
+        capture.event.setSoftware(software);
+        capture.event.setSoftwareVersion(softwareVersion);
+        window.add(capture);
     }
 
-    private void endCaptureEvent() throws IOException {
+    private void endCaptureEvent(OpenCapture capture) throws IOException {
         if (verbose) System.out.println("-- /capture --");
-        if (event.getVia() == null && referrer != null) {
-            event.setVia(referrer);
+        for (int i = 0; i < capture.idCount; i += 2) {
+            if (openRecordIds.get(capture.ids[i], capture.ids[i + 1]) == capture) {
+                openRecordIds.remove(capture.ids[i], capture.ids[i + 1]);
+            }
         }
-        if (event.getUrl() != null) {
-            writer.write(event);
+        if (trackEmittedRecords) {
+            for (int i = 0; i < capture.recordCount; i += 3) {
+                emittedRecords.add(Arrays.copyOfRange(capture.records, i, i + 3));
+            }
+        }
+        MutableCaptureEvent event = capture.event;
+        if (event.getVia() == null && capture.referrer != null) {
+            event.setVia(capture.referrer);
+        }
+        if (event.getUrl() != null && !capture.skipping && (filter == null || filter.accepts(event))) {
+            metrics.addCapture();
+            for (CaptureEventSink sink : sinks) {
+                sink.accept(event);
+            }
         }
-        event = null;
-        referrer = null;
     }
 
-    private boolean isConcurrentToCurrentEvent(WarcCaptureRecord record) {
-        if (record.headers().first("WARC-Record-ID").isPresent() &&
-                concurrentIdSet.contains(record.id())) {
-            return true;
-        }
-        for (URI id : record.concurrentTo()) {
-            if (concurrentIdSet.contains(id)) {
-                return true;
+    /**
+     * Emits the captures that have fallen out of the window.
+     */
+    private void expireCaptures(long position) throws IOException {
+        while (!window.isEmpty()) {
+            OpenCapture oldest = window.peek();
+            if (recordIndex - oldest.startIndex < windowRecords && position - oldest.startPosition < windowBytes) {
+                break;
             }
+            endCaptureEvent(window.poll());
         }
-        return false;
+    }
+
+    private void discardCaptureEvents() {
+        window.clear();
+        openRecordIds.clear();
+        capture = null;
+        event = null;
+    }
+
+    private void endAllCaptureEvents() throws IOException {
+        while (!window.isEmpty()) {
+            endCaptureEvent(window.poll());
+        }
+        capture = null;
+        event = null;
     }
 
     public void startRecord(WarcRecord record, long position) throws IOException {
+        recordIndex++;
+        expireCaptures(position);
         if (record instanceof WarcCaptureRecord) {
-            WarcCaptureRecord captureRecord = (WarcCaptureRecord) record;
-            if (!isConcurrentToCurrentEvent(captureRecord)) {
-                // record is not concurrent so start a new capture event
-                if (event != null) {
-                    endCaptureEvent();
-                    concurrentIdSet.clear();
-                }
-                startCaptureEvent();
+            String recordId = record.headers().first("WARC-Record-ID").orElse(null);
+            List<String> concurrentTo = record.headers().all("WARC-Concurrent-To");
+            var keys = new ArrayList<UUID>(concurrentTo.size() + 1);
+            if (recordId != null) keys.add(recordIdKey(recordId));
+            for (String id : concurrentTo) {
+                keys.add(recordIdKey(id));
             }
-            if (captureRecord.headers().first("WARC-Record-ID").isPresent()) {
-                concurrentIdSet.add(captureRecord.id());
+            if (recordId != null && !skipRecordIds.isEmpty() && skipRecordIds.remove(keys.get(0))) {
+                // belongs to a capture emitted before resuming
+                capture = null;
+                event = null;
+                return;
             }
-            concurrentIdSet.addAll(captureRecord.concurrentTo());
-        } else {
-            // we encountered a non-capture record so end any active capture event
-            if (event != null) {
-                endCaptureEvent();
-                concurrentIdSet.clear();
+
+            // join the open capture this record is concurrent to, or start a new one
+            capture = null;
+            for (UUID key : keys) {
+                capture = openRecordIds.get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+                if (capture != null) break;
             }
+            if (capture == null) {
+                startCaptureEvent(position);
+            }
+            for (UUID key : keys) {
+                if (openRecordIds.get(key.getMostSignificantBits(), key.getLeastSignificantBits()) == null) {
+                    openRecordIds.put(key.getMostSignificantBits(), key.getLeastSignificantBits(), capture);
+                    capture.addId(key);
+                }
+            }
+            if (trackEmittedRecords && recordId != null) capture.addRecord(position, keys.get(0));
+            event = capture.event;
+        } else {
+            // we encountered a non-capture record so end any open captures
+            endAllCaptureEvents();
         }
 
         if (verbose) {
             String url = record instanceof WarcCaptureRecord ? ((WarcCaptureRecord) record).target() : null;
             System.out.println(record.type() + " " + record.date() + " " + url);
         }
+        if (capture != null && capture.skipping) {
+            return;
+        }
         if (record instanceof WarcRequest) {
             startRequest((WarcRequest) record, position);
         } else if (record instanceof WarcResponse) {
@@ -287,6 +561,7 @@ public class Warc2Warcquet {
     }
 
     public void endRecord(WarcRecord record, long position, long length) {
+        if (capture == null || capture.skipping) return;
         if (record instanceof WarcRequest) {
             endRequest((WarcRequest) record, position, length);
         } else if (record instanceof WarcResponse) {
@@ -298,28 +573,114 @@ public class Warc2Warcquet {
         }
     }
 
+    /**
+     * Reads the next record. The time is counted as header parsing although it includes decompressing the headers
+     * and skipping any unread part of the previous record.
+     */
+    private WarcRecord nextRecord(WarcReader reader) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return reader.next().orElse(null);
+        } finally {
+            metrics.addHeaderParsingTime(System.nanoTime() - start);
+        }
+    }
+
     public void scan(WarcReader reader, String filename) throws IOException {
         startFile(filename);
-        WarcRecord record = reader.next().orElse(null);
+        scanRecords(reader, -1);
+        endFile();
+    }
+
+    /**
+     * Converts the records read by the reader, leaving captures that may still have records to come in the reorder
+     * window. Called repeatedly between {@link #startFile(String)} and {@link #endFile()} to follow a growing WARC.
+     * If end is not -1 it is taken as the end of the last record, as the reader's position at the end of a compressed
+     * range doesn't always include the gzip trailer.
+     */
+    void scanRecords(WarcReader reader, long end) throws IOException {
+        WarcRecord record = nextRecord(reader);
         while (record != null) {
             long position = reader.position();
             startRecord(record, position);
-            WarcRecord next = reader.next().orElse(null);
-            long length = reader.position() - position;
+            WarcRecord next = nextRecord(reader);
+            long length = (next == null && end != -1 ? end : reader.position()) - position;
+            metrics.addRecord(length);
             endRecord(record, position, length);
             record = next;
         }
-        if (event != null) {
-            endCaptureEvent();
+    }
+
+    /**
+     * Emits the captures still in the reorder window.
+     */
+    void endFile() throws IOException {
+        endAllCaptureEvents();
+    }
+
+    /**
+     * Returns the position of the first record of the oldest capture not yet emitted, or the given position if all
+     * captures have been emitted. Emitted captures may still have records after it, see
+     * {@link #emittedRecordIds(long)}.
+     */
+    long pendingPosition(long position) {
+        return window.isEmpty() ? position : window.peek().startPosition;
+    }
+
+    /**
+     * Starts remembering the records of emitted captures, for {@link #emittedRecordIds(long)}.
+     */
+    void trackEmittedRecords() {
+        trackEmittedRecords = true;
+    }
+
+    /**
+     * Returns the ids of records at or after the given position that belong to captures already emitted, or that are
+     * still to be skipped. Rescanning from the position while skipping them emits every remaining capture exactly
+     * once. Records before the position are forgotten.
+     */
+    Set<UUID> emittedRecordIds(long position) {
+        emittedRecords.removeIf(record -> record[0] < position);
+        var ids = new HashSet<>(skipRecordIds);
+        for (long[] record : emittedRecords) {
+            ids.add(new UUID(record[1], record[2]));
         }
+        return ids;
+    }
+
+    /**
+     * Skips the records with the given ids, which belong to captures emitted before resuming.
+     */
+    void skipRecords(Set<UUID> ids) {
+        skipRecordIds.addAll(ids);
     }
 
     public static void main(String[] args) throws IOException {
         Path outFile = null;
+        Path cdxjFile = null;
+        var filter = new CaptureFilter();
+        int metricsInterval = 0;
+        int windowRecords = DEFAULT_WINDOW_RECORDS;
+        long windowBytes = DEFAULT_WINDOW_BYTES;
+        Instant fromDate = null;
+        Instant toDate = null;
         var warcFiles = new ArrayList<String>();
-        CompressionCodecName compression = CompressionCodecName.UNCOMPRESSED;
-        ParquetProperties.WriterVersion parquetVersion = ParquetProperties.WriterVersion.PARQUET_1_0;
+        var outputs = new OutputSpec();
         boolean verbose = false;
+        long partSize = 0;
+        boolean resume = false;
+        boolean follow = false;
+        int commitInterval = 5;
+        boolean queue = false;
+        int leaseSeconds = 600;
+        int httpConnections = 4;
+        int httpChunkSize = 8 * 1024 * 1024;
+        int httpPrefetch = 1;
+        Set<Algorithm> payloadDigests = EnumSet.of(Algorithm.SHA1);
+        Set<Algorithm> blockDigests = EnumSet.noneOf(Algorithm.class);
+        boolean verify = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String headers = null;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("-")) {
@@ -330,10 +691,109 @@ public class Warc2Warcquet {
                         break;
                     case "-c":
                     case "--compression":
-                        compression = CompressionCodecName.fromConf(args[++i]);
+                        outputs.compression = CompressionCodecName.fromConf(args[++i]);
+                        break;
+                    case "--cdxj":
+                        cdxjFile = Paths.get(args[++i]);
+                        break;
+                    case "--block-digests":
+                        blockDigests = Algorithm.parseList(args[++i]);
+                        break;
+                    case "--digests":
+                        payloadDigests = Algorithm.parseList(args[++i]);
+                        break;
+                    case "--metrics-interval":
+                        metricsInterval = Integer.parseInt(args[++i]);
                         break;
                     case "--parquet-version":
-                        parquetVersion = ParquetProperties.WriterVersion.fromString(args[++i]);
+                        outputs.parquetVersion = ParquetProperties.WriterVersion.fromString(args[++i]);
+                        break;
+                    case "--commit-interval":
+                        commitInterval = Integer.parseInt(args[++i]);
+                        break;
+                    case "--follow":
+                        follow = true;
+                        break;
+                    case "--headers":
+                        headers = args[++i];
+                        break;
+                    case "--http-chunk-size":
+                        httpChunkSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--http-connections":
+                        httpConnections = Integer.parseInt(args[++i]);
+                        break;
+                    case "--http-prefetch":
+                        httpPrefetch = Integer.parseInt(args[++i]);
+                        break;
+                    case "-i":
+                    case "--input-list":
+                        for (String line : Files.readAllLines(Paths.get(args[++i]))) {
+                            if (!line.isBlank()) warcFiles.add(line.strip());
+                        }
+                        break;
+                    case "--lease":
+                        leaseSeconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "--queue":
+                        queue = true;
+                        break;
+                    case "--part-size":
+                        partSize = Long.parseLong(args[++i]);
+                        break;
+                    case "--resume":
+                        resume = true;
+                        break;
+                    case "--links":
+                        outputs.links = true;
+                        break;
+                    case "--rollups":
+                        outputs.rollups = true;
+                        break;
+                    case "--rollup-max-entries":
+                        outputs.rollupMaxEntries = Integer.parseInt(args[++i]);
+                        break;
+                    case "--record-type":
+                        filter.recordTypes(Arrays.asList(args[++i].split(",")));
+                        break;
+                    case "--status":
+                        filter.statuses(Arrays.asList(args[++i].split(",")));
+                        break;
+                    case "--payload-type":
+                        filter.payloadTypes(Arrays.asList(args[++i].split(",")));
+                        break;
+                    case "--url-prefix":
+                        filter.urlPrefix(args[++i]);
+                        break;
+                    case "--surt-prefix":
+                        filter.surtPrefix(args[++i]);
+                        break;
+                    case "--from":
+                        fromDate = CaptureFilter.parseDate(args[++i]);
+                        filter.dateRange(fromDate, toDate);
+                        break;
+                    case "--to":
+                        toDate = CaptureFilter.parseDate(args[++i]);
+                        filter.dateRange(fromDate, toDate);
+                        break;
+                    case "--sample":
+                        filter.sampleRate(Double.parseDouble(args[++i]));
+                        break;
+                    case "--sink-buffer":
+                        outputs.sinkBuffer = Integer.parseInt(args[++i]);
+                        break;
+                    case "-t":
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--verify":
+                        verify = true;
+                        break;
+                    case "--window-records":
+                        windowRecords = Integer.parseInt(args[++i]);
+                        break;
+                    case "--window-bytes":
+                        windowBytes = Long.parseLong(args[++i]);
                         break;
                     case "--verbose":
                     case "-v":
@@ -344,10 +804,48 @@ public class Warc2Warcquet {
                         System.out.print("Usage: Warc2Parquet [OPTIONS] -o outfile.parquet warc-files...\n" +
                                 "\n" +
                                 "Options:\n" +
+                                "      --block-digests ALGS    Digests of each whole response block: sha1,sha256,murmur3 (default none)\n" +
                                 "  -c, --compression CODEC     Output compression codec " + Arrays.asList(CompressionCodecName.values()) + "\n" +
+                                "      --cdxj FILE             Also write an unsorted CDXJ index\n" +
+                                "      --commit-interval SECS  With --follow, seal a part file at most every SECS seconds\n" +
+                                "      --digests ALGS          Payload digests: sha1,sha256,murmur3 or none (default sha1)\n" +
+                                "      --follow                Follow a single WARC that is still being written, e.g. a .warc.gz.open\n" +
+                                "                              file, writing part files until the crawler renames it\n" +
+                                "      --from DATE             Only captures on or after DATE (yyyyMMddHHmmss prefix or ISO-8601)\n" +
+                                "      --headers NAMES         HTTP headers to store in the header map columns (comma separated,\n" +
+                                "                              or none). Default: " + String.join(",", DEFAULT_HEADERS) + "\n" +
+                                "      --http-chunk-size BYTES Size of each range request for HTTP(S) inputs (default 8MB)\n" +
+                                "      --http-connections N    Concurrent range requests per HTTP(S) input, 0 for one plain request\n" +
+                                "      --http-prefetch N       Start fetching the next N HTTP(S) inputs early (default 1)\n" +
+                                "  -i, --input-list FILE       Read input files from FILE, one per line\n" +
+                                "      --lease SECS            With --queue, seconds before a crashed worker's input is reclaimed\n" +
+                                "      --links                 Also write the outlinks of HTML responses to an edge table\n" +
+                                "      --metrics-interval SECS Log throughput and stage timings every SECS seconds\n" +
                                 "  -o, --output-file FILE      Output parquet file (mandatory)\n" +
                                 "      --parquet-version VERS  Output parquet version (v1, v2)\n" +
-                                "  -v, --verbose               Increase logging detail\n");
+                                "      --part-size BYTES       Write numbered part files, sealing one after each input once\n" +
+                                "                              BYTES of WARC data have been read, and track them in a checkpoint\n" +
+                                "      --payload-type TYPES    Only captures with these payload media types (comma separated)\n" +
+                                "      --queue                 Run as one of several workers sharing the inputs through lock files,\n" +
+                                "                              writing a part file and .done marker per input, largest first\n" +
+                                "      --record-type TYPES     Only captures of these record types (response,resource,revisit)\n" +
+                                "      --resume                Continue a --part-size or --follow conversion from its checkpoint\n" +
+                                "      --rollups               Also write per-domain-day and per-payload-type rollup files\n" +
+                                "      --rollup-max-entries N  Rollup keys held in memory before spilling to disk\n" +
+                                "      --sample RATE           Only a deterministic fraction (0-1) of URLs, hashed on surt_key\n" +
+                                "      --sink-buffer N         Run each output on its own thread with a queue of N captures\n" +
+                                "      --status CODES          Only captures with these HTTP statuses, e.g. 200,3xx\n" +
+                                "      --surt-prefix PREFIX    Only captures whose SURT starts with PREFIX (repeatable)\n" +
+                                "      --to DATE               Only captures before DATE\n" +
+                                "  -t, --threads N             With --verify, inputs verified at once, with --links, link\n" +
+                                "                              extraction threads (default: number of CPUs)\n" +
+                                "      --url-prefix PREFIX     Only captures whose URL starts with PREFIX (repeatable)\n" +
+                                "  -v, --verbose               Increase logging detail\n" +
+                                "      --verify                Recompute and check the payload and block digests declared in\n" +
+                                "                              responses, print a summary and exit with 1 on mismatches or\n" +
+                                "                              truncated records\n" +
+                                "      --window-bytes N        Max bytes between the first and last record of a capture\n" +
+                                "      --window-records N      Max records between the first and last record of a capture\n");
                         System.exit(0);
                         break;
                     default:
@@ -369,27 +867,541 @@ public class Warc2Warcquet {
             System.exit(1);
         }
 
-        try (var writer = new WarcquetWriterBuilder(new PathOutputFile(outFile))
-                .withCompressionCodec(compression)
-                .withWriterVersion(parquetVersion)
-                .build()) {
-            Warc2Warcquet converter = new Warc2Warcquet(writer, verbose);
+        if (queue && (follow || partSize > 0 || resume)) {
+            System.err.println("Warc2Parquet: --queue can't be combined with --follow, --part-size or --resume");
+            System.exit(1);
+        }
+        if (follow && (warcFiles.size() != 1 || partSize > 0)) {
+            System.err.println("Warc2Parquet: --follow takes exactly one input and can't be combined with --part-size");
+            System.exit(1);
+        }
+        if (resume && partSize <= 0 && !follow) {
+            System.err.println("Warc2Parquet: --resume requires --part-size or --follow");
+            System.exit(1);
+        }
+        if ((partSize > 0 || follow) && !resume && Files.exists(Checkpoint.pathFor(outFile))) {
+            System.err.println("Warc2Parquet: " + Checkpoint.pathFor(outFile) + " exists, use --resume to continue it");
+            System.exit(1);
+        }
+
+        RangedHttpFetcher fetcher = null;
+        int failures = 0;
+        var metrics = new ConversionMetrics();
+        metrics.register(outFile.getFileName().toString());
+        ScheduledExecutorService metricsLogger = metricsInterval > 0 ?
+                metrics.startLogging(System.err, metricsInterval) : null;
+        VerificationReport verification = verify ? new VerificationReport() : null;
+        LinkExtractor linkExtractor = outputs.links ? new LinkExtractor(threads, LinkExtractor.DEFAULT_MAX_BYTES,
+                LinkExtractor.DEFAULT_MAX_LINKS) : null;
+        try {
+            Warc2Warcquet converter = new Warc2Warcquet(new ArrayList<>(), verbose);
+            converter.setFilter(filter);
+            converter.setWindow(windowRecords, windowBytes);
+            converter.setMetrics(metrics);
+            converter.setVerification(verification);
+            converter.setDigests(payloadDigests, blockDigests);
+            converter.setLinkExtractor(linkExtractor);
+            if (headers != null) {
+                converter.setHeaderAllowlist(headers.equals("none") ? List.of() : Arrays.asList(headers.split(",")));
+            }
+            if (httpConnections > 0 && warcFiles.stream().anyMatch(Warc2Warcquet::isUrl)) {
+                fetcher = new RangedHttpFetcher(httpConnections * (httpPrefetch + 1), httpChunkSize,
+                        httpConnections, 5, 60000);
+                converter.setFetcher(fetcher, httpPrefetch);
+            }
+            if (queue) {
+                failures = convertQueue(converter, warcFiles, outputs, outFile, cdxjFile, leaseSeconds * 1000L);
+            } else if (follow) {
+                follow(converter, warcFiles.get(0), outputs, outFile, cdxjFile, commitInterval * 1000L, resume);
+            } else if (partSize > 0) {
+                failures = convertToParts(converter, warcFiles, outputs, outFile, cdxjFile, partSize, resume);
+            } else if (verify && threads > 1 && warcFiles.size() > 1) {
+                var sinks = outputs.open(outFile, cdxjFile, metrics);
+                try {
+                    convertParallel(converter, warcFiles, threads, sinks);
+                } finally {
+                    OutputSpec.closeAll(sinks);
+                }
+            } else {
+                converter.setSinks(outputs.open(outFile, cdxjFile, metrics));
+                try {
+                    for (int i = 0; i < warcFiles.size(); i++) {
+                        converter.prefetchAfter(warcFiles, i);
+                        converter.convertFile(warcFiles.get(i));
+                    }
+                } finally {
+                    OutputSpec.closeAll(converter.sinks);
+                }
+            }
+        } finally {
+            if (metricsLogger != null) {
+                metricsLogger.shutdown();
+                System.err.println(metrics.toLogLine());
+            }
+            metrics.close();
+            if (fetcher != null) fetcher.close();
+            if (linkExtractor != null) linkExtractor.close();
+        }
+        if (verification != null) {
+            verification.print(System.out);
+        }
+        if (failures > 0) {
+            System.err.println("Warc2Parquet: " + failures + " inputs failed, see " +
+                    (queue ? "their .failed markers" : "the checkpoint"));
+            System.exit(1);
+        }
+        if (verification != null && verification.hasFailures()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Converts inputs on several threads, each with its own copy of the converter's settings, feeding shared sinks.
+     * Captures from different inputs interleave in the outputs.
+     */
+    static void convertParallel(Warc2Warcquet template, List<String> warcFiles, int threads,
+                                List<CaptureEventSink> sinks) throws IOException {
+        var sharedSinks = new ArrayList<CaptureEventSink>();
+        for (CaptureEventSink sink : sinks) {
+            sharedSinks.add(event -> {
+                synchronized (sink) {
+                    sink.accept(event);
+                }
+            });
+        }
+        var converters = ThreadLocal.withInitial(() -> template.copySettings(sharedSinks));
+        var threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "warcquet-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            var futures = new ArrayList<Future<?>>();
             for (String warcFile : warcFiles) {
-                try (var reader = openWarcReader(warcFile)) {
+                futures.add(executor.submit(() -> {
+                    converters.get().convertFile(warcFile);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Converts the inputs into numbered part files. A part is sealed after the input that takes it past partSize
+     * bytes of WARC data and then recorded in the checkpoint along with the inputs it holds. An input that fails is
+     * recorded in the checkpoint as failed and its part is rewritten from the part's first input without it. Inputs
+     * already in the checkpoint are skipped when resuming. Returns the number of failed inputs.
+     */
+    private static int convertToParts(Warc2Warcquet converter, List<String> warcFiles, OutputSpec outputs,
+                                       Path outFile, Path cdxjFile, long partSize, boolean resume) throws IOException {
+        ConversionMetrics metrics = converter.getMetrics();
+        var checkpoint = Checkpoint.open(Checkpoint.pathFor(outFile), resume);
+        int part = checkpoint.nextPart();
+        Path partFile = partPath(outFile, part);
+        Path partCdxj = cdxjFile == null ? null : partPath(cdxjFile, part);
+
+        // remove anything left by an interrupted part
+        for (Path file : outputs.files(partFile, partCdxj)) {
+            Files.deleteIfExists(file);
+        }
+
+        var partInputs = new ArrayList<String>();
+        boolean partOpen = false;
+        int partStart = 0;
+        long partStartBytes = 0;
+        try {
+            for (int i = 0; i < warcFiles.size(); i++) {
+                String warcFile = warcFiles.get(i);
+                if (checkpoint.isCompleted(warcFile) || checkpoint.isFailed(warcFile)) continue;
+                converter.prefetchAfter(warcFiles, i);
+                if (!partOpen) {
+                    converter.setSinks(outputs.open(partFile, partCdxj, metrics));
+                    partOpen = true;
+                    partStart = i;
+                    partStartBytes = metrics.getBytes();
+                }
+                try {
+                    converter.convertFile(warcFile, true);
+                } catch (IOException e) {
+                    System.err.println("Failed on " + warcFile);
+                    e.printStackTrace();
+                    // the part holds some of the failed input's captures, so start it again without them
+                    partOpen = false;
+                    closeSinks(converter);
+                    for (Path file : outputs.files(partFile, partCdxj)) {
+                        Files.deleteIfExists(file);
+                    }
+                    checkpoint.fail(part, partFile, warcFile);
+                    partInputs.clear();
+                    i = partStart - 1;
+                    continue;
+                }
+                partInputs.add(warcFile);
+                if (metrics.getBytes() - partStartBytes >= partSize) {
+                    partOpen = false;
+                    closeSinks(converter);
+                    checkpoint.commit(part, partFile, partInputs);
+                    partInputs.clear();
+                    part++;
+                    partFile = partPath(outFile, part);
+                    partCdxj = cdxjFile == null ? null : partPath(cdxjFile, part);
+                }
+            }
+        } finally {
+            if (partOpen) {
+                closeSinks(converter);
+            }
+        }
+        if (!partInputs.isEmpty()) {
+            checkpoint.commit(part, partFile, partInputs);
+        }
+
+        int failures = 0;
+        for (String warcFile : warcFiles) {
+            if (checkpoint.isFailed(warcFile)) failures++;
+        }
+        return failures;
+    }
+
+    /**
+     * Follows a WARC that is still being written, converting its complete records as they appear. Captures are written
+     * to part files which are sealed and recorded in the checkpoint at most every commitMillis, along with the offset
+     * of the oldest capture not yet written and the ids of the written captures' records after it, which are skipped
+     * on resume. When the file is renamed (e.g. crawl.warc.gz.open to crawl.warc.gz) the
+     * rest of it is converted and it is recorded as complete.
+     */
+    private static void follow(Warc2Warcquet converter, String warcFile, OutputSpec outputs, Path outFile,
+                               Path cdxjFile, long commitMillis, boolean resume) throws IOException {
+        ConversionMetrics metrics = converter.getMetrics();
+        Path path = Paths.get(warcFile);
+        String filename = path.getFileName().toString().replaceFirst("\\.open$", "");
+        // when resuming, the crawler may have already renamed the file
+        Path closedPath = path.resolveSibling(filename);
+        var checkpoint = Checkpoint.open(Checkpoint.pathFor(outFile), resume);
+        try (var channel = FileChannel.open(Files.exists(path) ? path : closedPath)) {
+            if (checkpoint.isCompleted(warcFile)) return;
+            long offset = checkpoint.resumeOffset(warcFile);
+            converter.skipRecords(checkpoint.resumeSkippedRecords(warcFile));
+            converter.trackEmittedRecords();
+            int part = checkpoint.nextPart();
+            Path partFile = partPath(outFile, part);
+            Path partCdxj = cdxjFile == null ? null : partPath(cdxjFile, part);
+            for (Path file : outputs.files(partFile, partCdxj)) {
+                Files.deleteIfExists(file);
+            }
+
+            converter.startFile(filename);
+            converter.setSinks(outputs.open(partFile, partCdxj, metrics));
+            long partStartCaptures = metrics.getCaptures();
+            long partStartMillis = System.currentTimeMillis();
+            try {
+                while (true) {
+                    // the crawler renames the file once it has finished writing it
+                    boolean finished = !Files.exists(path);
+                    long end = finished ? channel.size() : completeRecordsEnd(channel, offset);
+                    if (end > offset) {
+                        try (var reader = new WarcReader(new FileRangeChannel(channel, offset, end))) {
+                            converter.scanRecords(reader, end);
+                        }
+                        offset = end;
+                    }
+                    if (finished) {
+                        converter.endFile();
+                        closeSinks(converter);
+                        checkpoint.commit(part, partFile, List.of(warcFile));
+                        return;
+                    }
+
+                    if (metrics.getCaptures() > partStartCaptures &&
+                            System.currentTimeMillis() - partStartMillis >= commitMillis) {
+                        closeSinks(converter);
+                        long resumeOffset = converter.pendingPosition(offset);
+                        checkpoint.commit(part, partFile, warcFile, resumeOffset,
+                                converter.emittedRecordIds(resumeOffset));
+                        part++;
+                        partFile = partPath(outFile, part);
+                        partCdxj = cdxjFile == null ? null : partPath(cdxjFile, part);
+                        converter.setSinks(outputs.open(partFile, partCdxj, metrics));
+                        partStartCaptures = metrics.getCaptures();
+                        partStartMillis = System.currentTimeMillis();
+                    }
+
                     try {
-                        String filename = warcFile.replaceAll(".*[/\\\\]", "");
-                        converter.scan(reader, filename);
-                    } catch (Exception e) {
-                        System.err.println("Failed on " + warcFile);
-                        e.printStackTrace();
+                        Thread.sleep(FOLLOW_POLL_MILLIS);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            } finally {
+                closeSinks(converter);
+            }
+        }
+    }
+
+    private static void closeSinks(Warc2Warcquet converter) throws IOException {
+        List<CaptureEventSink> sinks = converter.sinks;
+        converter.sinks = new ArrayList<>();
+        OutputSpec.closeAll(sinks);
+    }
+
+    /**
+     * Returns the offset of the last record header that can be parsed after the given offset. Every record before it
+     * is known to be complete while the record starting there may still be being written.
+     */
+    private static long completeRecordsEnd(FileChannel channel, long offset) throws IOException {
+        long end = offset;
+        try (var reader = new WarcReader(new FileRangeChannel(channel, offset, channel.size()))) {
+            while (reader.next().isPresent()) {
+                end = reader.position();
+            }
+        } catch (IOException | RuntimeException e) {
+            // truncated record at the end of the file
+        }
+        return end;
+    }
+
+    /**
+     * Converts the inputs as one of any number of worker processes sharing a filesystem. Each input is written to its
+     * own part file numbered by its position in the input list, so every worker must be given the same list. Workers
+     * claim inputs largest first through a lease on the part's .lock file (see {@link WorkQueue}), write the part
+     * under a temporary name and, if they still hold the lease, rename it into place and create the part's .done
+     * marker. Inputs that can't be read get a .failed marker instead. Returns the number of failed inputs once every
+     * input has a marker.
+     */
+    private static int convertQueue(Warc2Warcquet converter, List<String> warcFiles, OutputSpec outputs,
+                                    Path outFile, Path cdxjFile, long leaseMillis) throws IOException {
+        long[] sizes = new long[warcFiles.size()];
+        var order = new ArrayList<Integer>();
+        for (int i = 0; i < warcFiles.size(); i++) {
+            String warcFile = warcFiles.get(i);
+            try {
+                sizes[i] = isUrl(warcFile) ? 0 : Files.size(Paths.get(warcFile));
+            } catch (IOException e) {
+                sizes[i] = 0;
+            }
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong(i -> -sizes[i]));
+
+        int failures = 0;
+        try (var queue = new WorkQueue(leaseMillis)) {
+            while (true) {
+                boolean heldElsewhere = false;
+                failures = 0;
+                for (int i : order) {
+                    Path partFile = partPath(outFile, i + 1);
+                    if (Files.exists(markerPath(partFile, ".done"))) continue;
+                    if (Files.exists(markerPath(partFile, ".failed"))) {
+                        failures++;
+                        continue;
+                    }
+                    try (var lease = queue.tryClaim(markerPath(partFile, ".lock"))) {
+                        if (lease == null) {
+                            heldElsewhere = true;
+                            continue;
+                        }
+                        // another worker may have finished it since we looked
+                        if (Files.exists(markerPath(partFile, ".done"))) continue;
+                        Path partCdxj = cdxjFile == null ? null : partPath(cdxjFile, i + 1);
+                        if (!convertClaimed(converter, warcFiles.get(i), outputs, partFile, partCdxj, queue, lease)) {
+                            failures++;
+                        }
                     }
                 }
+                if (!heldElsewhere) {
+                    WorkQueue.removeExpiredLocks(outFile.toAbsolutePath().getParent());
+                    return failures;
+                }
+
+                // wait for the other workers, reclaiming their inputs if they die
+                try {
+                    Thread.sleep(Math.min(leaseMillis / 4, 10000));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a claimed input to a part file. Returns false if the input failed.
+     */
+    private static boolean convertClaimed(Warc2Warcquet converter, String warcFile, OutputSpec outputs,
+                                          Path partFile, Path partCdxj, WorkQueue queue,
+                                          WorkQueue.Lease lease) throws IOException {
+        if (lease.previousOwner() != null) {
+            for (Path file : tmpFiles(outputs, partFile, partCdxj, lease.previousOwner())) {
+                Files.deleteIfExists(file);
+            }
+        }
+        List<Path> tmpFiles = tmpFiles(outputs, partFile, partCdxj, queue.workerId());
+        Path tmpPart = tmpFiles.get(0);
+        Path tmpCdxj = partCdxj == null ? null : tmpFiles.get(1);
+        List<Path> finalFiles = outputs.files(partFile, partCdxj);
+        try {
+            converter.setSinks(outputs.open(tmpPart, tmpCdxj, converter.getMetrics()));
+            try {
+                converter.convertFile(warcFile, true);
+            } finally {
+                closeSinks(converter);
+            }
+        } catch (IOException e) {
+            for (Path file : tmpFiles) {
+                Files.deleteIfExists(file);
+            }
+            if (!lease.isHeld()) return true;
+            System.err.println("Failed on " + warcFile);
+            e.printStackTrace();
+            writeMarker(markerPath(partFile, ".failed"), warcFile + "\n" + e + "\n");
+            return false;
+        }
+
+        if (!lease.isHeld()) {
+            System.err.println("Lost lease on " + warcFile + ", discarding output");
+            for (Path file : tmpFiles) {
+                Files.deleteIfExists(file);
             }
+            return true;
+        }
+        for (int i = 0; i < tmpFiles.size(); i++) {
+            Files.move(tmpFiles.get(i), finalFiles.get(i), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
         }
+        writeMarker(markerPath(partFile, ".done"), warcFile + "\n");
+        return true;
+    }
+
+    /**
+     * The files a worker writes a part to before renaming them into place.
+     */
+    private static List<Path> tmpFiles(OutputSpec outputs, Path partFile, Path partCdxj, String workerId) {
+        String tmpInfix = ".tmp-" + workerId.replaceAll("[^A-Za-z0-9_.-]", "_");
+        return outputs.files(insertBeforeExtension(partFile, tmpInfix),
+                partCdxj == null ? null : insertBeforeExtension(partCdxj, tmpInfix));
+    }
+
+    private static Path markerPath(Path partFile, String extension) {
+        return partFile.resolveSibling(partFile.getFileName() + extension);
+    }
+
+    private static void writeMarker(Path marker, String content) throws IOException {
+        Path tmp = marker.resolveSibling(marker.getFileName() + ".tmp");
+        Files.writeString(tmp, content);
+        Files.move(tmp, marker, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the path of a numbered part file, e.g. crawl.parquet -> crawl-part-00001.parquet
+     */
+    static Path partPath(Path output, int part) {
+        return insertBeforeExtension(output, String.format("-part-%05d", part));
+    }
+
+    private static Path insertBeforeExtension(Path path, String infix) {
+        String filename = path.getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        String base = dot > 0 ? filename.substring(0, dot) : filename;
+        String extension = dot > 0 ? filename.substring(dot) : "";
+        return path.resolveSibling(base + infix + extension);
+    }
+
+    /**
+     * Converts a single WARC file or URL. Errors reading the WARC are reported and the captures before the error are
+     * kept.
+     */
+    void convertFile(String warcFile) throws IOException {
+        convertFile(warcFile, false);
+    }
+
+    /**
+     * Converts a single WARC file or URL. If propagateErrors is true an error reading the WARC is thrown instead of
+     * being reported, leaving the captures before it unwritten.
+     */
+    void convertFile(String warcFile, boolean propagateErrors) throws IOException {
+        try (var reader = openWarcReader(warcFile)) {
+            try {
+                String filename = warcFile.replaceAll(".*[/\\\\]", "");
+                scan(reader, filename);
+            } catch (Exception e) {
+                metrics.addParseError("warc");
+                if (verification != null) verification.addFailedInput(warcFile, e);
+                if (propagateErrors) {
+                    discardCaptureEvents();
+                    throw new IOException("Failed on " + warcFile, e);
+                }
+                System.err.println("Failed on " + warcFile);
+                e.printStackTrace();
+                endAllCaptureEvents();
+            }
+        }
+    }
+
+    /**
+     * A capture event whose records may still be arriving.
+     */
+    private static class OpenCapture {
+        final MutableCaptureEvent event = new MutableCaptureEvent();
+        final long startIndex;
+        final long startPosition;
+        String referrer;
+        boolean skipping;
+        long[] ids = new long[6];
+        int idCount;
+        long[] records;
+        int recordCount;
+
+        OpenCapture(long startIndex, long startPosition) {
+            this.startIndex = startIndex;
+            this.startPosition = startPosition;
+        }
+
+        void addId(UUID id) {
+            if (idCount + 2 > ids.length) ids = Arrays.copyOf(ids, ids.length * 2);
+            ids[idCount++] = id.getMostSignificantBits();
+            ids[idCount++] = id.getLeastSignificantBits();
+        }
+
+        void addRecord(long position, UUID id) {
+            if (records == null) records = new long[9];
+            if (recordCount + 3 > records.length) records = Arrays.copyOf(records, records.length * 2);
+            records[recordCount++] = position;
+            records[recordCount++] = id.getMostSignificantBits();
+            records[recordCount++] = id.getLeastSignificantBits();
+        }
+    }
+
+    /**
+     * Starts fetching the remote inputs after the given index so they download while it is converted.
+     */
+    void prefetchAfter(List<String> warcFiles, int index) {
+        if (fetcher == null) return;
+        for (int i = index + 1; i < warcFiles.size() && i <= index + prefetchFiles; i++) {
+            if (isUrl(warcFiles.get(i))) fetcher.prefetch(URI.create(warcFiles.get(i)));
+        }
+    }
+
+    private static boolean isUrl(String pathOrUrl) {
+        return pathOrUrl.startsWith("http://") || pathOrUrl.startsWith("https://");
     }
 
-    private static WarcReader openWarcReader(String pathOrUrl) throws IOException {
-        if (pathOrUrl.startsWith("http://") || pathOrUrl.startsWith("https://")) {
+    private WarcReader openWarcReader(String pathOrUrl) throws IOException {
+        if (isUrl(pathOrUrl)) {
+            if (fetcher != null) return new WarcReader(fetcher.open(URI.create(pathOrUrl)));
             return new WarcReader(new URL(pathOrUrl).openStream());
         } else {
             return new WarcReader(Paths.get(pathOrUrl));
@@ -5,6 +5,7 @@
 
 package org.netpreserve.warcquet;
 
+import org.apache.parquet.hadoop.ParquetFileReader;
 import org.apache.parquet.hadoop.ParquetWriter;
 import org.apache.parquet.schema.MessageType;
 import org.apache.parquet.schema.MessageTypeParser;
@@ -12,11 +13,19 @@ import org.netpreserve.warcquet.util.PathOutputFile;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public final class Warcquet {
     private static MessageType schema;
+    private static MessageType detailedSchema;
+    private static MessageType statsSchema;
 
     public static WarcquetWriterBuilder newWriterBuilder(Path path) {
         return new WarcquetWriterBuilder(new PathOutputFile(path));
@@ -26,15 +35,63 @@ public final class Warcquet {
         return new WarcquetWriterBuilder(new PathOutputFile(path)).build();
     }
 
+    public static WarcquetReader newReader(Path path) throws IOException {
+        return new WarcquetReader(path);
+    }
+
+    /**
+     * Returns a stream of the capture events in all the given files. The stream should be closed to release any file
+     * handles left open if it is not fully consumed.
+     */
+    public static Stream<CaptureEvent> stream(List<Path> paths) throws IOException {
+        Set<ParquetFileReader> openReaders = ConcurrentHashMap.newKeySet();
+        return StreamSupport.stream(RowGroupSpliterator.open(paths, openReaders), false)
+                .onClose(() -> {
+                    try {
+                        WarcquetReader.closeAll(openReaders);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Returns a parallel stream of the capture events in all the given files, split on row group boundaries.
+     */
+    public static Stream<CaptureEvent> parallelStream(List<Path> paths) throws IOException {
+        return stream(paths).parallel();
+    }
+
     public static MessageType schema() {
         if (schema == null) {
-            try (InputStream stream = Warc2Warcquet.class.getResourceAsStream("warcquet-schema.txt")) {
-                if (stream == null) throw new RuntimeException("Missing classpath resource: warcquet-schema.txt");
-                schema = MessageTypeParser.parseMessageType(new String(stream.readAllBytes(), StandardCharsets.UTF_8));
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to load warcquet-schema.txt", e);
-            }
+            schema = loadSchema("warcquet-schema.txt");
         }
         return schema;
     }
+
+    /**
+     * The newer schema which stores UUIDs, digests and IPv6 addresses as fixed length byte arrays.
+     */
+    public static MessageType detailedSchema() {
+        if (detailedSchema == null) {
+            detailedSchema = loadSchema("warcquet-detailed-schema.txt");
+        }
+        return detailedSchema;
+    }
+
+    static MessageType statsSchema() {
+        if (statsSchema == null) {
+            statsSchema = loadSchema("warcquet-stats-schema.txt");
+        }
+        return statsSchema;
+    }
+
+    private static MessageType loadSchema(String resource) {
+        try (InputStream stream = Warc2Warcquet.class.getResourceAsStream(resource)) {
+            if (stream == null) throw new RuntimeException("Missing classpath resource: " + resource);
+            return MessageTypeParser.parseMessageType(new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load " + resource, e);
+        }
+    }
 }
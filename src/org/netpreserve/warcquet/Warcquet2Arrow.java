@@ -0,0 +1,162 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.ArrowWriter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Exports warcquet files in the Arrow IPC stream or file format, e.g. for Polars, DuckDB or pyarrow. The stream
+ * format can be written to stdout or a socket so another process can consume batches as they are decoded.
+ */
+public class Warcquet2Arrow {
+    private final List<String> columns;
+    private final int batchSize;
+    private final int maxDictionarySize;
+
+    public Warcquet2Arrow(List<String> columns, int batchSize, int maxDictionarySize) {
+        this.columns = columns;
+        this.batchSize = batchSize;
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    /**
+     * Writes all rows of the given files to the channel. Returns the number of rows written.
+     *
+     * @param fileFormat true for the IPC file format (which needs a seekable channel), false for the stream format
+     */
+    public long export(List<Path> files, WritableByteChannel out, boolean fileFormat) throws IOException {
+        try (BufferAllocator allocator = new RootAllocator();
+             var reader = new WarcquetArrowReader(files, allocator, columns, batchSize, maxDictionarySize);
+             ArrowWriter writer = fileFormat ?
+                     new ArrowFileWriter(reader.getVectorSchemaRoot(), reader.getDictionaryProvider(), out) :
+                     new ArrowStreamWriter(reader.getVectorSchemaRoot(), reader.getDictionaryProvider(), out)) {
+            writer.start();
+            while (reader.loadNextBatch()) {
+                writer.writeBatch();
+            }
+            writer.end();
+            return reader.getRowCount();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String output = null;
+        String format = null;
+        String connect = null;
+        List<String> columns = null;
+        int batchSize = WarcquetArrowReader.DEFAULT_BATCH_SIZE;
+        int maxDictionarySize = WarcquetArrowReader.DEFAULT_MAX_DICTIONARY_SIZE;
+        var inputs = new ArrayList<Path>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && !args[i].equals("-")) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output-file":
+                        output = args[++i];
+                        break;
+                    case "-c":
+                    case "--columns":
+                        columns = Arrays.asList(args[++i].split(","));
+                        break;
+                    case "--batch-size":
+                        batchSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--connect":
+                        connect = args[++i];
+                        break;
+                    case "-f":
+                    case "--format":
+                        format = args[++i];
+                        if (!format.equals("file") && !format.equals("stream")) {
+                            System.err.println("Warcquet2Arrow: format must be 'file' or 'stream'");
+                            System.exit(1);
+                        }
+                        break;
+                    case "--max-dictionary-size":
+                        maxDictionarySize = Integer.parseInt(args[++i]);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: Warcquet2Arrow [OPTIONS] -o outfile.arrow warcquet-files...\n" +
+                                "\n" +
+                                "Java 16+ must be run with --add-opens=java.base/java.nio=ALL-UNNAMED\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "      --batch-size N          Rows per record batch (default " + WarcquetArrowReader.DEFAULT_BATCH_SIZE + ")\n" +
+                                "  -c, --columns LIST          Columns to export (comma separated, default all)\n" +
+                                "      --connect HOST:PORT     Send an IPC stream to a socket instead of a file\n" +
+                                "  -f, --format FORMAT         'file' or 'stream' (default: stream for '-' and .arrows, else file)\n" +
+                                "      --max-dictionary-size N Dictionary encode string columns with at most N values (default " + WarcquetArrowReader.DEFAULT_MAX_DICTIONARY_SIZE + ")\n" +
+                                "  -o, --output-file FILE      Output file or '-' for stdout\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("Warcquet2Arrow: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                inputs.add(Paths.get(args[i]));
+            }
+        }
+
+        if (output == null && connect == null) {
+            System.err.println("Warcquet2Arrow: an output file (-o) or --connect must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("Warcquet2Arrow: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        var exporter = new Warcquet2Arrow(columns, batchSize, maxDictionarySize);
+        long rows;
+        if (connect != null) {
+            if ("file".equals(format)) {
+                System.err.println("Warcquet2Arrow: only the stream format can be sent to a socket");
+                System.exit(1);
+            }
+            int colon = connect.lastIndexOf(':');
+            try (var socket = new Socket()) {
+                socket.connect(new InetSocketAddress(connect.substring(0, colon),
+                        Integer.parseInt(connect.substring(colon + 1))));
+                rows = exporter.export(inputs, Channels.newChannel(socket.getOutputStream()), false);
+            }
+        } else if (output.equals("-")) {
+            if ("file".equals(format)) {
+                System.err.println("Warcquet2Arrow: the file format can't be written to stdout");
+                System.exit(1);
+            }
+            rows = exporter.export(inputs, Channels.newChannel(System.out), false);
+            System.out.flush();
+        } else {
+            boolean fileFormat = format == null ? !output.endsWith(".arrows") : format.equals("file");
+            try (var channel = FileChannel.open(Paths.get(output), CREATE, WRITE, TRUNCATE_EXISTING)) {
+                rows = exporter.export(inputs, channel, fileFormat);
+            }
+        }
+        System.err.println("Warcquet2Arrow: wrote " + rows + " rows");
+    }
+}
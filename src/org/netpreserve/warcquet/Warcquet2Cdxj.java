@@ -0,0 +1,370 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.io.api.Binary;
+import org.netpreserve.warcquet.util.PathInputFile;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports warcquet files as CDXJ. Only the columns needed for the index are read and lines are formatted straight
+ * from the column values into reused byte buffers.
+ * <p>
+ * Files are split into ranges of row groups which are formatted in parallel. Unsorted output is streamed straight to
+ * the output stream: each range hands over small chunks of formatted lines which are written in input order, and a
+ * range blocks once a couple of its chunks are waiting. Sorted output sorts each range's lines in memory in runs,
+ * spills them to temporary files and then k-way merges them, giving the same order as {@code LC_ALL=C sort}.
+ */
+public class Warcquet2Cdxj {
+    static final String[] COLUMNS = {"surt_key", "date", "url", "response_payload_type", "http_status",
+            "response_payload_sha1", "response_length", "response_position", "filename", "redirect"};
+    static final int SURT_KEY = 0, DATE = 1, URL = 2, MIME = 3, HTTP_STATUS = 4, SHA1 = 5, LENGTH = 6,
+            POSITION = 7, FILENAME = 8, REDIRECT = 9;
+    private static final int DEFAULT_RUN_BYTES = 64 * 1024 * 1024;
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    private static final int CHUNKS_PER_TASK = 2;
+    private static final byte[] END_OF_TASK = new byte[0];
+
+    private final boolean sort;
+    private final Path tempDir;
+    private final int runBytes;
+
+    /**
+     * Creates an exporter. When sorting, runs are spilled to tempDir, or to java.io.tmpdir if it is null.
+     */
+    public Warcquet2Cdxj(boolean sort, Path tempDir) {
+        this(sort, tempDir, DEFAULT_RUN_BYTES);
+    }
+
+    Warcquet2Cdxj(boolean sort, Path tempDir, int runBytes) {
+        this.sort = sort;
+        this.tempDir = tempDir != null ? tempDir : Paths.get(System.getProperty("java.io.tmpdir"));
+        this.runBytes = runBytes;
+    }
+
+    /**
+     * Writes CDXJ lines for all captures in the given files to the output stream.
+     */
+    public void export(List<Path> files, OutputStream out) throws IOException {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        var tasks = new ArrayList<ExportTask>();
+        for (Path file : files) {
+            int rowGroups;
+            try (var reader = ParquetFileReader.open(new PathInputFile(file))) {
+                rowGroups = reader.getRowGroups().size();
+            }
+            int chunks = Math.min(rowGroups, parallelism);
+            for (int i = 0; i < chunks; i++) {
+                tasks.add(new ExportTask(file, (int) ((long) rowGroups * i / chunks),
+                        (int) ((long) rowGroups * (i + 1) / chunks)));
+            }
+        }
+
+        if (!sort) {
+            stream(tasks, parallelism, out);
+            return;
+        }
+        try {
+            tasks.parallelStream().forEach(ExportTask::run);
+            var runs = new ArrayList<Path>();
+            for (ExportTask task : tasks) {
+                if (task.error != null) throw task.error;
+                runs.addAll(task.runs);
+            }
+            mergeRuns(runs, out);
+            out.flush();
+        } finally {
+            for (ExportTask task : tasks) {
+                for (Path run : task.runs) {
+                    Files.deleteIfExists(run);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks on a pool, writing their chunks in task order. Tasks are started in order, so the task being
+     * drained has always been started and the later tasks blocked on their full queues can't starve it.
+     */
+    private static void stream(List<ExportTask> tasks, int parallelism, OutputStream out) throws IOException {
+        var threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, tasks.size())),
+                r -> {
+                    var thread = new Thread(r, "warcquet-cdxj-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            for (ExportTask task : tasks) {
+                executor.execute(task::run);
+            }
+            for (ExportTask task : tasks) {
+                while (true) {
+                    byte[] chunk = task.chunks.take();
+                    if (chunk == END_OF_TASK) break;
+                    out.write(chunk);
+                }
+                if (task.error != null) throw task.error;
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class ExportTask {
+        private final Path file;
+        private final int fromRowGroup;
+        private final int toRowGroup;
+        private final List<Path> runs = new ArrayList<>();
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(CHUNKS_PER_TASK);
+        private final CdxjFormatter formatter = new CdxjFormatter();
+        private int[] lineStarts = new int[1024];
+        private int lineCount;
+        private IOException error;
+
+        ExportTask(Path file, int fromRowGroup, int toRowGroup) {
+            this.file = file;
+            this.fromRowGroup = fromRowGroup;
+            this.toRowGroup = toRowGroup;
+        }
+
+        void run() {
+            try (var reader = ColumnScanner.open(file, COLUMNS)) {
+                for (int i = fromRowGroup; i < toRowGroup; i++) {
+                    var scanner = new ColumnScanner(reader, reader.readRowGroup(i), COLUMNS, null);
+                    while (scanner.nextRow()) {
+                        // a CDXJ line needs a timestamp
+                        if (scanner.isNull(DATE)) continue;
+                        if (lineCount == lineStarts.length) {
+                            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                        }
+                        lineStarts[lineCount++] = formatter.size();
+                        formatter.appendLine(
+                                binary(scanner, SURT_KEY),
+                                scanner.getLong(DATE),
+                                binary(scanner, URL),
+                                binary(scanner, MIME),
+                                scanner.isNull(HTTP_STATUS) ? -1 : scanner.getInteger(HTTP_STATUS),
+                                binary(scanner, SHA1),
+                                scanner.isNull(LENGTH) ? 0 : scanner.getLong(LENGTH),
+                                scanner.isNull(POSITION) ? 0 : scanner.getLong(POSITION),
+                                binary(scanner, FILENAME),
+                                binary(scanner, REDIRECT));
+                        if (formatter.size() >= (sort ? runBytes : CHUNK_BYTES)) {
+                            flushRun();
+                        }
+                    }
+                }
+                flushRun();
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException | Error e) {
+                // recorded rather than thrown so the task still ends its chunks and the writer doesn't hang
+                error = new IOException("failed exporting " + file, e);
+            } catch (InterruptedException e) {
+                // the export was abandoned
+                return;
+            }
+            if (!sort) {
+                try {
+                    chunks.put(END_OF_TASK);
+                } catch (InterruptedException e) {
+                    // the export was abandoned
+                }
+            }
+        }
+
+        private void flushRun() throws IOException, InterruptedException {
+            if (lineCount == 0) return;
+            if (!sort) {
+                chunks.put(Arrays.copyOf(formatter.buffer(), formatter.size()));
+                formatter.reset();
+                lineCount = 0;
+                return;
+            }
+            Path run = Files.createTempFile(tempDir, "warcquet-cdxj-", ".run");
+            runs.add(run);
+            try (var out = new BufferedOutputStream(Files.newOutputStream(run), 65536)) {
+                byte[] buffer = formatter.buffer();
+                for (int line : sortLines(buffer, lineStarts, lineCount, formatter.size())) {
+                    int end = line + 1 < lineCount ? lineStarts[line + 1] : formatter.size();
+                    out.write(buffer, lineStarts[line], end - lineStarts[line]);
+                }
+            }
+            formatter.reset();
+            lineCount = 0;
+        }
+    }
+
+    static Binary binary(ColumnScanner scanner, int column) {
+        return scanner.isNull(column) ? null : scanner.getBinary(column);
+    }
+
+    /**
+     * Returns the line indexes ordered by the line bytes (excluding the trailing newline).
+     */
+    static int[] sortLines(byte[] buffer, int[] lineStarts, int lineCount, int size) {
+        int[] order = new int[lineCount];
+        for (int i = 0; i < lineCount; i++) order[i] = i;
+        int[] tmp = new int[lineCount];
+        mergeSort(order, tmp, 0, lineCount, buffer, lineStarts, lineCount, size);
+        return order;
+    }
+
+    private static void mergeSort(int[] a, int[] tmp, int from, int to, byte[] buffer, int[] lineStarts,
+                                  int lineCount, int size) {
+        if (to - from < 2) return;
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, buffer, lineStarts, lineCount, size);
+        mergeSort(a, tmp, mid, to, buffer, lineStarts, lineCount, size);
+        if (compareLines(a[mid - 1], a[mid], buffer, lineStarts, lineCount, size) <= 0) return;
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && compareLines(tmp[i], tmp[j], buffer, lineStarts, lineCount, size) <= 0)) {
+                a[k] = tmp[i++];
+            } else {
+                a[k] = tmp[j++];
+            }
+        }
+    }
+
+    private static int compareLines(int x, int y, byte[] buffer, int[] lineStarts, int lineCount, int size) {
+        int xEnd = (x + 1 < lineCount ? lineStarts[x + 1] : size) - 1;
+        int yEnd = (y + 1 < lineCount ? lineStarts[y + 1] : size) - 1;
+        return Arrays.compareUnsigned(buffer, lineStarts[x], xEnd, buffer, lineStarts[y], yEnd);
+    }
+
+    private static void mergeRuns(List<Path> runs, OutputStream out) throws IOException {
+        var queue = new PriorityQueue<RunReader>(RunReader::compareTo);
+        try {
+            for (Path run : runs) {
+                var reader = new RunReader(run);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                var reader = queue.poll();
+                out.write(reader.line, 0, reader.length);
+                out.write('\n');
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class RunReader implements Closeable, Comparable<RunReader> {
+        private final InputStream in;
+        private byte[] line = new byte[1024];
+        private int length;
+
+        RunReader(Path run) throws IOException {
+            this.in = new BufferedInputStream(Files.newInputStream(run), 65536);
+        }
+
+        boolean next() throws IOException {
+            length = 0;
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) return length > 0;
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = (byte) b;
+            }
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            return Arrays.compareUnsigned(line, 0, length, o.line, 0, o.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path outFile = null;
+        Path tempDir = null;
+        boolean sort = false;
+        var files = new ArrayList<Path>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output-file":
+                        outFile = Paths.get(args[++i]);
+                        break;
+                    case "-s":
+                    case "--sort":
+                        sort = true;
+                        break;
+                    case "-T":
+                    case "--temp-dir":
+                        tempDir = Paths.get(args[++i]);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: Warcquet2Cdxj [OPTIONS] warcquet-files...\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "  -o, --output-file FILE      Output CDXJ file (default: stdout)\n" +
+                                "  -s, --sort                  Sort the output lines\n" +
+                                "  -T, --temp-dir DIR          Directory for temporary run files\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("Warcquet2Cdxj: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Warcquet2Cdxj: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        var exporter = new Warcquet2Cdxj(sort, tempDir);
+        if (outFile != null) {
+            try (var out = new BufferedOutputStream(Files.newOutputStream(outFile), 65536)) {
+                exporter.export(files, out);
+            }
+        } else {
+            var out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536);
+            exporter.export(files, out);
+        }
+    }
+}
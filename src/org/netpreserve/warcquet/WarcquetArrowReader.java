@@ -0,0 +1,481 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.*;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.EncodingStats;
+import org.apache.parquet.column.page.DictionaryPage;
+import org.apache.parquet.column.page.DictionaryPageReadStore;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.PrimitiveConverter;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.LogicalTypeAnnotation.IntLogicalTypeAnnotation;
+import org.apache.parquet.schema.LogicalTypeAnnotation.TimestampLogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Type;
+import org.netpreserve.warcquet.util.PathInputFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Decodes warcquet files straight into Arrow record batches, column by column, without materialising capture events.
+ * Batches hold up to batchSize rows and never span row groups. Each call to {@link #loadNextBatch()} refills the same
+ * {@link VectorSchemaRoot}, so a consumer should finish with (or transfer) a batch before loading the next.
+ * <p>
+ * Column types follow the Parquet types: strings become Utf8, timestamps UTC millisecond timestamps and fixed length
+ * byte arrays FixedSizeBinary. Binary columns that the detailed schema declares as fixed length (UUIDs and digests)
+ * are FixedSizeBinary even when the file stores them as plain binary.
+ * <p>
+ * String columns that are dictionary encoded throughout every input and have few distinct values are dictionary
+ * encoded in Arrow too. Their dictionaries are built up front from the Parquet dictionary pages alone, so they are
+ * the same for every batch and can be written to both the IPC stream and file formats. Values are then copied as
+ * dictionary ids without being decoded.
+ * <p>
+ * Arrow accesses off-heap memory reflectively, so Java 16 and later must be run with
+ * {@code --add-opens=java.base/java.nio=ALL-UNNAMED}.
+ */
+public class WarcquetArrowReader implements AutoCloseable {
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 10_000;
+
+    private final List<Path> files;
+    private final String[] columns;
+    private final int batchSize;
+    private final VectorSchemaRoot root;
+    private final DictionaryProvider.MapDictionaryProvider dictionaries = new DictionaryProvider.MapDictionaryProvider();
+    private final ColumnWriter[] writers;
+    private int fileIndex = -1;
+    private ParquetFileReader reader;
+    private int rowGroup;
+    private ColumnScanner scanner;
+    private long rowsRemaining;
+    private long rowCount;
+
+    /**
+     * @param files             warcquet files to read in order
+     * @param allocator         allocator for the vectors and dictionaries
+     * @param columns           top-level columns to read, or null for all the columns of the first file
+     * @param batchSize         the most rows in a batch
+     * @param maxDictionarySize the most distinct values a string column may have to be dictionary encoded
+     */
+    public WarcquetArrowReader(List<Path> files, BufferAllocator allocator, List<String> columns, int batchSize,
+                               int maxDictionarySize) throws IOException {
+        if (files.isEmpty()) throw new IllegalArgumentException("No input files");
+        this.files = files;
+        this.batchSize = batchSize;
+
+        MessageType fileSchema;
+        try (var footerReader = ParquetFileReader.open(new PathInputFile(files.get(0)))) {
+            fileSchema = footerReader.getFileMetaData().getSchema();
+        }
+        if (columns == null) {
+            columns = new ArrayList<>();
+            for (Type type : fileSchema.getFields()) {
+                if (type.isPrimitive()) columns.add(type.getName());
+            }
+        }
+        this.columns = columns.toArray(new String[0]);
+
+        var primitiveTypes = new PrimitiveType[this.columns.length];
+        for (int i = 0; i < this.columns.length; i++) {
+            String column = this.columns[i];
+            Type type = fileSchema.containsField(column) ? fileSchema.getType(column) :
+                    Warcquet.detailedSchema().containsField(column) ? Warcquet.detailedSchema().getType(column) : null;
+            if (type == null) throw new IllegalArgumentException("Unknown column: " + column);
+            if (!type.isPrimitive()) throw new IllegalArgumentException("Unsupported nested column: " + column);
+            primitiveTypes[i] = type.asPrimitiveType();
+        }
+
+        var dictionaryValues = buildDictionaries(primitiveTypes, maxDictionarySize);
+
+        var fields = new ArrayList<Field>();
+        long nextDictionaryId = 0;
+        for (int i = 0; i < this.columns.length; i++) {
+            if (dictionaryValues[i] != null) {
+                var encoding = new DictionaryEncoding(nextDictionaryId++, false, new ArrowType.Int(32, true));
+                fields.add(new Field(this.columns[i], new FieldType(true, encoding.getIndexType(), encoding), null));
+            } else {
+                fields.add(new Field(this.columns[i], FieldType.nullable(arrowType(primitiveTypes[i])), null));
+            }
+        }
+        this.root = VectorSchemaRoot.create(new Schema(fields), allocator);
+
+        this.writers = new ColumnWriter[this.columns.length];
+        for (int i = 0; i < this.columns.length; i++) {
+            FieldVector vector = root.getVector(i);
+            if (dictionaryValues[i] != null) {
+                var values = new VarCharVector(this.columns[i] + "-dictionary", allocator);
+                values.allocateNew(dictionaryValues[i].size());
+                int id = 0;
+                for (Binary value : dictionaryValues[i].keySet()) {
+                    ByteBuffer bytes = value.toByteBuffer();
+                    values.setSafe(id++, bytes, bytes.position(), bytes.remaining());
+                }
+                values.setValueCount(id);
+                dictionaries.put(new Dictionary(values, vector.getField().getDictionary()));
+                writers[i] = new DictionaryColumnWriter((IntVector) vector, dictionaryValues[i]);
+            } else if (vector instanceof FixedSizeBinaryVector) {
+                writers[i] = new FixedSizeBinaryColumnWriter((FixedSizeBinaryVector) vector);
+            } else if (vector instanceof BaseVariableWidthVector) {
+                writers[i] = new VariableWidthColumnWriter((BaseVariableWidthVector) vector);
+            } else if (vector instanceof BitVector) {
+                writers[i] = new BooleanColumnWriter((BitVector) vector);
+            } else if (vector instanceof SmallIntVector) {
+                writers[i] = new SmallIntColumnWriter((SmallIntVector) vector);
+            } else if (vector instanceof IntVector) {
+                writers[i] = new IntColumnWriter((IntVector) vector);
+            } else if (vector instanceof BigIntVector || vector instanceof TimeStampVector) {
+                writers[i] = new LongColumnWriter((BaseFixedWidthVector) vector);
+            } else if (vector instanceof Float4Vector) {
+                writers[i] = new FloatColumnWriter((Float4Vector) vector);
+            } else if (vector instanceof Float8Vector) {
+                writers[i] = new DoubleColumnWriter((Float8Vector) vector);
+            } else {
+                throw new IllegalArgumentException("Unsupported column type: " + primitiveTypes[i]);
+            }
+        }
+    }
+
+    private static ArrowType arrowType(PrimitiveType type) {
+        LogicalTypeAnnotation logical = type.getLogicalTypeAnnotation();
+        switch (type.getPrimitiveTypeName()) {
+            case BOOLEAN:
+                return ArrowType.Bool.INSTANCE;
+            case INT32:
+                if (logical instanceof IntLogicalTypeAnnotation) {
+                    var intType = (IntLogicalTypeAnnotation) logical;
+                    if (intType.getBitWidth() <= 16) return new ArrowType.Int(16, true);
+                }
+                return new ArrowType.Int(32, true);
+            case INT64:
+                if (logical instanceof TimestampLogicalTypeAnnotation &&
+                        ((TimestampLogicalTypeAnnotation) logical).getUnit() == LogicalTypeAnnotation.TimeUnit.MILLIS) {
+                    return new ArrowType.Timestamp(TimeUnit.MILLISECOND, "UTC");
+                }
+                return new ArrowType.Int(64, true);
+            case FLOAT:
+                return new ArrowType.FloatingPoint(org.apache.arrow.vector.types.FloatingPointPrecision.SINGLE);
+            case DOUBLE:
+                return new ArrowType.FloatingPoint(org.apache.arrow.vector.types.FloatingPointPrecision.DOUBLE);
+            case FIXED_LEN_BYTE_ARRAY:
+                return new ArrowType.FixedSizeBinary(type.getTypeLength());
+            case BINARY:
+                if (logical instanceof LogicalTypeAnnotation.StringLogicalTypeAnnotation) return ArrowType.Utf8.INSTANCE;
+                MessageType detailed = Warcquet.detailedSchema();
+                if (detailed.containsField(type.getName())) {
+                    Type detailedType = detailed.getType(type.getName());
+                    if (detailedType.isPrimitive() && detailedType.asPrimitiveType().getPrimitiveTypeName() ==
+                            PrimitiveType.PrimitiveTypeName.FIXED_LEN_BYTE_ARRAY) {
+                        return new ArrowType.FixedSizeBinary(detailedType.asPrimitiveType().getTypeLength());
+                    }
+                }
+                return ArrowType.Binary.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unsupported column type: " + type);
+        }
+    }
+
+    /**
+     * Collects the distinct values of each string column that is dictionary encoded in every row group, reading only
+     * the dictionary pages. The entry is null for columns that don't qualify.
+     */
+    @SuppressWarnings("unchecked")
+    private LinkedHashMap<Binary, Integer>[] buildDictionaries(PrimitiveType[] types, int maxDictionarySize)
+            throws IOException {
+        var values = (LinkedHashMap<Binary, Integer>[]) new LinkedHashMap<?, ?>[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (types[i].getPrimitiveTypeName() == PrimitiveType.PrimitiveTypeName.BINARY &&
+                    types[i].getLogicalTypeAnnotation() instanceof LogicalTypeAnnotation.StringLogicalTypeAnnotation) {
+                values[i] = new LinkedHashMap<>();
+            }
+        }
+        long totalRows = 0;
+        for (Path file : files) {
+            try (var footerReader = ParquetFileReader.open(new PathInputFile(file))) {
+                MessageType schema = footerReader.getFileMetaData().getSchema();
+                for (BlockMetaData block : footerReader.getRowGroups()) {
+                    totalRows += block.getRowCount();
+                    DictionaryPageReadStore dictionaryReader = footerReader.getDictionaryReader(block);
+                    for (int i = 0; i < columns.length; i++) {
+                        if (values[i] == null || !schema.containsField(columns[i])) continue;
+                        ColumnChunkMetaData chunk = findColumn(block, columns[i]);
+                        EncodingStats stats = chunk == null ? null : chunk.getEncodingStats();
+                        if (stats == null || !stats.hasDictionaryPages() || stats.hasNonDictionaryEncodedPages()) {
+                            values[i] = null;
+                            continue;
+                        }
+                        ColumnDescriptor descriptor = schema.getColumnDescription(new String[]{columns[i]});
+                        DictionaryPage page = dictionaryReader.readDictionaryPage(descriptor);
+                        if (page == null) {
+                            values[i] = null;
+                            continue;
+                        }
+                        var dictionary = page.getEncoding().initDictionary(descriptor, page);
+                        for (int id = 0; id <= dictionary.getMaxId(); id++) {
+                            Binary value = dictionary.decodeToBinary(id);
+                            if (!values[i].containsKey(value)) values[i].put(value.copy(), values[i].size());
+                        }
+                        if (values[i].size() > maxDictionarySize) values[i] = null;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            // a dictionary that's not much smaller than the column doesn't pay for itself
+            if (values[i] != null && values[i].size() * 2L > totalRows && values[i].size() > 1) values[i] = null;
+        }
+        return values;
+    }
+
+    private static ColumnChunkMetaData findColumn(BlockMetaData block, String column) {
+        for (ColumnChunkMetaData chunk : block.getColumns()) {
+            if (chunk.getPath().size() == 1 && chunk.getPath().toArray()[0].equals(column)) return chunk;
+        }
+        return null;
+    }
+
+    public Schema getSchema() {
+        return root.getSchema();
+    }
+
+    /**
+     * The batch most recently loaded. The same root is refilled by each call to {@link #loadNextBatch()}.
+     */
+    public VectorSchemaRoot getVectorSchemaRoot() {
+        return root;
+    }
+
+    /**
+     * The dictionaries of the dictionary encoded columns, which are fixed for the whole read.
+     */
+    public DictionaryProvider getDictionaryProvider() {
+        return dictionaries;
+    }
+
+    /**
+     * The total number of rows loaded so far.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Loads the next batch into the vector schema root. Returns false at the end of the last file.
+     */
+    public boolean loadNextBatch() throws IOException {
+        while (rowsRemaining == 0) {
+            if (reader == null || rowGroup >= reader.getRowGroups().size()) {
+                if (reader != null) {
+                    reader.close();
+                    reader = null;
+                }
+                if (++fileIndex >= files.size()) return false;
+                reader = ColumnScanner.open(files.get(fileIndex), columns);
+                rowGroup = 0;
+                continue;
+            }
+            scanner = new ColumnScanner(reader, reader.readRowGroup(rowGroup++), columns, writers);
+            rowsRemaining = scanner.getRowCount();
+        }
+
+        root.allocateNew();
+        int rows = (int) Math.min(batchSize, rowsRemaining);
+        for (int row = 0; row < rows; row++) {
+            scanner.nextRow();
+            for (int i = 0; i < writers.length; i++) {
+                if (scanner.isNull(i)) continue;
+                writers[i].row = row;
+                scanner.writeValue(i);
+            }
+        }
+        rowsRemaining -= rows;
+        rowCount += rows;
+        root.setRowCount(rows);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        root.close();
+        dictionaries.close();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    /**
+     * Receives one column's values from the scanner and sets them at the current row of its vector.
+     */
+    private abstract static class ColumnWriter extends PrimitiveConverter {
+        int row;
+    }
+
+    private static class DictionaryColumnWriter extends ColumnWriter {
+        private final IntVector indexes;
+        private final Map<Binary, Integer> ids;
+        private int[] remap = new int[0];
+
+        DictionaryColumnWriter(IntVector indexes, Map<Binary, Integer> ids) {
+            this.indexes = indexes;
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean hasDictionarySupport() {
+            return true;
+        }
+
+        @Override
+        public void setDictionary(org.apache.parquet.column.Dictionary dictionary) {
+            remap = new int[dictionary.getMaxId() + 1];
+            for (int id = 0; id < remap.length; id++) {
+                remap[id] = ids.get(dictionary.decodeToBinary(id));
+            }
+        }
+
+        @Override
+        public void addValueFromDictionary(int dictionaryId) {
+            indexes.setSafe(row, remap[dictionaryId]);
+        }
+
+        @Override
+        public void addBinary(Binary value) {
+            Integer id = ids.get(value);
+            if (id == null) throw new IllegalStateException("Value missing from dictionary: " + value);
+            indexes.setSafe(row, id);
+        }
+    }
+
+    private static class VariableWidthColumnWriter extends ColumnWriter {
+        private final BaseVariableWidthVector vector;
+
+        VariableWidthColumnWriter(BaseVariableWidthVector vector) {
+            this.vector = vector;
+        }
+
+        @Override
+        public void addBinary(Binary value) {
+            ByteBuffer bytes = value.toByteBuffer();
+            vector.setSafe(row, bytes, bytes.position(), bytes.remaining());
+        }
+    }
+
+    private static class FixedSizeBinaryColumnWriter extends ColumnWriter {
+        private final FixedSizeBinaryVector vector;
+        private final int width;
+
+        FixedSizeBinaryColumnWriter(FixedSizeBinaryVector vector) {
+            this.vector = vector;
+            this.width = vector.getByteWidth();
+        }
+
+        @Override
+        public void addBinary(Binary value) {
+            if (value.length() != width) return; // malformed, leave null
+            while (row >= vector.getValueCapacity()) vector.reAlloc();
+            vector.getDataBuffer().setBytes((long) row * width, value.toByteBuffer());
+            vector.setIndexDefined(row);
+        }
+    }
+
+    private static class BooleanColumnWriter extends ColumnWriter {
+        private final BitVector vector;
+
+        BooleanColumnWriter(BitVector vector) {
+            this.vector = vector;
+        }
+
+        @Override
+        public void addBoolean(boolean value) {
+            vector.setSafe(row, value ? 1 : 0);
+        }
+    }
+
+    private static class SmallIntColumnWriter extends ColumnWriter {
+        private final SmallIntVector vector;
+
+        SmallIntColumnWriter(SmallIntVector vector) {
+            this.vector = vector;
+        }
+
+        @Override
+        public void addInt(int value) {
+            vector.setSafe(row, value);
+        }
+    }
+
+    private static class IntColumnWriter extends ColumnWriter {
+        private final IntVector vector;
+
+        IntColumnWriter(IntVector vector) {
+            this.vector = vector;
+        }
+
+        @Override
+        public void addInt(int value) {
+            vector.setSafe(row, value);
+        }
+    }
+
+    private static class LongColumnWriter extends ColumnWriter {
+        private final BaseFixedWidthVector vector;
+
+        LongColumnWriter(BaseFixedWidthVector vector) {
+            this.vector = vector;
+        }
+
+        @Override
+        public void addLong(long value) {
+            while (row >= vector.getValueCapacity()) vector.reAlloc();
+            vector.getDataBuffer().setLong((long) row * Long.BYTES, value);
+            vector.setIndexDefined(row);
+        }
+    }
+
+    private static class FloatColumnWriter extends ColumnWriter {
+        private final Float4Vector vector;
+
+        FloatColumnWriter(Float4Vector vector) {
+            this.vector = vector;
+        }
+
+        @Override
+        public void addFloat(float value) {
+            vector.setSafe(row, value);
+        }
+    }
+
+    private static class DoubleColumnWriter extends ColumnWriter {
+        private final Float8Vector vector;
+
+        DoubleColumnWriter(Float8Vector vector) {
+            this.vector = vector;
+        }
+
+        @Override
+        public void addDouble(double value) {
+            vector.setSafe(row, value);
+        }
+    }
+}
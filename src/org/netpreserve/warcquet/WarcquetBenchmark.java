@@ -0,0 +1,445 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.netpreserve.warcquet.DigestEngine.Algorithm;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+/**
+ * Measures the whole pipeline end to end: converts a WARC corpus (by default a {@link SyntheticWarcGenerator} one, so
+ * runs are reproducible offline) and reads the result back, reporting throughput, peak RSS and GC time per phase.
+ * <p>
+ * The phases are:
+ * <ul>
+ *     <li>convert - Warc2Warcquet from the WARC files to a warcquet file, MB/sec counting the WARC bytes on disk</li>
+ *     <li>read - materializes every capture event with {@link Warcquet#stream(List)}</li>
+ *     <li>cdxj - exports the CDXJ index unsorted with {@link Warcquet2Cdxj}</li>
+ * </ul>
+ * The read phases count the warcquet bytes on disk for MB/sec. Peak RSS is the process high water mark from
+ * /proc/self/status, reset before each phase via /proc/self/clear_refs. It is reported as "-" where that isn't
+ * possible, e.g. on other operating systems. Results can be appended to a TSV report with a label so versions can be compared.
+ */
+public class WarcquetBenchmark {
+    static final List<String> PHASES = List.of("convert", "read", "cdxj");
+    private static final String REPORT_HEADER = "label\tphase\titeration\trecords\tbytes\tseconds\trecords_per_sec" +
+            "\tmb_per_sec\tpeak_rss_mb\tgc_ms\tgc_count";
+
+    private final List<Path> warcFiles;
+    private final Path workDir;
+    private final OutputSpec outputs;
+    private Set<Algorithm> payloadDigests = EnumSet.of(Algorithm.SHA1);
+    private Set<Algorithm> blockDigests = EnumSet.noneOf(Algorithm.class);
+
+    static class Result {
+        final String phase;
+        final int iteration;
+        final long records;
+        final long bytes;
+        final long nanos;
+        final long peakRss;
+        final long gcMillis;
+        final long gcCount;
+
+        Result(String phase, int iteration, long records, long bytes, long nanos, long peakRss, long gcMillis,
+               long gcCount) {
+            this.phase = phase;
+            this.iteration = iteration;
+            this.records = records;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.peakRss = peakRss;
+            this.gcMillis = gcMillis;
+            this.gcCount = gcCount;
+        }
+
+        double seconds() {
+            return nanos / 1e9;
+        }
+
+        double recordsPerSecond() {
+            return records / seconds();
+        }
+
+        double mbPerSecond() {
+            return bytes / 1024.0 / 1024.0 / seconds();
+        }
+
+        String peakRssMb() {
+            return peakRss < 0 ? "-" : String.valueOf(peakRss / 1024 / 1024);
+        }
+    }
+
+    private interface Phase {
+        /**
+         * Runs the phase, returning the number of records processed.
+         */
+        long run() throws IOException;
+    }
+
+    WarcquetBenchmark(List<Path> warcFiles, Path workDir, OutputSpec outputs) {
+        this.warcFiles = warcFiles;
+        this.workDir = workDir;
+        this.outputs = outputs;
+    }
+
+    void setDigests(Set<Algorithm> payloadDigests, Set<Algorithm> blockDigests) {
+        this.payloadDigests = payloadDigests;
+        this.blockDigests = blockDigests;
+    }
+
+    /**
+     * Runs every phase once, deleting the outputs afterwards.
+     */
+    List<Result> runIteration(int iteration) throws IOException {
+        Path output = workDir.resolve("benchmark.parquet");
+        var results = new ArrayList<Result>();
+        try {
+            long warcBytes = totalSize(warcFiles);
+            results.add(measure("convert", iteration, warcBytes, () -> convert(output)));
+            long parquetBytes = Files.size(output);
+            results.add(measure("read", iteration, parquetBytes, () -> {
+                try (var stream = Warcquet.stream(List.of(output))) {
+                    return stream.count();
+                }
+            }));
+            results.add(measure("cdxj", iteration, parquetBytes, () -> {
+                var out = new LineCountingOutputStream();
+                new Warcquet2Cdxj(false, workDir).export(List.of(output), out);
+                return out.lines;
+            }));
+        } finally {
+            for (Path file : outputs.files(output, null)) {
+                Files.deleteIfExists(file);
+            }
+        }
+        return results;
+    }
+
+    private long convert(Path output) throws IOException {
+        var metrics = new ConversionMetrics();
+        LinkExtractor linkExtractor = outputs.links ? new LinkExtractor(Runtime.getRuntime().availableProcessors(),
+                LinkExtractor.DEFAULT_MAX_BYTES, LinkExtractor.DEFAULT_MAX_LINKS) : null;
+        try {
+            var sinks = outputs.open(output, null, metrics);
+            try {
+                var converter = new Warc2Warcquet(sinks, false);
+                converter.setMetrics(metrics);
+                converter.setDigests(payloadDigests, blockDigests);
+                converter.setLinkExtractor(linkExtractor);
+                for (Path warcFile : warcFiles) {
+                    converter.convertFile(warcFile.toString());
+                }
+            } finally {
+                OutputSpec.closeAll(sinks);
+            }
+            return metrics.getRecords();
+        } finally {
+            metrics.close();
+            if (linkExtractor != null) linkExtractor.close();
+        }
+    }
+
+    private static Result measure(String phase, int iteration, long bytes, Phase task) throws IOException {
+        System.gc();
+        boolean rssReset = resetPeakRss();
+        long gcMillis = gcMillis();
+        long gcCount = gcCount();
+        long start = System.nanoTime();
+        long records = task.run();
+        long nanos = System.nanoTime() - start;
+        return new Result(phase, iteration, records, bytes, nanos, rssReset ? peakRss() : -1,
+                gcMillis() - gcMillis, gcCount() - gcCount);
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * Resets the kernel's RSS high water mark for this process. Returns false if that isn't possible, in which case
+     * the high water mark would cover earlier phases too.
+     */
+    private static boolean resetPeakRss() {
+        try {
+            Files.writeString(Paths.get("/proc/self/clear_refs"), "5");
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the RSS high water mark (VmHWM) in bytes, or -1 if it isn't available.
+     */
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    private static long totalSize(List<Path> files) throws IOException {
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        return total;
+    }
+
+    static void print(PrintStream out, List<Result> results) {
+        out.printf("%-8s %4s %10s %12s %8s %11s %8s %8s %7s %5s%n", "phase", "iter", "records", "bytes", "seconds",
+                "records/s", "MB/s", "rss_mb", "gc_ms", "gcs");
+        for (Result result : results) {
+            out.printf("%-8s %4d %10d %12d %8.3f %11.0f %8.1f %8s %7d %5d%n", result.phase, result.iteration,
+                    result.records, result.bytes, result.seconds(), result.recordsPerSecond(), result.mbPerSecond(),
+                    result.peakRssMb(), result.gcMillis, result.gcCount);
+        }
+    }
+
+    /**
+     * Prints the median of each measure over the iterations of each phase.
+     */
+    static void printSummary(PrintStream out, List<Result> results) {
+        out.printf("%-8s %11s %8s %8s %7s%n", "median", "records/s", "MB/s", "rss_mb", "gc_ms");
+        for (String phase : PHASES) {
+            var runs = results.stream().filter(r -> r.phase.equals(phase)).toArray(Result[]::new);
+            if (runs.length == 0) continue;
+            double peakRss = median(runs, r -> r.peakRss);
+            out.printf("%-8s %11.0f %8.1f %8s %7.0f%n", phase, median(runs, Result::recordsPerSecond),
+                    median(runs, Result::mbPerSecond), peakRss < 0 ? "-" : String.valueOf((long) peakRss / 1024 / 1024),
+                    median(runs, r -> r.gcMillis));
+        }
+    }
+
+    private static double median(Result[] runs, java.util.function.ToDoubleFunction<Result> measure) {
+        double[] values = Arrays.stream(runs).mapToDouble(measure).sorted().toArray();
+        int middle = values.length / 2;
+        return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    /**
+     * Appends results to a TSV report, writing the header first if the file is new.
+     */
+    static void appendReport(Path report, String label, List<Result> results) throws IOException {
+        var builder = new StringBuilder();
+        if (!Files.exists(report) || Files.size(report) == 0) builder.append(REPORT_HEADER).append('\n');
+        for (Result result : results) {
+            builder.append(label).append('\t')
+                    .append(result.phase).append('\t')
+                    .append(result.iteration).append('\t')
+                    .append(result.records).append('\t')
+                    .append(result.bytes).append('\t')
+                    .append(String.format(Locale.ROOT, "%.3f", result.seconds())).append('\t')
+                    .append(String.format(Locale.ROOT, "%.0f", result.recordsPerSecond())).append('\t')
+                    .append(String.format(Locale.ROOT, "%.2f", result.mbPerSecond())).append('\t')
+                    .append(result.peakRssMb()).append('\t')
+                    .append(result.gcMillis).append('\t')
+                    .append(result.gcCount).append('\n');
+        }
+        Files.writeString(report, builder, StandardCharsets.UTF_8, CREATE, APPEND);
+    }
+
+    private static class LineCountingOutputStream extends OutputStream {
+        long lines;
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') lines++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') lines++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        var generator = new SyntheticWarcGenerator();
+        var outputs = new OutputSpec();
+        var warcFiles = new ArrayList<Path>();
+        Set<Algorithm> payloadDigests = EnumSet.of(Algorithm.SHA1);
+        Set<Algorithm> blockDigests = EnumSet.noneOf(Algorithm.class);
+        boolean gzip = true;
+        boolean keep = false;
+        int iterations = 3;
+        int warmup = 1;
+        String label = "warcquet";
+        Path report = null;
+        Path workDir = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "--block-digests":
+                        blockDigests = Algorithm.parseList(args[++i]);
+                        break;
+                    case "-c":
+                    case "--compression":
+                        outputs.compression = CompressionCodecName.fromConf(args[++i]);
+                        break;
+                    case "--digest-fraction":
+                        generator.digestFraction(Double.parseDouble(args[++i]));
+                        break;
+                    case "--digests":
+                        payloadDigests = Algorithm.parseList(args[++i]);
+                        break;
+                    case "--hosts":
+                        generator.hosts(Integer.parseInt(args[++i]));
+                        break;
+                    case "--iterations":
+                        iterations = Integer.parseInt(args[++i]);
+                        break;
+                    case "--keep":
+                        keep = true;
+                        break;
+                    case "--label":
+                        label = args[++i];
+                        break;
+                    case "--links":
+                        outputs.links = true;
+                        break;
+                    case "--mix":
+                        generator.mix(args[++i]);
+                        break;
+                    case "--payload-size":
+                        generator.payloadSizes(args[++i]);
+                        break;
+                    case "--plain":
+                        gzip = false;
+                        break;
+                    case "-n":
+                    case "--records":
+                        generator.records(Long.parseLong(args[++i]));
+                        break;
+                    case "--report":
+                        report = Paths.get(args[++i]);
+                        break;
+                    case "--rollups":
+                        outputs.rollups = true;
+                        break;
+                    case "--seed":
+                        generator.seed(Long.parseLong(args[++i]));
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(args[++i]);
+                        break;
+                    case "--work-dir":
+                        workDir = Paths.get(args[++i]);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: WarcquetBenchmark [OPTIONS] [warc-files...]\n" +
+                                "\n" +
+                                "Converts a WARC corpus and reads it back, reporting records/sec, MB/sec, peak RSS and\n" +
+                                "GC time for each phase. Without WARC files a synthetic corpus is generated.\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "      --iterations N         Measured iterations (default 3)\n" +
+                                "      --keep                 Keep the generated corpus in the work directory\n" +
+                                "      --label NAME           Label for the report rows, e.g. a version (default warcquet)\n" +
+                                "      --report FILE          Append the results to a TSV report\n" +
+                                "      --warmup N             Unmeasured iterations first (default 1)\n" +
+                                "      --work-dir DIR         Directory for the corpus and outputs (default a temp directory)\n" +
+                                "\n" +
+                                "Conversion options:\n" +
+                                "      --block-digests LIST   Block digests to compute (default none)\n" +
+                                "  -c, --compression CODEC    Parquet compression codec (default uncompressed)\n" +
+                                "      --digests LIST         Payload digests to compute (default sha1)\n" +
+                                "      --links                Also extract the outlink graph\n" +
+                                "      --rollups              Also write the rollup tables\n" +
+                                "\n" +
+                                "Synthetic corpus options:\n" +
+                                "      --digest-fraction P    Fraction of records declaring their digests (default 1)\n" +
+                                "      --hosts N              Number of distinct hosts (default 1000)\n" +
+                                "      --mix MIX              Record type weights (default " + SyntheticWarcGenerator.DEFAULT_MIX + ")\n" +
+                                "      --payload-size DIST    fixed:N, uniform:MIN,MAX or lognormal:MEDIAN,SIGMA\n" +
+                                "                             (default " + SyntheticWarcGenerator.DEFAULT_PAYLOAD_SIZE + ")\n" +
+                                "      --plain                Write the corpus uncompressed instead of gzipped\n" +
+                                "  -n, --records N            Number of records (default 100000)\n" +
+                                "      --seed N               Random seed (default 1)\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("WarcquetBenchmark: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                warcFiles.add(Paths.get(args[i]));
+            }
+        }
+
+        boolean tempDir = workDir == null;
+        if (tempDir) {
+            workDir = Files.createTempDirectory("warcquet-benchmark");
+        } else {
+            Files.createDirectories(workDir);
+        }
+        Path corpus = null;
+        try {
+            if (warcFiles.isEmpty()) {
+                corpus = workDir.resolve(gzip ? "corpus.warc.gz" : "corpus.warc");
+                long start = System.nanoTime();
+                long size = generator.generate(corpus);
+                System.err.printf("WarcquetBenchmark: generated %d byte corpus in %.1fs%n", size,
+                        (System.nanoTime() - start) / 1e9);
+                warcFiles.add(corpus);
+            }
+
+            var benchmark = new WarcquetBenchmark(warcFiles, workDir, outputs);
+            benchmark.setDigests(payloadDigests, blockDigests);
+            for (int i = 1; i <= warmup; i++) {
+                benchmark.runIteration(-i);
+            }
+            var results = new ArrayList<Result>();
+            for (int i = 1; i <= iterations; i++) {
+                results.addAll(benchmark.runIteration(i));
+            }
+
+            System.out.println("# " + label + " java " + System.getProperty("java.version") + ", " +
+                    Runtime.getRuntime().availableProcessors() + " cpus, max heap " +
+                    Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MB");
+            print(System.out, results);
+            System.out.println();
+            printSummary(System.out, results);
+            if (report != null) appendReport(report, label, results);
+        } finally {
+            if (corpus != null && !keep) Files.deleteIfExists(corpus);
+            if (tempDir && !keep) Files.deleteIfExists(workDir);
+        }
+    }
+}
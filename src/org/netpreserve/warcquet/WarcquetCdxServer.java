@@ -0,0 +1,638 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.parquet.column.statistics.Statistics;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.netpreserve.jwarc.URIs;
+import org.netpreserve.warcquet.util.PathInputFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.netpreserve.warcquet.Warcquet2Cdxj.*;
+
+/**
+ * Answers CDX queries over warcquet files using a subset of the pywb CDX server API. Queries are sent to /cdx (or
+ * /COLLECTION/cdx) with the parameters url, matchType (exact, prefix, host or domain, or implied by a leading "*." or
+ * trailing "*" on the url), from, to, limit and sort (reverse, or closest together with closest=TIMESTAMP). Results
+ * are CDXJ lines, ordered by (surt_key, date) unless sorted otherwise.
+ * <p>
+ * The min and max surt_key and date of every row group are loaded from the file footers at startup. A query only reads
+ * the row groups whose range overlaps it, and only the CDX columns of those, so files sorted by
+ * {@link WarcquetCompact} read little more than the matching rows.
+ * <p>
+ * Requests are handled on a fixed pool of threads. Each request keeps at most limit results, choosing them with a
+ * bounded heap as it scans, and idle file readers are kept in a bounded pool for reuse. Responses are cached by query
+ * up to a total size so hot URLs are answered from memory, and concurrent requests for the same query share one scan.
+ * Latency histograms for cache hits and misses are served at /metrics in the Prometheus text format.
+ */
+public class WarcquetCdxServer implements Closeable {
+    public static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_LIMIT = 100_000;
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
+    private static final byte[] NO_MIN = new byte[0];
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<RowGroup> rowGroups;
+    private final ReaderPool readers;
+    private final Cache<String, byte[]> cache;
+    private final int maxLimit;
+    private final LatencyHistogram hitLatency = new LatencyHistogram();
+    private final LatencyHistogram missLatency = new LatencyHistogram();
+    private final LongAdder rowGroupsRead = new LongAdder();
+    private final LongAdder rowGroupsPruned = new LongAdder();
+    private final LongAdder rowsScanned = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * @param files        warcquet files to serve
+     * @param address      address to listen on, port 0 for any free port
+     * @param threads      requests handled at once
+     * @param cacheBytes   total size of cached responses
+     * @param maxLimit     the most results returned for any query
+     * @param maxOpenFiles idle file readers kept open for reuse
+     */
+    public WarcquetCdxServer(List<Path> files, InetSocketAddress address, int threads, long cacheBytes, int maxLimit,
+                             int maxOpenFiles) throws IOException {
+        this.rowGroups = loadRowGroups(files);
+        this.readers = new ReaderPool(maxOpenFiles);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(cacheBytes)
+                .<String, byte[]>weigher((query, response) -> query.length() + response.length)
+                .build();
+        this.maxLimit = maxLimit;
+        var threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "warcquet-cdx-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public int getRowGroupCount() {
+        return rowGroups.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        readers.close();
+    }
+
+    private static List<RowGroup> loadRowGroups(List<Path> files) throws IOException {
+        var rowGroups = new ArrayList<RowGroup>();
+        for (Path file : files) {
+            try (var reader = ParquetFileReader.open(new PathInputFile(file))) {
+                List<BlockMetaData> blocks = reader.getRowGroups();
+                for (int i = 0; i < blocks.size(); i++) {
+                    var rowGroup = new RowGroup(file, i);
+                    for (ColumnChunkMetaData column : blocks.get(i).getColumns()) {
+                        String name = column.getPath().toDotString();
+                        Statistics<?> stats = column.getStatistics();
+                        if (stats == null || stats.isEmpty()) continue;
+                        if (!stats.hasNonNullValue()) {
+                            if (name.equals("surt_key")) rowGroup.empty = true;
+                            continue;
+                        }
+                        if (name.equals("surt_key")) {
+                            rowGroup.minSurt = stats.getMinBytes();
+                            rowGroup.maxSurt = stats.getMaxBytes();
+                        } else if (name.equals("date")) {
+                            rowGroup.minDate = (Long) stats.genericGetMin();
+                            rowGroup.maxDate = (Long) stats.genericGetMax();
+                        }
+                    }
+                    if (!rowGroup.empty) rowGroups.add(rowGroup);
+                }
+            }
+        }
+        rowGroups.sort((a, b) -> Arrays.compareUnsigned(a.minSurt, b.minSurt));
+        return rowGroups;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/metrics")) {
+                send(exchange, 200, "text/plain; version=0.0.4", metrics().getBytes(StandardCharsets.UTF_8));
+            } else if (path.equals("/cdx") || path.endsWith("/cdx")) {
+                handleCdx(exchange);
+            } else {
+                send(exchange, 404, "text/plain", "Not found\n".getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleCdx(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        boolean[] loaded = {false};
+        try {
+            Query query = Query.parse(parseParams(exchange.getRequestURI().getRawQuery()), maxLimit);
+            byte[] response = cache.get(query.cacheKey, () -> {
+                loaded[0] = true;
+                return execute(query);
+            });
+            send(exchange, 200, "text/plain; charset=utf-8", response);
+            (loaded[0] ? missLatency : hitLatency).record(System.nanoTime() - start);
+        } catch (IllegalArgumentException e) {
+            // invalid requests are counted by neither histogram
+            send(exchange, 400, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            errors.increment();
+            System.err.println("WarcquetCdxServer: error answering " + exchange.getRequestURI() + ": " + e.getCause());
+            send(exchange, 500, "text/plain", "Internal server error\n".getBytes(StandardCharsets.UTF_8));
+            missLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    static Map<String, String> parseParams(String rawQuery) {
+        var params = new HashMap<String, String>();
+        if (rawQuery == null) return params;
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) continue;
+            int i = pair.indexOf('=');
+            String key = i < 0 ? pair : pair.substring(0, i);
+            String value = i < 0 ? "" : pair.substring(i + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * Scans the row groups that may hold matches and formats the best limit of them.
+     */
+    byte[] execute(Query query) throws IOException {
+        var heap = new PriorityQueue<Match>(query.order.reversed());
+        var formatter = new CdxjFormatter();
+        for (RowGroup rowGroup : rowGroups) {
+            if (Arrays.compareUnsigned(rowGroup.minSurt, query.end) >= 0) break;
+            if (!rowGroup.overlaps(query)) {
+                rowGroupsPruned.increment();
+                continue;
+            }
+            rowGroupsRead.increment();
+            ParquetFileReader reader = readers.borrow(rowGroup.file);
+            boolean reusable = false;
+            try {
+                var scanner = new ColumnScanner(reader, reader.readRowGroup(rowGroup.index), COLUMNS, null);
+                rowsScanned.add(scanner.getRowCount());
+                while (scanner.nextRow()) {
+                    if (scanner.isNull(SURT_KEY) || scanner.isNull(DATE)) continue;
+                    long date = scanner.getLong(DATE);
+                    if (date < query.from || date >= query.to) continue;
+                    ByteBuffer surt = scanner.getBinary(SURT_KEY).toByteBuffer();
+                    if (compare(surt, query.start) < 0 || compare(surt, query.end) >= 0) continue;
+
+                    var match = new Match(surt, date);
+                    if (heap.size() >= query.limit && query.order.compare(match, heap.peek()) >= 0) continue;
+                    formatter.reset();
+                    formatter.appendLine(binary(scanner, SURT_KEY), date, binary(scanner, URL),
+                            binary(scanner, MIME),
+                            scanner.isNull(HTTP_STATUS) ? -1 : scanner.getInteger(HTTP_STATUS),
+                            binary(scanner, SHA1),
+                            scanner.isNull(LENGTH) ? 0 : scanner.getLong(LENGTH),
+                            scanner.isNull(POSITION) ? 0 : scanner.getLong(POSITION),
+                            binary(scanner, FILENAME),
+                            binary(scanner, REDIRECT));
+                    match.line = Arrays.copyOf(formatter.buffer(), formatter.size());
+                    heap.add(match);
+                    if (heap.size() > query.limit) heap.poll();
+                }
+                reusable = true;
+            } finally {
+                readers.release(rowGroup.file, reader, reusable);
+            }
+        }
+
+        var matches = new ArrayList<>(heap);
+        matches.sort(query.order);
+        var out = new ByteArrayOutputStream();
+        for (Match match : matches) {
+            out.write(match.line);
+        }
+        return out.toByteArray();
+    }
+
+    private static int compare(ByteBuffer a, byte[] b) {
+        int n = Math.min(a.remaining(), b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(a.get(a.position() + i) & 0xff, b[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(a.remaining(), b.length);
+    }
+
+    private String metrics() {
+        var sb = new StringBuilder();
+        sb.append("# TYPE warcquet_cdx_request_seconds histogram\n");
+        hitLatency.append(sb, "warcquet_cdx_request_seconds", "cache=\"hit\"");
+        missLatency.append(sb, "warcquet_cdx_request_seconds", "cache=\"miss\"");
+        sb.append("# TYPE warcquet_cdx_row_groups_read_total counter\n");
+        sb.append("warcquet_cdx_row_groups_read_total ").append(rowGroupsRead.sum()).append('\n');
+        sb.append("# TYPE warcquet_cdx_row_groups_pruned_total counter\n");
+        sb.append("warcquet_cdx_row_groups_pruned_total ").append(rowGroupsPruned.sum()).append('\n');
+        sb.append("# TYPE warcquet_cdx_rows_scanned_total counter\n");
+        sb.append("warcquet_cdx_rows_scanned_total ").append(rowsScanned.sum()).append('\n');
+        sb.append("# TYPE warcquet_cdx_errors_total counter\n");
+        sb.append("warcquet_cdx_errors_total ").append(errors.sum()).append('\n');
+        sb.append("# TYPE warcquet_cdx_cache_bytes gauge\n");
+        long cacheBytes = 0;
+        for (var entry : cache.asMap().entrySet()) {
+            cacheBytes += entry.getKey().length() + entry.getValue().length;
+        }
+        sb.append("warcquet_cdx_cache_bytes ").append(cacheBytes).append('\n');
+        return sb.toString();
+    }
+
+    static class Query {
+        private static final Comparator<Match> ASCENDING = ((Comparator<Match>) (a, b) -> Arrays.compareUnsigned(a.surt, b.surt))
+                .thenComparingLong(m -> m.date);
+
+        byte[] start;
+        byte[] end;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        int limit;
+        Comparator<Match> order = ASCENDING;
+        String cacheKey;
+
+        static Query parse(Map<String, String> params, int maxLimit) {
+            var query = new Query();
+            String url = params.get("url");
+            if (url == null || url.isEmpty()) throw new IllegalArgumentException("The url parameter is required");
+            String matchType = params.get("matchType");
+            if (matchType == null) {
+                if (url.startsWith("*.")) {
+                    matchType = "domain";
+                    url = url.substring(2);
+                } else if (url.endsWith("*")) {
+                    matchType = "prefix";
+                    url = url.substring(0, url.length() - 1);
+                } else {
+                    matchType = "exact";
+                }
+            }
+
+            String surt = surt(url);
+            switch (matchType) {
+                case "exact":
+                    query.start = bytes(surt);
+                    query.end = bytes(surt + "\0");
+                    break;
+                case "prefix":
+                    query.start = bytes(surt);
+                    query.end = successor(query.start);
+                    break;
+                case "host":
+                    query.start = bytes(surt.substring(0, surt.indexOf(')') + 1) + "/");
+                    query.end = successor(query.start);
+                    break;
+                case "domain": {
+                    int hostEnd = surt.indexOf(')');
+                    int port = surt.lastIndexOf(':', hostEnd);
+                    String host = surt.substring(0, port >= 0 ? port : hostEnd);
+                    query.start = bytes(host);
+                    // covers "host)" and "host," (subdomains) but not other hosts sharing the prefix
+                    query.end = bytes(host + "-");
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported matchType: " + matchType);
+            }
+
+            if (params.containsKey("from")) {
+                query.from = parseTimestamp(params.get("from")).toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+            if (params.containsKey("to")) {
+                query.to = parseUpperTimestamp(params.get("to")).toInstant(ZoneOffset.UTC).toEpochMilli() + 1000;
+            }
+            query.limit = maxLimit;
+            if (params.containsKey("limit")) {
+                int limit = Integer.parseInt(params.get("limit"));
+                if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+                query.limit = Math.min(limit, maxLimit);
+            }
+
+            String sort = params.get("sort");
+            String closest = params.get("closest");
+            if (sort == null || sort.isEmpty()) {
+                closest = null;
+            } else if (sort.equals("reverse")) {
+                query.order = ASCENDING.reversed();
+                closest = null;
+            } else if (sort.equals("closest")) {
+                if (closest == null) throw new IllegalArgumentException("sort=closest requires the closest parameter");
+                long target = parseTimestamp(closest).toInstant(ZoneOffset.UTC).toEpochMilli();
+                query.order = Comparator.<Match>comparingLong(m -> Math.abs(m.date - target))
+                        .thenComparing(ASCENDING);
+            } else {
+                throw new IllegalArgumentException("Unsupported sort: " + sort);
+            }
+
+            query.cacheKey = matchType + ' ' + surt + ' ' + query.from + ' ' + query.to + ' ' + query.limit + ' ' +
+                    sort + ' ' + closest;
+            return query;
+        }
+
+        private static String surt(String url) {
+            String surt = URIs.toNormalizedSurt(url.contains("://") ? url : "http://" + url);
+            // a trailing slash is significant for prefix queries but dropped by path normalisation
+            int queryStart = url.indexOf('?');
+            String path = queryStart < 0 ? url : url.substring(0, queryStart);
+            if (path.endsWith("/") && !surt.endsWith("/") && surt.indexOf('?') < 0) surt += "/";
+            return surt;
+        }
+
+        private static byte[] bytes(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The smallest byte string greater than every string with the given prefix.
+         */
+        private static byte[] successor(byte[] prefix) {
+            int n = prefix.length;
+            while (n > 0 && prefix[n - 1] == (byte) 0xff) n--;
+            if (n == 0) return new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+            byte[] end = Arrays.copyOf(prefix, n);
+            end[n - 1]++;
+            return end;
+        }
+
+        private static LocalDateTime parseTimestamp(String timestamp) {
+            checkTimestamp(timestamp);
+            try {
+                return Cdx2Warcquet.parseTimestamp(timestamp);
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Invalid timestamp: " + timestamp);
+            }
+        }
+
+        /**
+         * Parses a timestamp prefix as the last second it covers, e.g. 2020 as 20201231235959.
+         */
+        private static LocalDateTime parseUpperTimestamp(String timestamp) {
+            checkTimestamp(timestamp);
+            String padded = timestamp + "99991231235959".substring(timestamp.length());
+            int year = Integer.parseInt(padded.substring(0, 4));
+            int month = Math.min(12, Math.max(1, Integer.parseInt(padded.substring(4, 6))));
+            int day = Math.min(YearMonth.of(year, month).lengthOfMonth(),
+                    Math.max(1, Integer.parseInt(padded.substring(6, 8))));
+            return LocalDateTime.of(year, month, day,
+                    Math.min(23, Integer.parseInt(padded.substring(8, 10))),
+                    Math.min(59, Integer.parseInt(padded.substring(10, 12))),
+                    Math.min(59, Integer.parseInt(padded.substring(12, 14))));
+        }
+
+        private static void checkTimestamp(String timestamp) {
+            if (timestamp.isEmpty() || timestamp.length() > 14 || !timestamp.chars().allMatch(Character::isDigit)) {
+                throw new IllegalArgumentException("Invalid timestamp: " + timestamp);
+            }
+        }
+    }
+
+    private static class Match {
+        final byte[] surt;
+        final long date;
+        byte[] line;
+
+        Match(ByteBuffer surt, long date) {
+            this.surt = new byte[surt.remaining()];
+            surt.duplicate().get(this.surt);
+            this.date = date;
+        }
+    }
+
+    private static class RowGroup {
+        final Path file;
+        final int index;
+        byte[] minSurt = NO_MIN;
+        byte[] maxSurt;
+        Long minDate;
+        Long maxDate;
+        boolean empty;
+
+        RowGroup(Path file, int index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        boolean overlaps(Query query) {
+            if (maxSurt != null && Arrays.compareUnsigned(maxSurt, query.start) < 0) return false;
+            if (maxDate != null && maxDate < query.from) return false;
+            return minDate == null || minDate < query.to;
+        }
+    }
+
+    /**
+     * Idle file readers, most recently used first. Readers aren't thread-safe so each is used by one request at a
+     * time.
+     */
+    private static class ReaderPool {
+        private final int maxIdle;
+        private final ArrayDeque<Map.Entry<Path, ParquetFileReader>> idle = new ArrayDeque<>();
+
+        ReaderPool(int maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+
+        ParquetFileReader borrow(Path file) throws IOException {
+            synchronized (idle) {
+                for (var it = idle.iterator(); it.hasNext(); ) {
+                    var entry = it.next();
+                    if (entry.getKey().equals(file)) {
+                        it.remove();
+                        return entry.getValue();
+                    }
+                }
+            }
+            return ColumnScanner.open(file, COLUMNS);
+        }
+
+        void release(Path file, ParquetFileReader reader, boolean reusable) throws IOException {
+            ParquetFileReader evicted = reader;
+            if (reusable) {
+                synchronized (idle) {
+                    idle.addFirst(Map.entry(file, reader));
+                    evicted = idle.size() > maxIdle ? idle.removeLast().getValue() : null;
+                }
+            }
+            if (evicted != null) evicted.close();
+        }
+
+        void close() {
+            synchronized (idle) {
+                for (var entry : idle) {
+                    try {
+                        entry.getValue().close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+                idle.clear();
+            }
+        }
+    }
+
+    private static class LatencyHistogram {
+        private static final double[] BOUNDS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+                2.5, 5, 10};
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BOUNDS.length && seconds > BOUNDS[i]) i++;
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        void append(StringBuilder sb, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                sb.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append(i < BOUNDS.length ? Double.toString(BOUNDS[i]) : "+Inf").append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+            sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = "127.0.0.1";
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        long cacheBytes = DEFAULT_CACHE_BYTES;
+        int maxLimit = DEFAULT_MAX_LIMIT;
+        int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+        var files = new ArrayList<Path>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "-b":
+                    case "--bind":
+                        host = args[++i];
+                        break;
+                    case "--cache-size":
+                        cacheBytes = Long.parseLong(args[++i]);
+                        break;
+                    case "--max-limit":
+                        maxLimit = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-open-files":
+                        maxOpenFiles = Integer.parseInt(args[++i]);
+                        break;
+                    case "-p":
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "-t":
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: WarcquetCdxServer [OPTIONS] warcquet-files-or-directories...\n" +
+                                "\n" +
+                                "Serves pywb-style CDX queries at /cdx and metrics at /metrics.\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "  -b, --bind ADDRESS          Address to listen on (default 127.0.0.1)\n" +
+                                "      --cache-size BYTES      Total size of cached responses (default " + DEFAULT_CACHE_BYTES + ")\n" +
+                                "      --max-limit N           Most results returned for a query (default " + DEFAULT_MAX_LIMIT + ")\n" +
+                                "      --max-open-files N      Idle file readers kept open (default " + DEFAULT_MAX_OPEN_FILES + ")\n" +
+                                "  -p, --port PORT             Port to listen on (default 8080)\n" +
+                                "  -t, --threads N             Requests handled at once (default: 2 x CPUs)\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("WarcquetCdxServer: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                Path path = Paths.get(args[i]);
+                if (Files.isDirectory(path)) {
+                    try (Stream<Path> list = Files.list(path)) {
+                        files.addAll(list.filter(p -> p.getFileName().toString().endsWith(".parquet"))
+                                .sorted().collect(Collectors.toList()));
+                    }
+                } else {
+                    files.add(path);
+                }
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("WarcquetCdxServer: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        var server = new WarcquetCdxServer(files, new InetSocketAddress(host, port), threads, cacheBytes, maxLimit,
+                maxOpenFiles);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.err.println("WarcquetCdxServer: serving " + server.getRowGroupCount() + " row groups from " +
+                files.size() + " files at http://" + host + ":" + server.getAddress().getPort() + "/cdx");
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.netpreserve.warcquet.util.PathInputFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts many (typically small) warcquet files into one or more large files sorted by (surt_key, date).
+ * <p>
+ * The work is split into disjoint SURT ranges chosen by sampling the surt_key column. Each input is read once and its
+ * captures routed to their range, sorted in memory and spilled as temporary run files. Each range is then k-way
+ * merged in parallel into its own output file, optionally dropping exact duplicates (same url, date and payload
+ * digest). Outputs are written under temporary names and only moved into place once the row counts have been
+ * verified against the inputs.
+ * <p>
+ * Inputs are read in parallel, so the in-memory buffer limit is shared out between the workers.
+ */
+public class WarcquetCompact {
+    public static final long DEFAULT_ROW_GROUP_SIZE = 512L * 1024 * 1024;
+    public static final int DEFAULT_MAX_BUFFERED = 500_000;
+    private static final int SAMPLE_SIZE = 10_000;
+    private static final Comparator<String> NULLS_FIRST = Comparator.nullsFirst(Comparator.naturalOrder());
+    static final Comparator<CaptureEvent> ORDER = Comparator
+            .comparing(CaptureEvent::getSurtKey, NULLS_FIRST)
+            .thenComparingLong(CaptureEvent::getDateAsLong);
+
+    private int partitions = 1;
+    private boolean dropDuplicates;
+    private int maxBuffered = DEFAULT_MAX_BUFFERED;
+    private long rowGroupSize = DEFAULT_ROW_GROUP_SIZE;
+    private boolean buildRollups;
+    private CompressionCodecName compression = CompressionCodecName.UNCOMPRESSED;
+    private Path tempDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private long duplicatesDropped;
+
+    public WarcquetCompact partitions(int partitions) {
+        this.partitions = partitions;
+        return this;
+    }
+
+    public WarcquetCompact dropDuplicates(boolean dropDuplicates) {
+        this.dropDuplicates = dropDuplicates;
+        return this;
+    }
+
+    /**
+     * Maximum number of captures buffered in memory, across all workers, before spilling sorted runs.
+     */
+    public WarcquetCompact maxBuffered(int maxBuffered) {
+        this.maxBuffered = maxBuffered;
+        return this;
+    }
+
+    /**
+     * Builds the standard rollups from the rows written, as companions of the output.
+     */
+    public WarcquetCompact buildRollups(boolean buildRollups) {
+        this.buildRollups = buildRollups;
+        return this;
+    }
+
+    public WarcquetCompact rowGroupSize(long rowGroupSize) {
+        this.rowGroupSize = rowGroupSize;
+        return this;
+    }
+
+    public WarcquetCompact compression(CompressionCodecName compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public WarcquetCompact tempDir(Path tempDir) {
+        this.tempDir = tempDir;
+        return this;
+    }
+
+    public long getDuplicatesDropped() {
+        return duplicatesDropped;
+    }
+
+    /**
+     * Returns the output path for a partition. With a single partition this is the output path itself, otherwise
+     * the partition number is inserted before the extension, e.g. out.parquet -> out-00001.parquet
+     */
+    public static Path partitionPath(Path output, int partition, int partitions) {
+        if (partitions == 1) return output;
+        String filename = output.getFileName().toString();
+        String suffix = "";
+        if (filename.endsWith(".parquet")) {
+            filename = filename.substring(0, filename.length() - ".parquet".length());
+            suffix = ".parquet";
+        }
+        return output.resolveSibling(String.format("%s-%05d%s", filename, partition, suffix));
+    }
+
+    /**
+     * Compacts the inputs and returns the paths of the files written.
+     */
+    public List<Path> compact(List<Path> inputs, Path output) throws IOException {
+        long inputRows = 0;
+        for (Path input : inputs) {
+            try (var reader = ParquetFileReader.open(new PathInputFile(input))) {
+                inputRows += reader.getRecordCount();
+            }
+        }
+
+        String[] splitPoints = sampleSplitPoints(inputs, inputRows);
+        int partitionCount = splitPoints.length + 1;
+        List<Queue<Path>> runs = new ArrayList<>();
+        for (int i = 0; i < partitionCount; i++) runs.add(new ConcurrentLinkedQueue<>());
+
+        var outputs = new ArrayList<Path>();
+        var tempOutputs = new ArrayList<Path>();
+        for (int i = 0; i < partitionCount; i++) {
+            Path path = partitionPath(output, i, partitionCount);
+            outputs.add(path);
+            tempOutputs.add(path.resolveSibling(path.getFileName() + ".tmp"));
+        }
+
+        List<List<Rollup>> rollups = new ArrayList<>();
+        for (int i = 0; i < partitionCount && buildRollups; i++) {
+            rollups.add(Rollup.standard(Rollup.DEFAULT_MAX_ENTRIES));
+        }
+        var rollupRuns = new ArrayList<Path>();
+
+        try {
+            // route each input into sorted runs per partition, sharing the buffer limit between the workers
+            int workers = Math.max(1, Math.min(inputs.size(), ForkJoinPool.getCommonPoolParallelism() + 1));
+            int maxBufferedPerWorker = Math.max(1, maxBuffered / workers);
+            inputs.parallelStream().forEach(input -> {
+                try {
+                    spillSortedRuns(input, splitPoints, runs, maxBufferedPerWorker);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            // merge each partition's runs in parallel
+            var rowsWritten = new AtomicLong();
+            var duplicates = new AtomicLong();
+            var partitionIndexes = new ArrayList<Integer>();
+            for (int i = 0; i < partitionCount; i++) partitionIndexes.add(i);
+            partitionIndexes.parallelStream().forEach(i -> {
+                try {
+                    long[] counts = mergeRuns(new ArrayList<>(runs.get(i)), tempOutputs.get(i),
+                            buildRollups ? rollups.get(i) : List.of());
+                    rowsWritten.addAndGet(counts[0]);
+                    duplicates.addAndGet(counts[1]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            // verify the written files before moving them into place
+            long verifiedRows = 0;
+            for (Path tempOutput : tempOutputs) {
+                try (var reader = ParquetFileReader.open(new PathInputFile(tempOutput))) {
+                    verifiedRows += reader.getRecordCount();
+                }
+            }
+            if (verifiedRows != rowsWritten.get() || verifiedRows + duplicates.get() != inputRows) {
+                throw new IOException("Row count mismatch: read " + inputRows + " rows, wrote " + verifiedRows +
+                        " and dropped " + duplicates.get() + " duplicates");
+            }
+            for (int i = 0; i < partitionCount; i++) {
+                Files.move(tempOutputs.get(i), outputs.get(i), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (buildRollups) {
+                writeRollups(rollups, output, rollupRuns);
+            }
+            duplicatesDropped = duplicates.get();
+            return outputs;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (Queue<Path> partitionRuns : runs) {
+                for (Path run : partitionRuns) {
+                    Files.deleteIfExists(run);
+                }
+            }
+            for (Path tempOutput : tempOutputs) {
+                Files.deleteIfExists(tempOutput);
+            }
+            for (Path run : rollupRuns) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    /**
+     * Writes each partition's rollups and combines them into one companion file per rollup.
+     */
+    private void writeRollups(List<List<Rollup>> rollups, Path output, List<Path> rollupRuns) throws IOException {
+        for (int r = 0; r < rollups.get(0).size(); r++) {
+            String name = rollups.get(0).get(r).getName();
+            if (rollups.size() == 1) {
+                rollups.get(0).get(r).write(Rollup.companionPath(output, name));
+                continue;
+            }
+            var parts = new ArrayList<Path>();
+            for (List<Rollup> partitionRollups : rollups) {
+                Path part = Files.createTempFile(tempDir, "warcquet-compact-", ".rollup.parquet");
+                rollupRuns.add(part);
+                parts.add(part);
+                partitionRollups.get(r).write(part);
+            }
+            RollupTable.merge(parts, Rollup.companionPath(output, name), Rollup.DEFAULT_MAX_ENTRIES);
+        }
+    }
+
+    /**
+     * Picks partition boundaries by sampling the surt_key column of the inputs.
+     */
+    private String[] sampleSplitPoints(List<Path> inputs, long rows) throws IOException {
+        if (partitions <= 1) return new String[0];
+        long stride = Math.max(1, rows / SAMPLE_SIZE);
+        var samples = new ArrayList<String>();
+        long row = 0;
+        String[] columns = {"surt_key"};
+        for (Path input : inputs) {
+            try (var reader = ColumnScanner.open(input, columns)) {
+                for (int i = 0; i < reader.getRowGroups().size(); i++) {
+                    var scanner = new ColumnScanner(reader, reader.readRowGroup(i), columns, null);
+                    while (scanner.nextRow()) {
+                        if (row++ % stride == 0 && !scanner.isNull(0)) {
+                            samples.add(scanner.getBinary(0).toStringUsingUTF8());
+                        }
+                    }
+                }
+            }
+        }
+        Collections.sort(samples);
+        var splitPoints = new TreeSet<String>();
+        for (int i = 1; i < partitions && !samples.isEmpty(); i++) {
+            splitPoints.add(samples.get((int) ((long) samples.size() * i / partitions)));
+        }
+        return splitPoints.toArray(new String[0]);
+    }
+
+    private static int partitionOf(String surtKey, String[] splitPoints) {
+        if (surtKey == null) return 0;
+        int i = Arrays.binarySearch(splitPoints, surtKey);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    private void spillSortedRuns(Path input, String[] splitPoints, List<Queue<Path>> runs, int maxBuffered)
+            throws IOException {
+        List<List<CaptureEvent>> buffers = new ArrayList<>();
+        for (int i = 0; i <= splitPoints.length; i++) buffers.add(new ArrayList<>());
+        int buffered = 0;
+        try (var reader = Warcquet.newReader(input)) {
+            for (CaptureEvent event : reader) {
+                buffers.get(partitionOf(event.getSurtKey(), splitPoints)).add(event);
+                if (++buffered >= maxBuffered) {
+                    spill(buffers, runs);
+                    buffered = 0;
+                }
+            }
+        }
+        spill(buffers, runs);
+    }
+
+    private void spill(List<List<CaptureEvent>> buffers, List<Queue<Path>> runs) throws IOException {
+        for (int i = 0; i < buffers.size(); i++) {
+            List<CaptureEvent> buffer = buffers.get(i);
+            if (buffer.isEmpty()) continue;
+            buffer.sort(ORDER);
+            Path run = Files.createTempFile(tempDir, "warcquet-compact-", ".run.parquet");
+            runs.get(i).add(run);
+            try (var writer = Warcquet.newWriterBuilder(run)
+                    .withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+                    .build()) {
+                for (CaptureEvent event : buffer) {
+                    writer.write(event);
+                }
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Merges sorted runs into an output file, adding the rows written to the given rollups. Returns the number of
+     * rows written and duplicates dropped.
+     */
+    private long[] mergeRuns(List<Path> runs, Path output, List<Rollup> rollups) throws IOException {
+        var readers = new ArrayList<WarcquetReader>();
+        var queue = new PriorityQueue<RunCursor>((a, b) -> ORDER.compare(a.current, b.current));
+        long written = 0;
+        long duplicates = 0;
+        try (ParquetWriter<CaptureEvent> writer = Warcquet.newWriterBuilder(output)
+                .withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+                .withRowGroupSize(rowGroupSize)
+                .withCompressionCodec(compression)
+                .build()) {
+            for (Path run : runs) {
+                var reader = Warcquet.newReader(run);
+                readers.add(reader);
+                var cursor = new RunCursor(reader.iterator());
+                if (cursor.next()) queue.add(cursor);
+            }
+
+            CaptureEvent groupStart = null;
+            Set<String> groupIdentities = new HashSet<>();
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                CaptureEvent event = cursor.current;
+                if (cursor.next()) queue.add(cursor);
+
+                if (dropDuplicates) {
+                    if (groupStart == null || ORDER.compare(groupStart, event) != 0) {
+                        groupStart = event;
+                        groupIdentities.clear();
+                    }
+                    if (!groupIdentities.add(identity(event))) {
+                        duplicates++;
+                        continue;
+                    }
+                }
+                writer.write(event);
+                for (Rollup rollup : rollups) {
+                    rollup.add(event);
+                }
+                written++;
+            }
+        } finally {
+            for (WarcquetReader reader : readers) {
+                reader.close();
+            }
+        }
+        return new long[]{written, duplicates};
+    }
+
+    private static String identity(CaptureEvent event) {
+        byte[] sha1 = event.getResponsePayloadSha1();
+        return event.getUrl() + " " + (sha1 == null ? "-" : Base64.getEncoder().encodeToString(sha1));
+    }
+
+    private static class RunCursor {
+        private final Iterator<CaptureEvent> iterator;
+        CaptureEvent current;
+
+        RunCursor(Iterator<CaptureEvent> iterator) {
+            this.iterator = iterator;
+        }
+
+        boolean next() {
+            if (!iterator.hasNext()) return false;
+            current = iterator.next();
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path outFile = null;
+        var inputs = new ArrayList<Path>();
+        var compact = new WarcquetCompact();
+        boolean rollups = false;
+        boolean dropDuplicates = false;
+        boolean deleteInputs = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output-file":
+                        outFile = Paths.get(args[++i]);
+                        break;
+                    case "-c":
+                    case "--compression":
+                        compact.compression(CompressionCodecName.fromConf(args[++i]));
+                        break;
+                    case "-d":
+                    case "--drop-duplicates":
+                        dropDuplicates = true;
+                        break;
+                    case "-p":
+                    case "--partitions":
+                        compact.partitions(Integer.parseInt(args[++i]));
+                        break;
+                    case "--max-buffered":
+                        compact.maxBuffered(Integer.parseInt(args[++i]));
+                        break;
+                    case "--row-group-size":
+                        compact.rowGroupSize(Long.parseLong(args[++i]));
+                        break;
+                    case "-T":
+                    case "--temp-dir":
+                        compact.tempDir(Paths.get(args[++i]));
+                        break;
+                    case "--rollups":
+                        rollups = true;
+                        break;
+                    case "--delete-inputs":
+                        deleteInputs = true;
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: WarcquetCompact [OPTIONS] -o outfile.parquet warcquet-files...\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "  -c, --compression CODEC     Output compression codec " + Arrays.asList(CompressionCodecName.values()) + "\n" +
+                                "  -d, --drop-duplicates       Drop captures with the same url, date and payload digest\n" +
+                                "      --delete-inputs         Delete the input files once the output is in place\n" +
+                                "      --max-buffered N        Captures buffered in memory (in total) before spilling sorted runs\n" +
+                                "  -o, --output-file FILE      Output parquet file (mandatory)\n" +
+                                "  -p, --partitions N          Split the output into N files by SURT range\n" +
+                                "      --rollups               Also combine the inputs' companion rollup files (rebuilt\n" +
+                                "                              from the output rows with --drop-duplicates or if any\n" +
+                                "                              input lacks them)\n" +
+                                "      --row-group-size BYTES  Output row group size\n" +
+                                "  -T, --temp-dir DIR          Directory for temporary run files\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("WarcquetCompact: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                inputs.add(Paths.get(args[i]));
+            }
+        }
+
+        if (outFile == null) {
+            System.err.println("WarcquetCompact: an output file (-o) must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("WarcquetCompact: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        // the inputs' rollups can only be merged if every input has them and no rows are dropped, otherwise build
+        // them from the rows written
+        boolean mergeRollups = rollups && !dropDuplicates;
+        if (mergeRollups) {
+            for (Path input : inputs) {
+                for (Rollup rollup : Rollup.standard(Rollup.DEFAULT_MAX_ENTRIES)) {
+                    if (!Files.exists(Rollup.companionPath(input, rollup.getName()))) mergeRollups = false;
+                }
+            }
+        }
+        compact.dropDuplicates(dropDuplicates);
+        compact.buildRollups(rollups && !mergeRollups);
+        List<Path> outputs = compact.compact(inputs, outFile);
+        if (compact.getDuplicatesDropped() > 0) {
+            System.err.println("WarcquetCompact: dropped " + compact.getDuplicatesDropped() + " duplicate captures");
+        }
+
+        if (mergeRollups) {
+            for (Rollup rollup : Rollup.standard(Rollup.DEFAULT_MAX_ENTRIES)) {
+                var rollupInputs = new ArrayList<Path>();
+                for (Path input : inputs) {
+                    rollupInputs.add(Rollup.companionPath(input, rollup.getName()));
+                }
+                Rollup.merge(rollupInputs, Rollup.companionPath(outFile, rollup.getName()),
+                        Rollup.DEFAULT_MAX_ENTRIES);
+            }
+        }
+
+        if (deleteInputs) {
+            for (Path input : inputs) {
+                if (outputs.contains(input)) continue;
+                Files.deleteIfExists(input);
+                if (rollups) {
+                    for (Rollup rollup : Rollup.standard(Rollup.DEFAULT_MAX_ENTRIES)) {
+                        Files.deleteIfExists(Rollup.companionPath(input, rollup.getName()));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+
+/**
+ * Long-running converter that accepts jobs from a spool directory or a TCP socket so that JVM startup, class loading,
+ * schema parsing and the shared SURT caches are paid for once rather than per WARC file.
+ * <p>
+ * A job is a line holding an input WARC path or URL, optionally followed by a tab and the output parquet path. Without
+ * an output the parquet file is written to the output directory (or alongside the input) with the .warc or .warc.gz
+ * extension replaced by .parquet.
+ * <p>
+ * Spool directory: NAME.job files are claimed by renaming them to NAME.job.running. When the job finishes its report
+ * is written to NAME.done (or NAME.failed) and the .running file is removed. Each line of a job file is a separate job
+ * and the report has a line for each.
+ * <p>
+ * Socket: each line received is a job and the report line is sent back when it finishes. Reports for one connection
+ * may arrive out of order; they include the input so the client can match them up.
+ * <p>
+ * Jobs run concurrently on a fixed pool of worker threads, each of which keeps its converter and buffers between jobs.
+ * Each running job reserves an estimate of its memory use from the memory budget and jobs wait when it is exhausted.
+ */
+public class WarcquetDaemon implements Closeable {
+    private static final long MB = 1024 * 1024;
+
+    private final OutputSpec outputs;
+    private final Path outputDir;
+    private final boolean cdxj;
+    private final ExecutorService executor;
+    private final Semaphore memory;
+    private final int jobPermits;
+    private final ThreadLocal<Warc2Warcquet> converters;
+    private final ConversionMetrics metrics = new ConversionMetrics();
+    private volatile boolean closed;
+
+    /**
+     * @param outputs        how to write each output
+     * @param outputDir      directory for outputs of jobs that don't specify one, or null for alongside the input
+     * @param cdxj           whether to also write a .cdxj index for each output
+     * @param threads        maximum number of jobs to run at once
+     * @param memoryBudget   total bytes the running jobs may reserve
+     * @param jobMemory      bytes reserved by each job
+     * @param windowRecords  converter reorder window, see {@link Warc2Warcquet#setWindow(int, long)}
+     * @param windowBytes    converter reorder window, see {@link Warc2Warcquet#setWindow(int, long)}
+     */
+    WarcquetDaemon(OutputSpec outputs, Path outputDir, boolean cdxj, int threads, long memoryBudget, long jobMemory,
+                   int windowRecords, long windowBytes) {
+        this.outputs = outputs;
+        this.outputDir = outputDir;
+        this.cdxj = cdxj;
+        int budgetPermits = (int) Math.max(1, memoryBudget / MB);
+        this.memory = new Semaphore(budgetPermits, true);
+        this.jobPermits = (int) Math.max(1, Math.min(budgetPermits, jobMemory / MB));
+        var threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "warcquet-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.converters = ThreadLocal.withInitial(() -> {
+            var converter = new Warc2Warcquet(new ArrayList<>(), false);
+            converter.setWindow(windowRecords, windowBytes);
+            return converter;
+        });
+
+        // load the schema and writer classes up front rather than during the first job
+        Warcquet.schema();
+    }
+
+    /**
+     * Metrics totalled across all jobs.
+     */
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Queues a conversion job. The future completes with the job's report line.
+     */
+    public CompletableFuture<String> submit(String input, Path output) {
+        if (closed) throw new RejectedExecutionException("daemon is shutting down");
+        return CompletableFuture.supplyAsync(() -> run(input, output), executor);
+    }
+
+    /**
+     * Parses and queues a job line: INPUT or INPUT&lt;tab&gt;OUTPUT
+     */
+    public CompletableFuture<String> submit(String jobLine) {
+        int tab = jobLine.indexOf('\t');
+        if (tab < 0) return submit(jobLine, null);
+        return submit(jobLine.substring(0, tab), Paths.get(jobLine.substring(tab + 1)));
+    }
+
+    private String run(String input, Path output) {
+        long start = System.nanoTime();
+        var jobMetrics = new ConversionMetrics();
+        memory.acquireUninterruptibly(jobPermits);
+        try {
+            if (output == null) output = defaultOutput(input);
+            Path cdxjFile = cdxj ? withExtension(output, ".cdxj") : null;
+            var converter = converters.get();
+            converter.setMetrics(jobMetrics);
+            var sinks = outputs.open(output, cdxjFile, jobMetrics);
+            converter.setSinks(sinks);
+            try {
+                converter.convertFile(input);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    OutputSpec.closeAll(sinks);
+                } catch (IOException | RuntimeException e2) {
+                    e.addSuppressed(e2);
+                }
+                for (Path file : outputs.files(output, cdxjFile)) {
+                    Files.deleteIfExists(file);
+                }
+                throw e;
+            }
+            OutputSpec.closeAll(sinks);
+            long warcErrors = jobMetrics.getParseErrors().getOrDefault("warc", 0L);
+            return report(warcErrors > 0 ? "partial" : "done", input, output, jobMetrics, start, null);
+        } catch (Exception e) {
+            return report("failed", input, output, jobMetrics, start, e);
+        } finally {
+            converters.get().setSinks(new ArrayList<>());
+            memory.release(jobPermits);
+            metrics.add(jobMetrics);
+        }
+    }
+
+    private static String report(String status, String input, Path output, ConversionMetrics jobMetrics, long start,
+                                 Exception error) {
+        var sb = new StringBuilder(status);
+        sb.append(" input=").append(input);
+        if (output != null) sb.append(" output=").append(output);
+        sb.append(" records=").append(jobMetrics.getRecords());
+        sb.append(" captures=").append(jobMetrics.getCaptures());
+        sb.append(" bytes=").append(jobMetrics.getBytes());
+        sb.append(" millis=").append((System.nanoTime() - start) / 1_000_000);
+        jobMetrics.getParseErrors().forEach((type, count) -> sb.append(" parse_errors.").append(type).append('=')
+                .append(count));
+        if (error != null) {
+            sb.append(" error=").append(error.toString().replaceAll("\\s+", " "));
+        }
+        return sb.toString();
+    }
+
+    private Path defaultOutput(String input) {
+        String filename = input.replaceAll(".*[/\\\\]", "").replaceFirst("\\.w?arc(\\.gz)?$", "") + ".parquet";
+        if (outputDir != null) return outputDir.resolve(filename);
+        if (input.startsWith("http://") || input.startsWith("https://")) {
+            throw new IllegalArgumentException("URL inputs need an output path or --output-dir");
+        }
+        return Paths.get(input).resolveSibling(filename);
+    }
+
+    private static Path withExtension(Path path, String extension) {
+        String filename = path.getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        return path.resolveSibling((dot > 0 ? filename.substring(0, dot) : filename) + extension);
+    }
+
+    /**
+     * Processes NAME.job files in the spool directory until closed. Jobs left running by a previous instance are
+     * requeued, so only one daemon may use a spool directory.
+     */
+    public void watchSpool(Path spoolDir) throws IOException, InterruptedException {
+        try (Stream<Path> stream = Files.list(spoolDir)) {
+            for (Path file : (Iterable<Path>) stream::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".job.running")) {
+                    Files.move(file, file.resolveSibling(name.substring(0, name.length() - ".running".length())),
+                            ATOMIC_MOVE);
+                }
+            }
+        }
+        try (WatchService watchService = spoolDir.getFileSystem().newWatchService()) {
+            spoolDir.register(watchService, ENTRY_CREATE);
+            while (!closed) {
+                try (Stream<Path> stream = Files.list(spoolDir)) {
+                    for (Path file : (Iterable<Path>) stream::iterator) {
+                        if (file.getFileName().toString().endsWith(".job")) claimSpoolJob(file);
+                    }
+                }
+                // the rescan also catches anything missed when the watch service overflows
+                WatchKey key = watchService.poll(5, TimeUnit.SECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+    }
+
+    private void claimSpoolJob(Path jobFile) throws IOException {
+        String name = jobFile.getFileName().toString();
+        String baseName = name.substring(0, name.length() - ".job".length());
+        Path runningFile = jobFile.resolveSibling(name + ".running");
+        if (closed) return;
+        try {
+            Files.move(jobFile, runningFile, ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        var jobs = new ArrayList<CompletableFuture<String>>();
+        try {
+            for (String line : Files.readAllLines(runningFile, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) jobs.add(submit(line.strip()));
+            }
+        } catch (RejectedExecutionException e) {
+            // closed while claiming, leave the whole job for the next instance
+            Files.move(runningFile, jobFile, ATOMIC_MOVE);
+            return;
+        }
+        CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).whenComplete((v, t) -> {
+            try {
+                var report = new StringBuilder();
+                boolean failed = false;
+                for (var job : jobs) {
+                    String line = job.join();
+                    failed |= line.startsWith("failed");
+                    report.append(line).append('\n');
+                }
+                Path reportFile = runningFile.resolveSibling(baseName + (failed ? ".failed" : ".done"));
+                Path tmpFile = runningFile.resolveSibling(baseName + ".report.tmp");
+                Files.writeString(tmpFile, report);
+                Files.move(tmpFile, reportFile, ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.delete(runningFile);
+                System.err.print(report);
+            } catch (IOException e) {
+                System.err.println("WarcquetDaemon: unable to write report for " + jobFile);
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Accepts job lines on a TCP socket until closed, replying to each with its report line.
+     */
+    public void listen(InetSocketAddress address) throws IOException {
+        try (var serverSocket = new ServerSocket()) {
+            serverSocket.bind(address);
+            System.err.println("WarcquetDaemon: listening on " + serverSocket.getLocalSocketAddress());
+            serverSocket.setSoTimeout(1000);
+            while (!closed) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                var thread = new Thread(() -> serveConnection(socket), "warcquet-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try (socket;
+             var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             var out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            var jobs = new ArrayList<CompletableFuture<?>>();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.isBlank()) continue;
+                jobs.add(submit(line.strip()).thenAccept(report -> {
+                    synchronized (out) {
+                        out.println(report);
+                        out.flush();
+                    }
+                    System.err.println(report);
+                }));
+            }
+            CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).join();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("WarcquetDaemon: connection from " + socket.getRemoteSocketAddress() + " failed");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops accepting jobs and waits for the running ones to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.close();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var outputs = new OutputSpec();
+        Path spoolDir = null;
+        InetSocketAddress listenAddress = null;
+        Path outputDir = null;
+        boolean cdxj = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+        long jobMemory = -1;
+        int windowRecords = Warc2Warcquet.DEFAULT_WINDOW_RECORDS;
+        long windowBytes = Warc2Warcquet.DEFAULT_WINDOW_BYTES;
+        int metricsInterval = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-c":
+                case "--compression":
+                    outputs.compression = CompressionCodecName.fromConf(args[++i]);
+                    break;
+                case "--cdxj":
+                    cdxj = true;
+                    break;
+                case "--job-memory":
+                    jobMemory = Long.parseLong(args[++i]);
+                    break;
+                case "-l":
+                case "--listen":
+                    listenAddress = parseAddress(args[++i]);
+                    break;
+                case "--memory":
+                    memoryBudget = Long.parseLong(args[++i]);
+                    break;
+                case "--metrics-interval":
+                    metricsInterval = Integer.parseInt(args[++i]);
+                    break;
+                case "-o":
+                case "--output-dir":
+                    outputDir = Paths.get(args[++i]);
+                    break;
+                case "--parquet-version":
+                    outputs.parquetVersion = ParquetProperties.WriterVersion.fromString(args[++i]);
+                    break;
+                case "--rollups":
+                    outputs.rollups = true;
+                    break;
+                case "--sink-buffer":
+                    outputs.sinkBuffer = Integer.parseInt(args[++i]);
+                    break;
+                case "-s":
+                case "--spool":
+                    spoolDir = Paths.get(args[++i]);
+                    break;
+                case "-t":
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--window-bytes":
+                    windowBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--window-records":
+                    windowRecords = Integer.parseInt(args[++i]);
+                    break;
+                case "-h":
+                case "--help":
+                    System.out.print("Usage: WarcquetDaemon [OPTIONS] (--spool DIR | --listen [HOST:]PORT)\n" +
+                            "\n" +
+                            "Converts WARC files to warcquet as jobs arrive. A job is a line holding the input path or URL,\n" +
+                            "optionally followed by a tab and the output path.\n" +
+                            "\n" +
+                            "Options:\n" +
+                            "  -c, --compression CODEC     Output compression codec " + Arrays.asList(CompressionCodecName.values()) + "\n" +
+                            "      --cdxj                  Also write an unsorted CDXJ index next to each output\n" +
+                            "      --job-memory BYTES      Memory reserved by each running job (default: row group size plus window)\n" +
+                            "  -l, --listen [HOST:]PORT    Accept jobs on a TCP socket (default host: loopback)\n" +
+                            "      --memory BYTES          Memory budget shared by running jobs (default: 3/4 of max heap)\n" +
+                            "      --metrics-interval SECS Log throughput totals every SECS seconds\n" +
+                            "  -o, --output-dir DIR        Directory for outputs of jobs that don't give one\n" +
+                            "      --parquet-version VERS  Output parquet version (v1, v2)\n" +
+                            "      --rollups               Also write per-domain-day and per-payload-type rollup files\n" +
+                            "      --sink-buffer N         Run each output on its own thread with a queue of N captures\n" +
+                            "  -s, --spool DIR             Run NAME.job files dropped in DIR, reporting to NAME.done or NAME.failed\n" +
+                            "  -t, --threads N             Maximum concurrent jobs (default: number of CPUs)\n" +
+                            "      --window-bytes N        Max bytes between the first and last record of a capture\n" +
+                            "      --window-records N      Max records between the first and last record of a capture\n");
+                    System.exit(0);
+                    break;
+                default:
+                    System.err.println("WarcquetDaemon: unrecognized option: '" + args[i] + "'");
+                    System.exit(1);
+            }
+        }
+
+        if ((spoolDir == null) == (listenAddress == null)) {
+            System.err.println("WarcquetDaemon: exactly one of --spool or --listen must be specified. See --help for usage information");
+            System.exit(1);
+        }
+        if (jobMemory < 0) jobMemory = ParquetWriter.DEFAULT_BLOCK_SIZE + windowBytes;
+
+        var daemon = new WarcquetDaemon(outputs, outputDir, cdxj, threads, memoryBudget, jobMemory, windowRecords,
+                windowBytes);
+        daemon.getMetrics().register("daemon");
+        ScheduledExecutorService metricsLogger = metricsInterval > 0 ?
+                daemon.getMetrics().startLogging(System.err, metricsInterval) : null;
+        var mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            daemon.closed = true;
+            try {
+                mainThread.join();
+            } catch (InterruptedException e) {
+                // exiting anyway
+            }
+        }));
+        try {
+            if (spoolDir != null) {
+                daemon.watchSpool(spoolDir);
+            } else {
+                daemon.listen(listenAddress);
+            }
+        } finally {
+            daemon.close();
+            if (metricsLogger != null) metricsLogger.shutdown();
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String address) throws UnknownHostException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        return new InetSocketAddress(InetAddress.getByName(address.substring(0, colon)),
+                Integer.parseInt(address.substring(colon + 1)));
+    }
+}
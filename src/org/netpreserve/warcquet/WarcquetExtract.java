@@ -0,0 +1,459 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Extracts the WARC records of a set of captures, e.g. those selected by a query over warcquet files.
+ * <p>
+ * The records are grouped by WARC file and sorted by position. Records whose gap is at most {@code maxGap} bytes are
+ * coalesced into a single read of up to {@code maxReadSize} bytes, so a dense selection is read sequentially rather
+ * than with one seek per record. Files are read in parallel by a fixed pool of threads, each holding one file open at
+ * a time, so the number of open channels is bounded by the thread count. Each file may have two reads buffered ahead
+ * of the caller.
+ * <p>
+ * Records are handed over in (filename, position) order on the calling thread, so handlers need not be thread-safe.
+ * The raw bytes of each record are passed on unchanged, which for .warc.gz files is a complete gzip member.
+ */
+public class WarcquetExtract {
+    public static final long DEFAULT_MAX_GAP = 64 * 1024;
+    public static final int DEFAULT_MAX_READ_SIZE = 16 * 1024 * 1024;
+    private static final int BATCHES_AHEAD = 2;
+    private static final Batch END = new Batch(0, 0, Collections.emptyList());
+
+    private final List<Path> warcDirs = new ArrayList<>();
+    private boolean includeRequests;
+    private long maxGap = DEFAULT_MAX_GAP;
+    private int maxReadSize = DEFAULT_MAX_READ_SIZE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private long skipped;
+
+    /**
+     * Receives extracted records.
+     */
+    public interface RecordHandler {
+        /**
+         * Called once per record. The buffer holds exactly the record's bytes and is only valid during the call.
+         */
+        void record(String filename, long position, ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * Adds a directory to search for WARC files. Filenames are resolved against each directory in the order added.
+     * If none are added filenames are resolved against the working directory.
+     */
+    public WarcquetExtract warcDir(Path dir) {
+        warcDirs.add(dir);
+        return this;
+    }
+
+    /**
+     * Also extract each capture's request record, if it has one.
+     */
+    public WarcquetExtract includeRequests(boolean includeRequests) {
+        this.includeRequests = includeRequests;
+        return this;
+    }
+
+    /**
+     * The largest number of unwanted bytes between two records that will be read through rather than skipped.
+     */
+    public WarcquetExtract maxGap(long maxGap) {
+        this.maxGap = maxGap;
+        return this;
+    }
+
+    /**
+     * The largest coalesced read. A single record larger than this is still read whole.
+     */
+    public WarcquetExtract maxReadSize(int maxReadSize) {
+        this.maxReadSize = maxReadSize;
+        return this;
+    }
+
+    /**
+     * The number of files read at once.
+     */
+    public WarcquetExtract threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * The number of reads issued, after coalescing.
+     */
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * The number of captures skipped because their record location is unknown (e.g. converted from a CDX without
+     * lengths).
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Extracts the records of the given captures and passes them to the handler. Returns the number of records
+     * extracted. Records referenced more than once are only extracted once.
+     */
+    public long extract(Iterator<? extends CaptureEvent> captures, RecordHandler handler) throws IOException {
+        var byFile = new TreeMap<String, List<Range>>();
+        while (captures.hasNext()) {
+            CaptureEvent capture = captures.next();
+            if (capture.getFilename() == null || capture.getResponseLength() <= 0) {
+                skipped++;
+                continue;
+            }
+            var ranges = byFile.computeIfAbsent(capture.getFilename(), f -> new ArrayList<>());
+            ranges.add(new Range(capture.getResponsePosition(), capture.getResponseLength()));
+            if (includeRequests && capture.hasRequestPosition() && capture.getRequestLengthAsLong() > 0) {
+                ranges.add(new Range(capture.getRequestPosition(), capture.getRequestLength()));
+            }
+        }
+
+        var threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            var thread = new Thread(r, "warcquet-extract-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // jobs run in submission order, so the file the caller is waiting on always has a thread reading it
+            var jobs = new ArrayList<FileJob>();
+            for (var entry : byFile.entrySet()) {
+                var job = new FileJob(entry.getKey(), entry.getValue());
+                jobs.add(job);
+                pool.execute(job);
+            }
+            long count = 0;
+            for (FileJob job : jobs) {
+                while (true) {
+                    Batch batch;
+                    try {
+                        batch = job.batches.take();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    if (batch == END) break;
+                    for (Range range : batch.ranges) {
+                        int offset = (int) (range.position - batch.position);
+                        ByteBuffer record = batch.data.duplicate();
+                        record.position(offset).limit(offset + (int) range.length);
+                        handler.record(job.filename, range.position, record.slice());
+                        count++;
+                    }
+                }
+                if (job.error != null) {
+                    if (job.error instanceof IOException) throw (IOException) job.error;
+                    if (job.error instanceof RuntimeException) throw (RuntimeException) job.error;
+                    throw new IOException(job.error);
+                }
+            }
+            return count;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Extracts the records of the given captures into a WARC file. Records are compressed or decompressed as needed
+     * to match the output, each compressed record becoming its own gzip member.
+     */
+    public long extract(Iterator<? extends CaptureEvent> captures, OutputStream out, boolean gzip) throws IOException {
+        return extract(captures, new WarcOutput(out, gzip));
+    }
+
+    Path resolve(String filename) throws IOException {
+        if (warcDirs.isEmpty()) return Paths.get(filename);
+        for (Path dir : warcDirs) {
+            Path path = dir.resolve(filename);
+            if (Files.exists(path)) return path;
+        }
+        throw new NoSuchFileException(filename, null, "not found in any of " + warcDirs);
+    }
+
+    /**
+     * Groups a file's sorted ranges into reads, dropping duplicates.
+     */
+    List<Batch> plan(List<Range> ranges) throws IOException {
+        ranges.sort(Comparator.comparingLong(r -> r.position));
+        var batches = new ArrayList<Batch>();
+        int first = 0;
+        while (first < ranges.size()) {
+            long start = ranges.get(first).position;
+            long end = start + ranges.get(first).length;
+            var members = new ArrayList<Range>();
+            members.add(ranges.get(first));
+            int next = first + 1;
+            for (; next < ranges.size(); next++) {
+                Range range = ranges.get(next);
+                if (range.position == members.get(members.size() - 1).position) continue;
+                long newEnd = Math.max(end, range.position + range.length);
+                if (range.position - end > maxGap || newEnd - start > maxReadSize) break;
+                members.add(range);
+                end = newEnd;
+            }
+            if (end - start > Integer.MAX_VALUE - 8) {
+                throw new IOException("Record at " + start + " is too large to extract (" + (end - start) + " bytes)");
+            }
+            batches.add(new Batch(start, (int) (end - start), members));
+            first = next;
+        }
+        return batches;
+    }
+
+    private class FileJob implements Runnable {
+        private final String filename;
+        private final List<Range> ranges;
+        private final BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(BATCHES_AHEAD);
+        private volatile Throwable error;
+
+        FileJob(String filename, List<Range> ranges) {
+            this.filename = filename;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Path path = resolve(filename);
+                try (FileChannel channel = FileChannel.open(path, READ)) {
+                    for (Batch batch : plan(ranges)) {
+                        ByteBuffer data = ByteBuffer.allocate(batch.length);
+                        while (data.hasRemaining()) {
+                            int n = channel.read(data, batch.position + data.position());
+                            if (n < 0) {
+                                throw new EOFException(path + " ends before offset " +
+                                        (batch.position + data.capacity()));
+                            }
+                        }
+                        data.flip();
+                        batch.data = data;
+                        reads.increment();
+                        bytesRead.add(data.remaining());
+                        batches.put(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return; // the caller gave up
+            } catch (Throwable e) {
+                error = e;
+            }
+            try {
+                batches.put(END);
+            } catch (InterruptedException e) {
+                // the caller gave up
+            }
+        }
+    }
+
+    private static class Range {
+        final long position;
+        final long length;
+
+        Range(long position, long length) {
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    private static class Batch {
+        final long position;
+        final int length;
+        final List<Range> ranges;
+        ByteBuffer data;
+
+        Batch(long position, int length, List<Range> ranges) {
+            this.position = position;
+            this.length = length;
+            this.ranges = ranges;
+        }
+    }
+
+    private static class WarcOutput implements RecordHandler {
+        private final OutputStream out;
+        private final boolean gzip;
+
+        WarcOutput(OutputStream out, boolean gzip) {
+            this.out = out;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public void record(String filename, long position, ByteBuffer record) throws IOException {
+            byte[] array = record.array();
+            int offset = record.arrayOffset() + record.position();
+            int length = record.remaining();
+            boolean gzipped = length >= 2 && (array[offset] & 0xff) == 0x1f && (array[offset + 1] & 0xff) == 0x8b;
+            if (gzipped == gzip) {
+                out.write(array, offset, length);
+            } else if (gzip) {
+                // closing the member releases its deflater but must leave the output open
+                var unclosable = new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                };
+                try (var member = new GZIPOutputStream(unclosable)) {
+                    member.write(array, offset, length);
+                }
+            } else {
+                try (var member = new GZIPInputStream(new ByteArrayInputStream(array, offset, length))) {
+                    member.transferTo(out);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path outFile = null;
+        var inputs = new ArrayList<Path>();
+        var extract = new WarcquetExtract();
+        var filter = new CaptureFilter();
+        Instant fromDate = null;
+        Instant toDate = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output-file":
+                        outFile = Paths.get(args[++i]);
+                        break;
+                    case "-d":
+                    case "--warc-dir":
+                        extract.warcDir(Paths.get(args[++i]));
+                        break;
+                    case "--max-gap":
+                        extract.maxGap(Long.parseLong(args[++i]));
+                        break;
+                    case "--max-read-size":
+                        extract.maxReadSize(Integer.parseInt(args[++i]));
+                        break;
+                    case "--requests":
+                        extract.includeRequests(true);
+                        break;
+                    case "-t":
+                    case "--threads":
+                        extract.threads(Integer.parseInt(args[++i]));
+                        break;
+                    case "--record-type":
+                        filter.recordTypes(Arrays.asList(args[++i].split(",")));
+                        break;
+                    case "--status":
+                        filter.statuses(Arrays.asList(args[++i].split(",")));
+                        break;
+                    case "--payload-type":
+                        filter.payloadTypes(Arrays.asList(args[++i].split(",")));
+                        break;
+                    case "--url-prefix":
+                        filter.urlPrefix(args[++i]);
+                        break;
+                    case "--surt-prefix":
+                        filter.surtPrefix(args[++i]);
+                        break;
+                    case "--from":
+                        fromDate = CaptureFilter.parseDate(args[++i]);
+                        filter.dateRange(fromDate, toDate);
+                        break;
+                    case "--to":
+                        toDate = CaptureFilter.parseDate(args[++i]);
+                        filter.dateRange(fromDate, toDate);
+                        break;
+                    case "--sample":
+                        filter.sampleRate(Double.parseDouble(args[++i]));
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: WarcquetExtract [OPTIONS] -o out.warc.gz warcquet-files...\n" +
+                                "\n" +
+                                "Copies the WARC records of the selected captures into a new WARC file.\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "  -d, --warc-dir DIR          Directory to find the WARC files in (repeatable)\n" +
+                                "      --from DATE             Only captures on or after DATE (yyyyMMddHHmmss prefix or ISO-8601)\n" +
+                                "      --max-gap BYTES         Read through gaps up to this size between records (default " + DEFAULT_MAX_GAP + ")\n" +
+                                "      --max-read-size BYTES   Largest coalesced read (default " + DEFAULT_MAX_READ_SIZE + ")\n" +
+                                "  -o, --output-file FILE      Output WARC file, gzipped if the name ends in .gz (mandatory)\n" +
+                                "      --payload-type TYPES    Only captures with these payload media types (comma separated)\n" +
+                                "      --record-type TYPES     Only captures of these record types (response,resource,revisit)\n" +
+                                "      --requests              Also extract each capture's request record\n" +
+                                "      --sample RATE           Only a deterministic fraction (0-1) of URLs, hashed on surt_key\n" +
+                                "      --status CODES          Only captures with these HTTP statuses, e.g. 200,3xx\n" +
+                                "      --surt-prefix PREFIX    Only captures whose SURT starts with PREFIX (repeatable)\n" +
+                                "  -t, --threads N             Number of WARC files read at once (default: CPUs)\n" +
+                                "      --to DATE               Only captures before DATE\n" +
+                                "      --url-prefix PREFIX     Only captures whose URL starts with PREFIX (repeatable)\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("WarcquetExtract: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                inputs.add(Paths.get(args[i]));
+            }
+        }
+
+        if (outFile == null) {
+            System.err.println("WarcquetExtract: an output file (-o) must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("WarcquetExtract: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        long count;
+        boolean gzip = outFile.getFileName().toString().endsWith(".gz");
+        try (Stream<CaptureEvent> stream = Warcquet.stream(inputs);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(outFile), 1024 * 1024)) {
+            count = extract.extract(stream.filter(filter::accepts).iterator(), out, gzip);
+        } catch (NoSuchFileException | EOFException e) {
+            System.err.println("WarcquetExtract: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.err.println("WarcquetExtract: extracted " + count + " records in " + extract.getReads() + " reads (" +
+                extract.getBytesRead() + " bytes)");
+        if (extract.getSkipped() > 0) {
+            System.err.println("WarcquetExtract: skipped " + extract.getSkipped() +
+                    " captures with no record length");
+        }
+    }
+}
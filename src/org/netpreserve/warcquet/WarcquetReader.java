@@ -13,9 +13,15 @@ import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class WarcquetReader implements Closeable, Iterable<CaptureEvent> {
+    private final Path file;
     private final ParquetFileReader parquetReader;
+    private final Set<ParquetFileReader> splitReaders = ConcurrentHashMap.newKeySet();
     private final MessageColumnIO columnIO;
     private final CaptureEventMaterializer materializer;
     private PageReadStore rowGroup;
@@ -24,6 +30,7 @@ public class WarcquetReader implements Closeable, Iterable<CaptureEvent> {
     private boolean exhausted;
 
     WarcquetReader(Path file) throws IOException {
+        this.file = file;
         this.parquetReader = ParquetFileReader.open(new PathInputFile(file));
         var schema = parquetReader.getFileMetaData().getSchema();
         this.columnIO = new ColumnIOFactory().getColumnIO(schema);
@@ -33,6 +40,31 @@ public class WarcquetReader implements Closeable, Iterable<CaptureEvent> {
     @Override
     public void close() throws IOException {
         parquetReader.close();
+        closeAll(splitReaders);
+    }
+
+    static void closeAll(Set<ParquetFileReader> readers) throws IOException {
+        for (ParquetFileReader reader : readers) {
+            if (readers.remove(reader)) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a sequential stream of all capture events in the file. The stream reads independently of this reader's
+     * iterator.
+     */
+    public Stream<CaptureEvent> stream() {
+        return StreamSupport.stream(RowGroupSpliterator.open(file, parquetReader.getRowGroups(), splitReaders), false);
+    }
+
+    /**
+     * Returns a parallel stream of all capture events in the file. The file is split on row group boundaries and each
+     * split is read with its own file handle.
+     */
+    public Stream<CaptureEvent> parallelStream() {
+        return stream().parallel();
     }
 
     @Override
@@ -0,0 +1,303 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.column.ColumnDescriptor;
+import org.apache.parquet.column.ColumnReader;
+import org.apache.parquet.column.ColumnWriter;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.column.impl.ColumnReadStoreImpl;
+import org.apache.parquet.column.impl.ColumnWriteStoreV1;
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.hadoop.CodecFactory;
+import org.apache.parquet.hadoop.ColumnChunkPageWriteStore;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnPath;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.Converter;
+import org.apache.parquet.io.api.GroupConverter;
+import org.apache.parquet.io.api.PrimitiveConverter;
+import org.apache.parquet.schema.GroupType;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Type;
+import org.netpreserve.warcquet.util.PathInputFile;
+import org.netpreserve.warcquet.util.PathOutputFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites warcquet files into a target schema one row group at a time. Column chunks whose physical type is
+ * unchanged are copied byte for byte, including dictionary pages, statistics, column and offset indexes and bloom
+ * filters. Only columns whose type differs (such as binary to fixed_len_byte_array) or which are missing from the
+ * input are decoded and re-encoded.
+ * <p>
+ * Given several inputs the row groups are concatenated into one output file, which makes it a cheap way of merging
+ * files without re-sorting them.
+ */
+public class WarcquetRewriter {
+    private final MessageType targetSchema;
+    private final Configuration conf = new Configuration(false);
+    private final ParquetProperties properties = ParquetProperties.builder().build();
+    private long invalidValues;
+
+    public WarcquetRewriter(MessageType targetSchema) {
+        this.targetSchema = targetSchema;
+    }
+
+    /**
+     * Number of values that were dropped (written as null) because they did not fit a fixed length column.
+     */
+    public long getInvalidValues() {
+        return invalidValues;
+    }
+
+    public void rewrite(List<Path> inputs, Path output) throws IOException {
+        rewrite(inputs, new PathOutputFile(output));
+    }
+
+    public void rewrite(List<Path> inputs, OutputFile output) throws IOException {
+        // ParquetFileWriter has no close() and only closes its stream in end(), so keep hold of it for failures
+        var trackedOutput = new TrackedOutputFile(output);
+        var codecFactory = new CodecFactory(conf, properties.getPageSizeThreshold());
+        boolean success = false;
+        try {
+            var fileWriter = new ParquetFileWriter(trackedOutput, targetSchema, ParquetFileWriter.Mode.OVERWRITE,
+                    ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.MAX_PADDING_SIZE_DEFAULT,
+                    properties.getColumnIndexTruncateLength(), properties.getStatisticsTruncateLength(),
+                    properties.getPageWriteChecksumEnabled());
+            fileWriter.start();
+            Map<String, String> keyValueMetadata = new HashMap<>();
+            for (Path input : inputs) {
+                try (var reader = ParquetFileReader.open(new PathInputFile(input));
+                     var stream = new PathInputFile(input).newStream()) {
+                    keyValueMetadata.putAll(reader.getFileMetaData().getKeyValueMetaData());
+                    MessageType inputSchema = reader.getFileMetaData().getSchema();
+                    checkCompatible(input, inputSchema);
+                    MessageType reencoded = reencodedColumns(inputSchema);
+                    reader.setRequestedSchema(ColumnScanner.projection(inputSchema,
+                            reencoded.getFields().stream().map(Type::getName).toArray(String[]::new)));
+
+                    List<BlockMetaData> blocks = reader.getRowGroups();
+                    for (int i = 0; i < blocks.size(); i++) {
+                        BlockMetaData block = blocks.get(i);
+                        PageReadStore reencodedPages = reencoded.getFieldCount() == 0 ? null : reader.readRowGroup(i);
+                        fileWriter.startBlock(block.getRowCount());
+                        Map<ColumnPath, ColumnChunkMetaData> chunks = new HashMap<>();
+                        for (ColumnChunkMetaData chunk : block.getColumns()) {
+                            chunks.put(chunk.getPath(), chunk);
+                        }
+                        for (ColumnDescriptor column : targetSchema.getColumns()) {
+                            String name = column.getPath()[0];
+                            ColumnChunkMetaData chunk = chunks.get(ColumnPath.get(column.getPath()));
+                            if (reencoded.containsField(name)) {
+                                CompressionCodecName codec = chunk != null ? chunk.getCodec() :
+                                        block.getColumns().get(0).getCodec();
+                                reencodeColumn(fileWriter, codecFactory, codec, reader, reencodedPages, inputSchema,
+                                        column, block.getRowCount());
+                            } else {
+                                fileWriter.appendColumnChunk(column, stream, chunk, reader.readBloomFilter(chunk),
+                                        reader.readColumnIndex(chunk), reader.readOffsetIndex(chunk));
+                            }
+                        }
+                        fileWriter.endBlock();
+                    }
+                }
+            }
+            fileWriter.end(keyValueMetadata);
+            success = true;
+        } finally {
+            codecFactory.release();
+            if (!success) trackedOutput.closeQuietly();
+        }
+    }
+
+    private void checkCompatible(Path input, MessageType inputSchema) {
+        for (Type field : targetSchema.getFields()) {
+            if (field.isRepetition(Type.Repetition.REQUIRED) && !inputSchema.containsField(field.getName())) {
+                throw new IllegalArgumentException(input + " is missing required column " + field.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the target columns that can't be copied from the input as is.
+     */
+    private MessageType reencodedColumns(MessageType inputSchema) {
+        var fields = new ArrayList<Type>();
+        for (Type field : targetSchema.getFields()) {
+            if (!inputSchema.containsField(field.getName())) {
+                fields.add(field);
+                continue;
+            }
+            if (!field.isPrimitive()) {
+                // nested columns, like the header maps, are only ever copied or filled with nulls
+                if (!field.equals(inputSchema.getType(field.getName()))) {
+                    throw new IllegalArgumentException("Can't convert nested column " + field.getName());
+                }
+                continue;
+            }
+            PrimitiveType target = field.asPrimitiveType();
+            PrimitiveType source = inputSchema.getType(field.getName()).asPrimitiveType();
+            if (target.getPrimitiveTypeName() != source.getPrimitiveTypeName() ||
+                    target.getTypeLength() != source.getTypeLength() ||
+                    target.getRepetition() != source.getRepetition()) {
+                fields.add(field);
+            }
+        }
+        return new MessageType(targetSchema.getName(), fields);
+    }
+
+    private void reencodeColumn(ParquetFileWriter fileWriter, CodecFactory codecFactory, CompressionCodecName codec,
+                                ParquetFileReader reader, PageReadStore pages, MessageType inputSchema,
+                                ColumnDescriptor column, long rowCount) throws IOException {
+        var columnSchema = new MessageType(targetSchema.getName(),
+                leafPath(targetSchema.getType(column.getPath()[0]), column.getPath(), 0));
+        // parquet 1.12 has no ColumnChunkPageWriteStore constructor taking a BytesInputCompressor
+        var pageWriteStore = new ColumnChunkPageWriteStore(codecFactory.getCompressor(codec), columnSchema, properties.getAllocator(),
+                properties.getColumnIndexTruncateLength());
+        var writeStore = new ColumnWriteStoreV1(columnSchema, pageWriteStore, properties);
+        ColumnWriter writer = writeStore.getColumnWriter(column);
+        int fixedLength = column.getPrimitiveType().getPrimitiveTypeName() ==
+                PrimitiveType.PrimitiveTypeName.FIXED_LEN_BYTE_ARRAY ? column.getPrimitiveType().getTypeLength() : -1;
+
+        String name = column.getPath()[0];
+        ColumnReader columnReader = null;
+        int inputMaxDefinitionLevel = 0;
+        if (inputSchema.containsField(name)) {
+            var inputColumnSchema = new MessageType(inputSchema.getName(), inputSchema.getType(name));
+            var inputColumn = inputColumnSchema.getColumnDescription(column.getPath());
+            columnReader = new ColumnReadStoreImpl(pages, new SingleColumnConverter(), inputColumnSchema,
+                    reader.getFileMetaData().getCreatedBy()).getColumnReader(inputColumn);
+            inputMaxDefinitionLevel = inputColumn.getMaxDefinitionLevel();
+        }
+
+        int maxDefinitionLevel = column.getMaxDefinitionLevel();
+        for (long row = 0; row < rowCount; row++) {
+            if (columnReader == null || columnReader.getCurrentDefinitionLevel() < inputMaxDefinitionLevel) {
+                writer.writeNull(0, 0);
+            } else {
+                copyValue(columnReader, writer, column, fixedLength, maxDefinitionLevel);
+            }
+            if (columnReader != null) columnReader.consume();
+            writeStore.endRecord();
+        }
+        writeStore.flush();
+        pageWriteStore.flushToFileWriter(fileWriter);
+        writeStore.close();
+    }
+
+    /**
+     * Returns the type with only the fields on the path to a single leaf column.
+     */
+    private static Type leafPath(Type type, String[] path, int depth) {
+        if (type.isPrimitive()) return type;
+        GroupType group = type.asGroupType();
+        return group.withNewFields(leafPath(group.getType(path[depth + 1]), path, depth + 1));
+    }
+
+    private void copyValue(ColumnReader reader, ColumnWriter writer, ColumnDescriptor column, int fixedLength,
+                           int definitionLevel) {
+        switch (column.getPrimitiveType().getPrimitiveTypeName()) {
+            case INT32:
+                writer.write(reader.getInteger(), 0, definitionLevel);
+                break;
+            case INT64:
+                writer.write(reader.getLong(), 0, definitionLevel);
+                break;
+            case BINARY:
+            case FIXED_LEN_BYTE_ARRAY:
+                Binary value = reader.getBinary();
+                if (fixedLength >= 0 && value.length() != fixedLength) {
+                    invalidValues++;
+                    if (definitionLevel == 0) {
+                        throw new IllegalArgumentException("Value of length " + value.length() +
+                                " doesn't fit required column " + column);
+                    }
+                    writer.writeNull(0, 0);
+                } else {
+                    writer.write(value, 0, definitionLevel);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported column type: " + column);
+        }
+    }
+
+    /**
+     * Remembers the stream opened for the output so it can be closed if the rewrite fails.
+     */
+    private static class TrackedOutputFile implements OutputFile {
+        private final OutputFile output;
+        private PositionOutputStream stream;
+
+        TrackedOutputFile(OutputFile output) {
+            this.output = output;
+        }
+
+        @Override
+        public PositionOutputStream create(long blockSizeHint) throws IOException {
+            stream = output.create(blockSizeHint);
+            return stream;
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
+            stream = output.createOrOverwrite(blockSizeHint);
+            return stream;
+        }
+
+        @Override
+        public boolean supportsBlockSize() {
+            return output.supportsBlockSize();
+        }
+
+        @Override
+        public long defaultBlockSize() {
+            return output.defaultBlockSize();
+        }
+
+        void closeQuietly() {
+            if (stream == null) return;
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // already failing
+            }
+        }
+    }
+
+    private static class SingleColumnConverter extends GroupConverter {
+        private final PrimitiveConverter converter = new PrimitiveConverter() {
+        };
+
+        @Override
+        public Converter getConverter(int fieldIndex) {
+            return converter;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+}
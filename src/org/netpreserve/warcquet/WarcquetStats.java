@@ -0,0 +1,429 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import org.apache.parquet.column.Dictionary;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.PrimitiveConverter;
+import org.netpreserve.warcquet.util.DigestHashSet;
+import org.netpreserve.warcquet.util.PathInputFile;
+import org.netpreserve.warcquet.util.PathOutputFile;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Per-file summary statistics computed directly from the warcquet columns without materializing capture events.
+ * String columns are tallied by dictionary id and only decoded once per distinct value per row group. Row groups are
+ * scanned in parallel.
+ * <p>
+ * Bytes are response payload bytes. Rows with a null key are counted in the totals but omitted from the breakdowns.
+ */
+public class WarcquetStats {
+    private static final String[] COLUMNS = {"date", "http_status", "response_payload_length",
+            "response_payload_type", "surt_domain", "filename", "response_payload_sha1"};
+    private static final int DATE = 0, HTTP_STATUS = 1, PAYLOAD_LENGTH = 2, PAYLOAD_TYPE = 3, SURT_DOMAIN = 4,
+            FILENAME = 5, SHA1 = 6;
+    private static final int MAX_STATUS = 1000;
+    private static final int SHA1_LENGTH = 20;
+
+    private long captures;
+    private long bytes;
+    private long minDate = Long.MAX_VALUE;
+    private long maxDate = Long.MIN_VALUE;
+    private long digests;
+    private final DigestHashSet distinctDigests = new DigestHashSet(SHA1_LENGTH);
+    private final Map<Integer, Tally> byHttpStatus = new TreeMap<>();
+    private final Map<String, Tally> byPayloadType = new HashMap<>();
+    private final Map<String, Tally> bySurtDomain = new HashMap<>();
+    private final Map<String, Tally> byFilename = new HashMap<>();
+
+    public static class Tally {
+        private long captures;
+        private long bytes;
+
+        void add(long captures, long bytes) {
+            this.captures += captures;
+            this.bytes += bytes;
+        }
+
+        public long getCaptures() {
+            return captures;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Computes statistics over all the given files, scanning row groups in parallel.
+     */
+    public static WarcquetStats compute(List<Path> files) throws IOException {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        var tasks = new ArrayList<Runnable>();
+        var results = new ArrayList<WarcquetStats>();
+        for (Path file : files) {
+            int rowGroups;
+            try (var reader = ParquetFileReader.open(new PathInputFile(file))) {
+                rowGroups = reader.getRowGroups().size();
+            }
+            // split each file into contiguous ranges of row groups so each task only opens the file once
+            int chunks = Math.min(rowGroups, parallelism);
+            for (int i = 0; i < chunks; i++) {
+                int from = (int) ((long) rowGroups * i / chunks);
+                int to = (int) ((long) rowGroups * (i + 1) / chunks);
+                var stats = new WarcquetStats();
+                results.add(stats);
+                tasks.add(() -> {
+                    try {
+                        stats.scan(file, from, to);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        }
+        try {
+            tasks.parallelStream().forEach(Runnable::run);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        var total = new WarcquetStats();
+        for (WarcquetStats stats : results) {
+            total.merge(stats);
+        }
+        return total;
+    }
+
+    private void scan(Path file, int fromRowGroup, int toRowGroup) throws IOException {
+        try (var reader = ColumnScanner.open(file, COLUMNS)) {
+            for (int i = fromRowGroup; i < toRowGroup; i++) {
+                scanRowGroup(reader, i);
+            }
+        }
+    }
+
+    private void scanRowGroup(ParquetFileReader reader, int blockIndex) throws IOException {
+        var payloadTypes = new KeyTally();
+        var surtDomains = new KeyTally();
+        var filenames = new KeyTally();
+        var converters = new PrimitiveConverter[COLUMNS.length];
+        converters[PAYLOAD_TYPE] = payloadTypes;
+        converters[SURT_DOMAIN] = surtDomains;
+        converters[FILENAME] = filenames;
+        var scanner = new ColumnScanner(reader, reader.readRowGroup(blockIndex), COLUMNS, converters);
+
+        long[] statusCaptures = new long[MAX_STATUS];
+        long[] statusBytes = new long[MAX_STATUS];
+        while (scanner.nextRow()) {
+            long length = scanner.isNull(PAYLOAD_LENGTH) ? 0 : scanner.getLong(PAYLOAD_LENGTH);
+            captures++;
+            bytes += length;
+
+            if (!scanner.isNull(DATE)) {
+                long date = scanner.getLong(DATE);
+                if (date < minDate) minDate = date;
+                if (date > maxDate) maxDate = date;
+            }
+
+            if (!scanner.isNull(HTTP_STATUS)) {
+                int status = scanner.getInteger(HTTP_STATUS);
+                if (status >= 0 && status < MAX_STATUS) {
+                    statusCaptures[status]++;
+                    statusBytes[status] += length;
+                } else {
+                    byHttpStatus.computeIfAbsent(status, k -> new Tally()).add(1, length);
+                }
+            }
+
+            payloadTypes.add(scanner, PAYLOAD_TYPE, length);
+            surtDomains.add(scanner, SURT_DOMAIN, length);
+            filenames.add(scanner, FILENAME, length);
+
+            if (!scanner.isNull(SHA1)) {
+                Binary sha1 = scanner.getBinary(SHA1);
+                if (sha1.length() == SHA1_LENGTH) {
+                    digests++;
+                    distinctDigests.add(sha1.getBytesUnsafe(), 0);
+                }
+            }
+        }
+
+        for (int status = 0; status < MAX_STATUS; status++) {
+            if (statusCaptures[status] > 0) {
+                byHttpStatus.computeIfAbsent(status, k -> new Tally())
+                        .add(statusCaptures[status], statusBytes[status]);
+            }
+        }
+        payloadTypes.foldInto(byPayloadType);
+        surtDomains.foldInto(bySurtDomain);
+        filenames.foldInto(byFilename);
+    }
+
+    /**
+     * Tallies a string column by dictionary id, falling back to a map keyed by the decoded string for pages which
+     * are not dictionary encoded.
+     */
+    private static class KeyTally extends PrimitiveConverter {
+        private Dictionary dictionary;
+        private long[] captures;
+        private long[] bytes;
+        private final Map<String, Tally> plain = new HashMap<>();
+        private long rowBytes;
+
+        void add(ColumnScanner scanner, int column, long rowBytes) {
+            if (scanner.isNull(column)) return;
+            this.rowBytes = rowBytes;
+            scanner.writeValue(column);
+        }
+
+        @Override
+        public boolean hasDictionarySupport() {
+            return true;
+        }
+
+        @Override
+        public void setDictionary(Dictionary dictionary) {
+            this.dictionary = dictionary;
+            this.captures = new long[dictionary.getMaxId() + 1];
+            this.bytes = new long[dictionary.getMaxId() + 1];
+        }
+
+        @Override
+        public void addValueFromDictionary(int dictionaryId) {
+            captures[dictionaryId]++;
+            bytes[dictionaryId] += rowBytes;
+        }
+
+        @Override
+        public void addBinary(Binary value) {
+            plain.computeIfAbsent(value.toStringUsingUTF8(), k -> new Tally()).add(1, rowBytes);
+        }
+
+        void foldInto(Map<String, Tally> target) {
+            if (dictionary != null) {
+                for (int id = 0; id < captures.length; id++) {
+                    if (captures[id] == 0) continue;
+                    String key = dictionary.decodeToBinary(id).toStringUsingUTF8();
+                    target.computeIfAbsent(key, k -> new Tally()).add(captures[id], bytes[id]);
+                }
+            }
+            plain.forEach((key, tally) -> target.computeIfAbsent(key, k -> new Tally())
+                    .add(tally.captures, tally.bytes));
+        }
+    }
+
+    void merge(WarcquetStats other) {
+        captures += other.captures;
+        bytes += other.bytes;
+        minDate = Math.min(minDate, other.minDate);
+        maxDate = Math.max(maxDate, other.maxDate);
+        digests += other.digests;
+        distinctDigests.addAll(other.distinctDigests);
+        mergeTallies(byHttpStatus, other.byHttpStatus);
+        mergeTallies(byPayloadType, other.byPayloadType);
+        mergeTallies(bySurtDomain, other.bySurtDomain);
+        mergeTallies(byFilename, other.byFilename);
+    }
+
+    private static <K> void mergeTallies(Map<K, Tally> target, Map<K, Tally> source) {
+        source.forEach((key, tally) -> target.computeIfAbsent(key, k -> new Tally()).add(tally.captures, tally.bytes));
+    }
+
+    public long getCaptures() {
+        return captures;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public Instant getFirstDate() {
+        return captures == 0 || minDate == Long.MAX_VALUE ? null : Instant.ofEpochMilli(minDate);
+    }
+
+    public Instant getLastDate() {
+        return captures == 0 || maxDate == Long.MIN_VALUE ? null : Instant.ofEpochMilli(maxDate);
+    }
+
+    public long getDigests() {
+        return digests;
+    }
+
+    /**
+     * Number of captures whose payload digest was already seen in another capture.
+     */
+    public long getDuplicateDigests() {
+        return digests - distinctDigests.size();
+    }
+
+    public Map<Integer, Tally> getByHttpStatus() {
+        return Collections.unmodifiableMap(byHttpStatus);
+    }
+
+    public Map<String, Tally> getByPayloadType() {
+        return Collections.unmodifiableMap(byPayloadType);
+    }
+
+    public Map<String, Tally> getBySurtDomain() {
+        return Collections.unmodifiableMap(bySurtDomain);
+    }
+
+    public Map<String, Tally> getByFilename() {
+        return Collections.unmodifiableMap(byFilename);
+    }
+
+    public void writeJson(Appendable out) throws IOException {
+        out.append("{\n");
+        out.append("  \"captures\": ").append(Long.toString(captures)).append(",\n");
+        out.append("  \"bytes\": ").append(Long.toString(bytes)).append(",\n");
+        out.append("  \"first_date\": ").append(jsonString(Objects.toString(getFirstDate(), null))).append(",\n");
+        out.append("  \"last_date\": ").append(jsonString(Objects.toString(getLastDate(), null))).append(",\n");
+        out.append("  \"digests\": ").append(Long.toString(digests)).append(",\n");
+        out.append("  \"duplicate_digests\": ").append(Long.toString(getDuplicateDigests())).append(",\n");
+        writeJsonTallies(out, "http_status", byHttpStatus);
+        out.append(",\n");
+        writeJsonTallies(out, "response_payload_type", byPayloadType);
+        out.append(",\n");
+        writeJsonTallies(out, "surt_domain", bySurtDomain);
+        out.append(",\n");
+        writeJsonTallies(out, "filename", byFilename);
+        out.append("\n}\n");
+    }
+
+    private static void writeJsonTallies(Appendable out, String name, Map<?, Tally> tallies) throws IOException {
+        out.append("  ").append(jsonString(name)).append(": {");
+        boolean first = true;
+        for (var entry : sortedByCaptures(tallies)) {
+            out.append(first ? "\n" : ",\n");
+            first = false;
+            out.append("    ").append(jsonString(entry.getKey().toString()))
+                    .append(": {\"captures\": ").append(Long.toString(entry.getValue().captures))
+                    .append(", \"bytes\": ").append(Long.toString(entry.getValue().bytes)).append("}");
+        }
+        out.append(first ? "}" : "\n  }");
+    }
+
+    private static <K> List<Map.Entry<K, Tally>> sortedByCaptures(Map<K, Tally> tallies) {
+        var entries = new ArrayList<>(tallies.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().captures, a.getValue().captures));
+        return entries;
+    }
+
+    private static String jsonString(String value) {
+        if (value == null) return "null";
+        var sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Writes the statistics as a small parquet file with one row per (dimension, key). The overall totals are written
+     * as dimension "total" and the date range and digest counts are stored in the footer key-value metadata.
+     */
+    public void writeParquet(Path path) throws IOException {
+        var schema = Warcquet.statsSchema();
+        var metadata = new HashMap<String, String>();
+        if (getFirstDate() != null) metadata.put("first_date", getFirstDate().toString());
+        if (getLastDate() != null) metadata.put("last_date", getLastDate().toString());
+        metadata.put("digests", Long.toString(digests));
+        metadata.put("duplicate_digests", Long.toString(getDuplicateDigests()));
+        try (ParquetWriter<Group> writer = ExampleParquetWriter.builder(new PathOutputFile(path))
+                .withType(schema)
+                .withExtraMetaData(metadata)
+                .build()) {
+            var factory = new SimpleGroupFactory(schema);
+            Group total = factory.newGroup()
+                    .append("dimension", "total")
+                    .append("captures", captures)
+                    .append("bytes", bytes);
+            writer.write(total);
+            writeParquetTallies(writer, factory, "http_status", byHttpStatus);
+            writeParquetTallies(writer, factory, "response_payload_type", byPayloadType);
+            writeParquetTallies(writer, factory, "surt_domain", bySurtDomain);
+            writeParquetTallies(writer, factory, "filename", byFilename);
+        }
+    }
+
+    private static void writeParquetTallies(ParquetWriter<Group> writer, SimpleGroupFactory factory, String dimension,
+                                            Map<?, Tally> tallies) throws IOException {
+        for (var entry : sortedByCaptures(tallies)) {
+            writer.write(factory.newGroup()
+                    .append("dimension", dimension)
+                    .append("key", entry.getKey().toString())
+                    .append("captures", entry.getValue().captures)
+                    .append("bytes", entry.getValue().bytes));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path outFile = null;
+        var files = new ArrayList<Path>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output-file":
+                        outFile = Paths.get(args[++i]);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.print("Usage: WarcquetStats [OPTIONS] warcquet-files...\n" +
+                                "\n" +
+                                "Prints summary statistics as JSON.\n" +
+                                "\n" +
+                                "Options:\n" +
+                                "  -o, --output-file FILE      Write statistics to a parquet file instead\n");
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("WarcquetStats: unrecognized option: '" + args[i] + "'");
+                        System.exit(1);
+                }
+            } else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("WarcquetStats: at least one input file must be specified. See --help for usage information");
+            System.exit(1);
+        }
+
+        WarcquetStats stats = compute(files);
+        if (outFile != null) {
+            stats.writeParquet(outFile);
+        } else {
+            Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            stats.writeJson(out);
+            out.flush();
+        }
+    }
+}
@@ -11,15 +11,16 @@ import org.apache.parquet.io.api.Binary;
 import org.apache.parquet.io.api.RecordConsumer;
 import org.apache.parquet.schema.MessageType;
 
-import java.nio.ByteBuffer;
-import java.time.Instant;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Locale;
-import java.util.UUID;
+import java.util.Map;
 
 class WarcquetWriteSupport extends WriteSupport<CaptureEvent> {
     private RecordConsumer recordConsumer;
     private MessageType schema;
+    private final byte[] uuidBuffer = new byte[16];
+    private final Map<String, Binary> headerNames = new HashMap<>();
 
     @Override
     public WriteContext init(Configuration configuration) {
@@ -55,39 +56,82 @@ class WarcquetWriteSupport extends WriteSupport<CaptureEvent> {
         recordConsumer.endField(field, index);
     }
 
-    private void add(int index, String field, Long value) {
+    private void add(int index, String field, boolean present, long value) {
         checkFieldIndex(index, field);
-        if (value == null) return;
+        if (!present) return;
         recordConsumer.startField(field, index);
         recordConsumer.addLong(value);
         recordConsumer.endField(field, index);
     }
 
-    private void add(int index, String field, Instant value) {
-        add(index, field, value == null ? null : value.toEpochMilli());
+    private void add(int index, String field, boolean present, int value) {
+        checkFieldIndex(index, field);
+        if (!present) return;
+        recordConsumer.startField(field, index);
+        recordConsumer.addInteger(value);
+        recordConsumer.endField(field, index);
     }
 
-    private void add(int index, String field, Integer value) {
+    private void add(int index, String field, boolean present, boolean value) {
         checkFieldIndex(index, field);
-        if (value == null) return;
+        if (!present) return;
         recordConsumer.startField(field, index);
-        recordConsumer.addInteger(value);
+        recordConsumer.addBoolean(value);
+        recordConsumer.endField(field, index);
+    }
+
+    /**
+     * Writes a map of header names to values. The names come from a short allowlist so their encoded forms are kept.
+     */
+    private void add(int index, String field, Map<String, String> headers) {
+        checkFieldIndex(index, field);
+        if (headers == null) return;
+        recordConsumer.startField(field, index);
+        recordConsumer.startGroup();
+        if (!headers.isEmpty()) {
+            recordConsumer.startField("key_value", 0);
+            for (var entry : headers.entrySet()) {
+                recordConsumer.startGroup();
+                recordConsumer.startField("key", 0);
+                recordConsumer.addBinary(headerName(entry.getKey()));
+                recordConsumer.endField("key", 0);
+                if (entry.getValue() != null) {
+                    recordConsumer.startField("value", 1);
+                    recordConsumer.addBinary(Binary.fromString(entry.getValue()));
+                    recordConsumer.endField("value", 1);
+                }
+                recordConsumer.endGroup();
+            }
+            recordConsumer.endField("key_value", 0);
+        }
+        recordConsumer.endGroup();
         recordConsumer.endField(field, index);
     }
 
+    private Binary headerName(String name) {
+        Binary binary = headerNames.get(name);
+        if (binary == null) {
+            binary = Binary.fromString(name);
+            if (headerNames.size() < 1024) headerNames.put(name, binary);
+        }
+        return binary;
+    }
+
     private void checkFieldIndex(int index, String field) {
         if (!schema.getFieldName(index).equals(field)) {
             throw new IllegalArgumentException("wrong field index: " + field);
         }
     }
 
-    private void add(int index, String field, UUID value) {
-        if (value == null) return;
+    private void add(int index, String field, boolean present, long mostSignificantBits, long leastSignificantBits) {
+        checkFieldIndex(index, field);
+        if (!present) return;
         recordConsumer.startField(field, index);
-        var buffer = ByteBuffer.allocate(16);
-        buffer.putLong(value.getMostSignificantBits());
-        buffer.putLong(value.getLeastSignificantBits());
-        recordConsumer.addBinary(Binary.fromConstantByteArray(buffer.array()));
+        for (int i = 0; i < 8; i++) {
+            uuidBuffer[i] = (byte) (mostSignificantBits >>> (56 - i * 8));
+            uuidBuffer[8 + i] = (byte) (leastSignificantBits >>> (56 - i * 8));
+        }
+        recordConsumer.addBinary(Binary.fromReusedByteArray(uuidBuffer));
         recordConsumer.endField(field, index);
     }
 
@@ -98,33 +142,37 @@ class WarcquetWriteSupport extends WriteSupport<CaptureEvent> {
 
         int i = 0;
         add(i++, "url", event.getUrl());
-        add(i++, "date", event.getDate());
+        add(i++, "date", event.hasDate(), event.getDateAsLong());
 
         add(i++, "filename", event.getFilename());
         add(i++, "response_position", event.getResponsePosition());
-        add(i++, "response_length", event.getResponsePosition());
+        add(i++, "response_length", event.getResponseLength());
         add(i++, "response_record_type", event.getResponseRecordType());
-        add(i++, "response_uuid", event.getResponseUUID());
+        add(i++, "response_uuid", event.hasResponseUUID(), event.getResponseUUIDMostSignificantBits(),
+                event.getResponseUUIDLeastSignificantBits());
         add(i++, "response_payload_type", event.getResponsePayloadType());
-        add(i++, "response_payload_length", event.getResponsePayloadLength());
+        add(i++, "response_payload_length", event.hasResponsePayloadLength(),
+                event.getResponsePayloadLengthAsLong());
         add(i++, "response_payload_sha1", event.getResponsePayloadSha1());
 
-        add(i++, "request_position", event.getRequestPosition());
-        add(i++, "request_length", event.getRequestLength());
-        add(i++, "request_uuid", event.getRequestUUID());
+        add(i++, "request_position", event.hasRequestPosition(), event.getRequestPositionAsLong());
+        add(i++, "request_length", event.hasRequestLength(), event.getRequestLengthAsLong());
+        add(i++, "request_uuid", event.hasRequestUUID(), event.getRequestUUIDMostSignificantBits(),
+                event.getRequestUUIDLeastSignificantBits());
         add(i++, "request_payload_type", event.getRequestPayloadType());
-        add(i++, "request_payload_length", event.getRequestPayloadLength());
+        add(i++, "request_payload_length", event.hasRequestPayloadLength(), event.getRequestPayloadLengthAsLong());
         add(i++, "request_payload_sha1", event.getRequestPayloadSha1());
 
         add(i++, "refers_to_url", event.getRefersToUrl());
-        add(i++, "refers_to_date", event.getRefersToDate());
-        add(i++, "refers_to_uuid", event.getRefersToUUID());
+        add(i++, "refers_to_date", event.hasRefersToDate(), event.getRefersToDateAsLong());
+        add(i++, "refers_to_uuid", event.hasRefersToUUID(), event.getRefersToUUIDMostSignificantBits(),
+                event.getRefersToUUIDLeastSignificantBits());
 
-        add(i++, "http_status", event.getHttpStatus());
+        add(i++, "http_status", event.hasHttpStatus(), event.getHttpStatusAsInt());
         add(i++, "http_method", event.getHttpMethod());
         add(i++, "hops_from_seed", event.getHopsFromSeed());
         add(i++, "via", event.getVia());
-        add(i++, "ipv4", event.getIpv4());
+        add(i++, "ipv4", event.hasIpv4(), event.getIpv4AsInt());
         add(i++, "ipv6", event.getIpv6());
         add(i++, "redirect", event.getRedirect());
         add(i++, "software", event.getSoftware());
@@ -136,6 +184,20 @@ class WarcquetWriteSupport extends WriteSupport<CaptureEvent> {
         add(i++, "surt_domain", event.getSurtDomain());
         add(i++, "surt_registry", event.getSurtRegistry());
 
+        add(i++, "response_payload_sha256", event.getResponsePayloadSha256());
+        add(i++, "response_payload_murmur3", event.getResponsePayloadMurmur3());
+        add(i++, "response_block_sha1", event.getResponseBlockSha1());
+        add(i++, "response_block_sha256", event.getResponseBlockSha256());
+        add(i++, "response_block_murmur3", event.getResponseBlockMurmur3());
+        add(i++, "response_payload_digest_status", event.getResponsePayloadDigestStatus());
+        add(i++, "response_payload_digest_actual", event.getResponsePayloadDigestActual());
+        add(i++, "response_block_digest_status", event.getResponseBlockDigestStatus());
+        add(i++, "response_block_digest_actual", event.getResponseBlockDigestActual());
+        add(i++, "response_truncated", event.hasResponseTruncated(), event.getResponseTruncatedAsBoolean());
+
+        add(i++, "response_headers", event.getResponseHeaders());
+        add(i++, "request_headers", event.getRequestHeaders());
+
         recordConsumer.endMessage();
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Leases on work items held as lock files on a shared filesystem, so any number of worker processes can share a job
+ * list without a coordinator.
+ * <p>
+ * A lease is taken by creating the lock file exclusively and is renewed by updating its modification time every third
+ * of the lease duration, as long as the lock still holds this worker's id. A lock that hasn't been renewed for the
+ * lease duration belongs to a crashed worker and may be reclaimed: it is first renamed to a name unique to the
+ * reclaiming worker, so only one worker can win, and then the lock is created afresh. If the renamed lock turns out to
+ * be fresh, because another worker reclaimed it in between, it is put back and the claim fails. A worker whose lock
+ * was reclaimed notices at its next renewal. The renewal can't be made atomic with the ownership check, so it may
+ * briefly extend another worker's lease, which is harmless. Workers' clocks are compared against lock modification
+ * times so they should be roughly in sync relative to the lease duration.
+ * <p>
+ * A worker that crashes while reclaiming may leave a renamed lock behind; {@link #removeExpiredLocks(Path)} removes
+ * them once all the work is done.
+ */
+class WorkQueue implements Closeable {
+    private static final String EXPIRED_INFIX = ".expired-";
+    private final long leaseMillis;
+    private final String workerId;
+    private final ScheduledExecutorService renewer;
+    private final Map<Path, Lease> leases = new ConcurrentHashMap<>();
+
+    WorkQueue(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+        this.workerId = hostname() + ":" + ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+        this.renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "warcquet-lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, leaseMillis / 3);
+        renewer.scheduleAtFixedRate(this::renewAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static String hostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * A unique id for this worker, e.g. for naming its temporary files.
+     */
+    String workerId() {
+        return workerId;
+    }
+
+    /**
+     * Tries to take the lease on a lock file, reclaiming it if it has expired. Returns null if another worker holds it.
+     */
+    Lease tryClaim(Path lockFile) throws IOException {
+        if (!tryCreate(lockFile)) {
+            FileTime modified;
+            try {
+                modified = Files.getLastModifiedTime(lockFile);
+            } catch (NoSuchFileException e) {
+                return tryCreate(lockFile) ? newLease(lockFile) : null;
+            }
+            if (System.currentTimeMillis() - modified.toMillis() < leaseMillis) return null;
+
+            Path expired = lockFile.resolveSibling(lockFile.getFileName() + EXPIRED_INFIX + UUID.randomUUID());
+            byte[] previousLock;
+            try {
+                Files.move(lockFile, expired, ATOMIC_MOVE);
+                modified = Files.getLastModifiedTime(expired);
+                previousLock = Files.readAllBytes(expired);
+                Files.delete(expired);
+            } catch (NoSuchFileException e) {
+                return null; // another worker reclaimed it first
+            }
+            if (System.currentTimeMillis() - modified.toMillis() < leaseMillis) {
+                // another worker reclaimed it between our check and rename, give it back
+                try {
+                    Files.write(lockFile, previousLock, CREATE_NEW, WRITE);
+                } catch (FileAlreadyExistsException e) {
+                    // a third worker has it now and the one we took it from will notice at its next renewal
+                }
+                return null;
+            }
+            String previousOwner = new String(previousLock, StandardCharsets.UTF_8).trim();
+            System.err.println("Reclaimed expired lease " + lockFile + " from " + previousOwner);
+            if (!tryCreate(lockFile)) return null;
+            var lease = newLease(lockFile);
+            lease.previousOwner = previousOwner;
+            return lease;
+        }
+        return newLease(lockFile);
+    }
+
+    private boolean tryCreate(Path lockFile) throws IOException {
+        try {
+            Files.write(lockFile, (workerId + "\n").getBytes(StandardCharsets.UTF_8), CREATE_NEW, WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private Lease newLease(Path lockFile) {
+        var lease = new Lease(lockFile);
+        leases.put(lockFile, lease);
+        return lease;
+    }
+
+    private void renewAll() {
+        for (Lease lease : leases.values()) {
+            try {
+                if (!lease.isHeld()) throw new IOException("lock reclaimed by another worker");
+                Files.setLastModifiedTime(lease.lockFile, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                lease.lost = true;
+                leases.remove(lease.lockFile);
+            }
+        }
+    }
+
+    /**
+     * Removes the renamed locks left in a directory by workers that crashed while reclaiming. Only safe once no
+     * worker can be claiming locks in it.
+     */
+    static void removeExpiredLocks(Path dir) throws IOException {
+        try (var stream = Files.newDirectoryStream(dir, "*" + EXPIRED_INFIX + "*")) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        renewer.shutdownNow();
+    }
+
+    class Lease implements Closeable {
+        private final Path lockFile;
+        private volatile boolean lost;
+        private String previousOwner;
+
+        private Lease(Path lockFile) {
+            this.lockFile = lockFile;
+        }
+
+        /**
+         * The id of the crashed worker this lease was reclaimed from, or null.
+         */
+        String previousOwner() {
+            return previousOwner;
+        }
+
+        /**
+         * Checks the lock file still belongs to this worker. Call before publishing the results of the work.
+         */
+        boolean isHeld() throws IOException {
+            if (lost) return false;
+            try {
+                return new String(Files.readAllBytes(lockFile), StandardCharsets.UTF_8).trim().equals(workerId);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Stops renewing the lease and removes the lock file if it is still ours.
+         */
+        @Override
+        public void close() throws IOException {
+            leases.remove(lockFile);
+            if (isHeld()) Files.deleteIfExists(lockFile);
+        }
+    }
+}
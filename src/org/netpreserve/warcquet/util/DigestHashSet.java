@@ -0,0 +1,80 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of fixed width digests, stored back to back in a single byte array so each entry costs
+ * only its width plus a flag.
+ */
+public class DigestHashSet {
+    private final int width;
+    private byte[] keys;
+    private boolean[] used;
+    private int size;
+
+    public DigestHashSet(int width) {
+        this.width = width;
+        this.keys = new byte[16 * width];
+        this.used = new boolean[16];
+    }
+
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Adds the digest of the set's width at the given offset. Returns true if it was not already present.
+     */
+    public boolean add(byte[] digest, int offset) {
+        int mask = used.length - 1;
+        int i = hash(digest, offset) & mask;
+        while (used[i]) {
+            if (Arrays.equals(keys, i * width, i * width + width, digest, offset, offset + width)) return false;
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        System.arraycopy(digest, offset, keys, i * width, width);
+        if (++size * 2 > used.length) {
+            rehash(used.length * 2);
+        }
+        return true;
+    }
+
+    public void addAll(DigestHashSet other) {
+        if (other.width != width) throw new IllegalArgumentException("digest widths differ");
+        for (int i = 0; i < other.used.length; i++) {
+            if (other.used[i]) add(other.keys, i * width);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        byte[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        keys = new byte[capacity * width];
+        used = new boolean[capacity];
+        size = 0;
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) add(oldKeys, i * width);
+        }
+    }
+
+    private int hash(byte[] digest, int offset) {
+        long h = 0;
+        for (int i = 0; i < Math.min(width, Long.BYTES); i++) {
+            h = (h << 8) | (digest[offset + i] & 0xff);
+        }
+        // murmur3 finalizer, in case the digest isn't uniformly distributed
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33));
+    }
+}
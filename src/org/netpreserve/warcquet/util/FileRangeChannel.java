@@ -0,0 +1,81 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only view of the start of a file that ends at a fixed limit, even if the file is longer. Positions are file
+ * offsets. Closing the view leaves the underlying channel open so it can be reused for later ranges.
+ */
+public class FileRangeChannel implements SeekableByteChannel {
+    private final FileChannel channel;
+    private final long limit;
+    private long position;
+    private boolean open = true;
+
+    public FileRangeChannel(FileChannel channel, long position, long limit) {
+        this.channel = channel;
+        this.position = position;
+        this.limit = limit;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (position >= limit) return -1;
+        int originalLimit = dst.limit();
+        if (dst.remaining() > limit - position) {
+            dst.limit(dst.position() + (int) (limit - position));
+        }
+        try {
+            int n = channel.read(dst, position);
+            if (n > 0) position += n;
+            return n;
+        } finally {
+            dst.limit(originalLimit);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return limit;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -15,6 +15,7 @@ import java.nio.file.Path;
 
 public class PathOutputFile implements OutputFile {
     private final Path path;
+    private volatile SimplePositionOutputStream stream;
 
     public PathOutputFile(Path path) {
         this.path = path;
@@ -22,12 +23,22 @@ public class PathOutputFile implements OutputFile {
 
     @Override
     public PositionOutputStream create(long blockSizeHint) throws IOException {
-        return new SimplePositionOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        stream = new SimplePositionOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        return stream;
     }
 
     @Override
     public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
-        return new SimplePositionOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        stream = new SimplePositionOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        return stream;
+    }
+
+    /**
+     * Number of bytes written to the most recently created stream.
+     */
+    public long getBytesWritten() {
+        var stream = this.stream;
+        return stream == null ? 0 : stream.getPos();
     }
 
     @Override
@@ -0,0 +1,246 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches remote files with several concurrent HTTP Range requests and presents each as one sequential channel.
+ * <p>
+ * A file is split into fixed size chunks which are fetched on a shared pool of I/O threads. Each open file keeps at
+ * most {@code chunksAhead} chunks in flight or buffered, and the reader takes them in order, so memory is bounded by
+ * chunksAhead * chunkSize per file. A chunk whose connection fails or stalls past the read timeout is retried from the
+ * last byte received, with exponential backoff. Servers that don't answer the first request with 206 Partial Content are read as a single
+ * stream.
+ * <p>
+ * {@link #prefetch(URI)} opens a file ahead of time so its first chunks download while the previous file is still
+ * being read.
+ */
+public class RangedHttpFetcher implements Closeable {
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final ExecutorService pool;
+    private final int timeoutMillis;
+    private final int chunkSize;
+    private final int chunksAhead;
+    private final int retries;
+    private final Map<URI, CompletableFuture<ReadableByteChannel>> prefetched = new ConcurrentHashMap<>();
+
+    /**
+     * @param threads       I/O threads shared by all files
+     * @param chunkSize     bytes per range request
+     * @param chunksAhead   chunks each file may have in flight or buffered
+     * @param retries       attempts at each chunk before giving up
+     * @param timeoutMillis connect and read timeout
+     */
+    public RangedHttpFetcher(int threads, int chunkSize, int chunksAhead, int retries, int timeoutMillis) {
+        var threadCount = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "warcquet-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.chunkSize = chunkSize;
+        this.chunksAhead = chunksAhead;
+        this.retries = retries;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts fetching a file that will be opened soon.
+     */
+    public void prefetch(URI uri) {
+        prefetched.computeIfAbsent(uri, u -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return openNow(u);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, pool));
+    }
+
+    /**
+     * Opens a file, taking over its prefetch if there is one.
+     */
+    public ReadableByteChannel open(URI uri) throws IOException {
+        var future = prefetched.remove(uri);
+        if (future == null) return openNow(uri);
+        return join(future);
+    }
+
+    private ReadableByteChannel openNow(URI uri) throws IOException {
+        HttpURLConnection response = send(uri, 0, chunkSize - 1);
+        if (response.getResponseCode() == 200) {
+            return Channels.newChannel(response.getInputStream());
+        }
+        if (response.getResponseCode() != 206) {
+            response.disconnect();
+            throw new IOException("HTTP " + response.getResponseCode() + " fetching " + uri);
+        }
+        String contentRange = response.getHeaderField("Content-Range");
+        Matcher m = CONTENT_RANGE.matcher(contentRange == null ? "" : contentRange);
+        if (!m.matches() || Long.parseLong(m.group(1)) != 0) {
+            response.disconnect();
+            throw new IOException("Bad Content-Range from " + uri);
+        }
+        long length = Long.parseLong(m.group(3));
+        var channel = new RangedChannel(uri, length);
+        byte[] first = new byte[(int) Math.min(chunkSize, length)];
+        channel.pending.add(CompletableFuture.supplyAsync(() -> {
+            int received = 0;
+            try (InputStream body = response.getInputStream()) {
+                int n;
+                while (received < first.length && (n = body.read(first, received, first.length - received)) > 0) {
+                    received += n;
+                }
+            } catch (IOException e) {
+                // fetchRest retries from where this stopped
+            }
+            return channel.fetchRest(first, 0, received, 0);
+        }, pool));
+        channel.nextChunk = 1;
+        channel.fill();
+        return channel;
+    }
+
+    private HttpURLConnection send(URI uri, long start, long end) throws IOException {
+        var connection = (HttpURLConnection) uri.toURL().openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        return connection;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes any prefetched files that were never opened and stops the I/O threads.
+     */
+    @Override
+    public void close() throws IOException {
+        for (var future : prefetched.values()) {
+            future.thenAccept(channel -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            });
+        }
+        prefetched.clear();
+        pool.shutdownNow();
+    }
+
+    private class RangedChannel implements ReadableByteChannel {
+        private final URI uri;
+        private final long length;
+        private final long chunkCount;
+        private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        private long nextChunk;
+        private ByteBuffer current;
+        private volatile boolean open = true;
+
+        RangedChannel(URI uri, long length) {
+            this.uri = uri;
+            this.length = length;
+            this.chunkCount = (length + chunkSize - 1) / chunkSize;
+        }
+
+        private void fill() {
+            while (pending.size() < chunksAhead && nextChunk < chunkCount) {
+                long chunk = nextChunk++;
+                long start = chunk * chunkSize;
+                byte[] buffer = new byte[(int) Math.min(chunkSize, length - start)];
+                pending.add(CompletableFuture.supplyAsync(() -> fetchRest(buffer, start, 0, 0), pool));
+            }
+        }
+
+        /**
+         * Fetches the rest of a chunk starting from the given number of bytes already received.
+         */
+        private byte[] fetchRest(byte[] buffer, long start, int received, int attempt) {
+            while (received < buffer.length) {
+                if (!open) throw new CancellationException();
+                try {
+                    HttpURLConnection response = send(uri, start + received, start + buffer.length - 1);
+                    if (response.getResponseCode() != 206) {
+                        response.disconnect();
+                        throw new IOException("HTTP " + response.getResponseCode() + " fetching range of " + uri);
+                    }
+                    try (InputStream body = response.getInputStream()) {
+                        int n;
+                        while (received < buffer.length &&
+                                (n = body.read(buffer, received, buffer.length - received)) > 0) {
+                            received += n;
+                        }
+                    }
+                    if (received < buffer.length) throw new IOException("Short range response from " + uri);
+                } catch (IOException e) {
+                    if (++attempt >= retries) throw new UncheckedIOException(e);
+                    try {
+                        Thread.sleep(100L << Math.min(attempt, 8));
+                    } catch (InterruptedException ie) {
+                        throw new CancellationException();
+                    }
+                }
+            }
+            return buffer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            while (current == null || !current.hasRemaining()) {
+                var future = pending.poll();
+                if (future == null) return -1;
+                current = ByteBuffer.wrap(join(future));
+                fill();
+            }
+            int n = Math.min(dst.remaining(), current.remaining());
+            int limit = current.limit();
+            current.limit(current.position() + n);
+            dst.put(current);
+            current.limit(limit);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            for (var future : pending) future.cancel(false);
+            pending.clear();
+            current = null;
+        }
+    }
+}
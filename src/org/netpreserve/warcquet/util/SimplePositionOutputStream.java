@@ -36,7 +36,7 @@ class SimplePositionOutputStream extends DelegatingPositionOutputStream {
     }
 
     @Override
-    public long getPos() throws IOException {
+    public long getPos() {
         return position;
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright 2022 National Library of Australia
+ */
+
+package org.netpreserve.warcquet.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map keyed by a UUID held as two primitive longs. Values must not be null, a null value marks
+ * an empty slot.
+ */
+public class UuidHashMap<V> {
+    private long[] msbs;
+    private long[] lsbs;
+    private Object[] values;
+    private int size;
+
+    public UuidHashMap() {
+        this(16);
+    }
+
+    public UuidHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) capacity <<= 1;
+        msbs = new long[capacity];
+        lsbs = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long msb, long lsb) {
+        int mask = values.length - 1;
+        for (int i = mix(msb, lsb) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (msbs[i] == msb && lsbs[i] == lsb) return (V) values[i];
+        }
+        return null;
+    }
+
+    /**
+     * Associates a value with the key. Returns the previous value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long msb, long lsb, V value) {
+        if (value == null) throw new NullPointerException("value");
+        int mask = values.length - 1;
+        int i = mix(msb, lsb) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (msbs[i] == msb && lsbs[i] == lsb) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        msbs[i] = msb;
+        lsbs[i] = lsb;
+        values[i] = value;
+        if (++size * 2 > values.length) {
+            rehash(values.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the key. Returns the removed value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long msb, long lsb) {
+        int mask = values.length - 1;
+        int i = mix(msb, lsb) & mask;
+        while (values[i] != null && (msbs[i] != msb || lsbs[i] != lsb)) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null) return null;
+        V old = (V) values[i];
+
+        // shift back any following entries that would no longer be reachable
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = mix(msbs[j], lsbs[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                msbs[hole] = msbs[j];
+                lsbs[hole] = lsbs[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldMsbs = msbs;
+        long[] oldLsbs = lsbs;
+        Object[] oldValues = values;
+        msbs = new long[capacity];
+        lsbs = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null) continue;
+            int i = mix(oldMsbs[j], oldLsbs[j]) & mask;
+            while (values[i] != null) i = (i + 1) & mask;
+            msbs[i] = oldMsbs[j];
+            lsbs[i] = oldLsbs[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int mix(long msb, long lsb) {
+        // murmur3 finalizer
+        long h = msb * 31 + lsb;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33));
+    }
+}